@@ -0,0 +1,151 @@
+package com.cparedesr.kicomav.ens;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bloom filter over the keys of the persistent verdict store, so that a key that was never stored
+ * is known to be missing without querying the database.
+ * <p>
+ * Sized for {@code expectedEntries} keys and a target false-positive probability; past that number
+ * of keys it keeps working but its false-positive rate grows ({@link #expectedFpp()}). Keys are
+ * {@code (table, key)} pairs hashed without building a new string; bits are set with CAS, so adds
+ * and lookups can run concurrently, and each CAS that sets a bit counts it, so the occupancy is
+ * known without walking the array. Keys are never removed: expired or deleted verdicts only cost
+ * a database lookup, never a wrong answer.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvBloomFilter {
+
+    // "KAVBLM01"
+    private static final long MAGIC = 0x4b4156424c4d3031L;
+
+    private final AtomicLongArray bits;
+    private final LongAdder setBits = new LongAdder();
+    private final long numBits;
+    private final int hashes;
+
+    private KicomAvBloomFilter(long numBits, int hashes) {
+        this.numBits = numBits;
+        this.hashes = hashes;
+        this.bits = new AtomicLongArray((int) ((numBits + 63) >>> 6));
+    }
+
+    /**
+     * Filtro con el tamaño y número de funciones hash óptimos para {@code expectedEntries} claves y
+     * una probabilidad de falso positivo {@code fpp}.
+     */
+    static KicomAvBloomFilter create(long expectedEntries, double fpp) {
+        if (expectedEntries <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("expectedEntries debe ser > 0 y fpp estar entre 0 y 1");
+        }
+        long numBits = Math.max(64, (long) Math.ceil(-expectedEntries * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        if (numBits > 64L * Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("filtro demasiado grande: " + numBits + " bits");
+        }
+        int hashes = Math.max(1, (int) Math.round((double) numBits / expectedEntries * Math.log(2)));
+        return new KicomAvBloomFilter(numBits, hashes);
+    }
+
+    void add(String table, String key) {
+        long h1 = hash(table, key, 0x9E3779B97F4A7C15L);
+        long h2 = hash(table, key, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long current;
+            while (((current = bits.get(word)) & mask) == 0) {
+                if (bits.compareAndSet(word, current, current | mask)) {
+                    setBits.increment();
+                    break;
+                }
+                // otro hilo cambió la palabra: se reintenta
+            }
+        }
+    }
+
+    /**
+     * @return false si la clave seguro que no se ha añadido; true si puede que sí.
+     */
+    boolean mightContain(String table, String key) {
+        long h1 = hash(table, key, 0x9E3779B97F4A7C15L);
+        long h2 = hash(table, key, 0xC2B2AE3D27D4EB4FL) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Probabilidad de falso positivo esperada con los bits ya marcados ({@code ocupación^k}).
+     */
+    double expectedFpp() {
+        return Math.pow((double) setBits.sum() / numBits, hashes);
+    }
+
+    /**
+     * Guarda el filtro en {@code file} (se escribe en un temporal y se renombra).
+     */
+    void save(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+            out.writeLong(MAGIC);
+            out.writeLong(numBits);
+            out.writeInt(hashes);
+            for (int i = 0; i < bits.length(); i++) {
+                out.writeLong(bits.get(i));
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return el filtro guardado en {@code file}, o null si no existe, está dañado o se guardó con
+     * otro tamaño que el de {@code expected}.
+     */
+    static KicomAvBloomFilter load(Path file, KicomAvBloomFilter expected) throws IOException {
+        if (!Files.isRegularFile(file)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readLong() != MAGIC || in.readLong() != expected.numBits || in.readInt() != expected.hashes) {
+                return null;
+            }
+            KicomAvBloomFilter filter = new KicomAvBloomFilter(expected.numBits, expected.hashes);
+            for (int i = 0; i < filter.bits.length(); i++) {
+                long word = in.readLong();
+                filter.bits.set(i, word);
+                filter.setBits.add(Long.bitCount(word));
+            }
+            return filter;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * FNV-1a de 64 bits sobre {@code table}, un separador y {@code key}, con semilla y mezcla final.
+     */
+    private static long hash(String table, String key, long seed) {
+        long h = 0xcbf29ce484222325L ^ seed;
+        for (int i = 0; i < table.length(); i++) {
+            h = (h ^ table.charAt(i)) * 0x100000001b3L;
+        }
+        h = (h ^ '/') * 0x100000001b3L;
+        for (int i = 0; i < key.length(); i++) {
+            h = (h ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
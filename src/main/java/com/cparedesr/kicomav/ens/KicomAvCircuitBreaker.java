@@ -0,0 +1,166 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Count-based circuit breaker for one k2d endpoint.
+ * <p>
+ * In {@code CLOSED} state the outcome of the last {@code windowSize} calls is kept in a ring; once
+ * at least {@code minimumCalls} are recorded and the failure rate reaches
+ * {@code failureRateThreshold} percent the breaker trips {@code OPEN} and rejects calls without any
+ * network I/O. After {@code openMs} it goes {@code HALF_OPEN} and lets at most
+ * {@code halfOpenProbes} scans through: if all of them succeed it closes again, the first failure
+ * opens it for another period.
+ * <p>
+ * Metrics (prefix {@code breaker.<name>}): gauge {@code state} (0 closed, 1 open, 2 half-open) and
+ * counters {@code toOpen}, {@code toHalfOpen} and {@code toClosed}. Rejections are counted by the
+ * client in {@code breaker.rejected}.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvCircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvCircuitBreaker.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long openNanos;
+    private final int halfOpenProbes;
+    private final KicomAvMetrics metrics;
+
+    private final boolean[] window;
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+
+    private volatile State state = State.CLOSED;
+    private long openedAtNanos;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    KicomAvCircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold, long openMs,
+                          int halfOpenProbes, KicomAvMetrics metrics) {
+        if (windowSize <= 0 || halfOpenProbes <= 0) {
+            throw new IllegalArgumentException("windowSize y halfOpenProbes deben ser > 0");
+        }
+        this.name = name;
+        this.window = new boolean[windowSize];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, windowSize));
+        this.failureRateThreshold = failureRateThreshold;
+        this.openNanos = openMs * 1_000_000L;
+        this.halfOpenProbes = halfOpenProbes;
+        this.metrics = metrics;
+
+        metrics.registerGauge("breaker." + name + ".state", () -> state.ordinal());
+    }
+
+    /**
+     * Reserva permiso para una llamada. En {@code HALF_OPEN} sólo hay {@code halfOpenProbes} permisos;
+     * quien lo obtiene debe informar del resultado con {@link #onSuccess()}, {@link #onFailure()} o
+     * {@link #onIgnored()}.
+     */
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAtNanos < openNanos) return false;
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight >= halfOpenProbes) return false;
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    /**
+     * Como {@link #tryAcquire()} pero sin reservar nada ni cambiar de estado.
+     */
+    synchronized boolean isCallPermitted() {
+        switch (state) {
+            case OPEN:
+                return System.nanoTime() - openedAtNanos >= openNanos;
+            case HALF_OPEN:
+                return probesInFlight < halfOpenProbes;
+            default:
+                return true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight > 0) probesInFlight--;
+            if (++probeSuccesses >= halfOpenProbes) {
+                transition(State.CLOSED);
+            }
+        } else if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+        } else if (state == State.CLOSED) {
+            record(true);
+            if (windowCount >= minimumCalls && windowFailures * 100 >= failureRateThreshold * windowCount) {
+                transition(State.OPEN);
+            }
+        }
+    }
+
+    /**
+     * La llamada terminó sin decir nada de la salud de k2d (p.ej. la canceló el llamante): sólo
+     * devuelve el permiso de sonda.
+     */
+    synchronized void onIgnored() {
+        if (state == State.HALF_OPEN && probesInFlight > 0) {
+            probesInFlight--;
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (windowCount == window.length) {
+            if (window[windowIndex]) windowFailures--;
+        } else {
+            windowCount++;
+        }
+        window[windowIndex] = failure;
+        if (failure) windowFailures++;
+        windowIndex = (windowIndex + 1) % window.length;
+    }
+
+    private void transition(State next) {
+        State previous = state;
+        state = next;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        switch (next) {
+            case OPEN:
+                openedAtNanos = System.nanoTime();
+                metrics.increment("breaker." + name + ".toOpen");
+                LOG.warn("[KicomAV] circuito de {} ABIERTO ({} -> OPEN, fallos {}/{})", name, previous,
+                        windowFailures, windowCount);
+                break;
+            case HALF_OPEN:
+                metrics.increment("breaker." + name + ".toHalfOpen");
+                LOG.info("[KicomAV] circuito de {} semiabierto: se permiten {} sondas", name, halfOpenProbes);
+                break;
+            default:
+                windowIndex = 0;
+                windowCount = 0;
+                windowFailures = 0;
+                metrics.increment("breaker." + name + ".toClosed");
+                LOG.info("[KicomAV] circuito de {} cerrado de nuevo", name);
+        }
+    }
+}
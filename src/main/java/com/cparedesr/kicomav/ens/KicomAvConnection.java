@@ -0,0 +1,317 @@
+package com.cparedesr.kicomav.ens;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A single persistent connection to k2d, owned by a {@link KicomAvConnectionPool}.
+ * <p>
+ * The socket is always created from a {@link SocketChannel} so that file content can be written
+ * straight to the channel ({@link #transferFrom(FileChannel, long, long)}), while the buffered
+ * streams are used for protocol framing.
+ * A connection is used by one thread at a time (between {@code lease} and {@code release}).
+ * <p>
+ * Unix domain socket connections ({@link #openUnix(Path)}) have no {@code SO_TIMEOUT}; their
+ * channel runs in non-blocking mode behind {@link UnixChannelStreams}, which waits on a
+ * {@link Selector} so read timeouts behave the same as on TCP.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvConnection implements Closeable {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final String endpoint;
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final UnixChannelStreams unixStreams;
+    private final InputStream in;
+    private final OutputStream out;
+
+    private volatile long lastUsedNanos = System.nanoTime();
+    private volatile boolean closed;
+    private int sequence;
+
+    private KicomAvConnection(String endpoint, SocketChannel channel, Socket socket, UnixChannelStreams unixStreams,
+                              InputStream in, OutputStream out) {
+        this.endpoint = endpoint;
+        this.channel = channel;
+        this.socket = socket;
+        this.unixStreams = unixStreams;
+        this.in = new BufferedInputStream(in, BUFFER_SIZE);
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    static KicomAvConnection openTcp(String host, int port, boolean tls, int connectTimeoutMs) throws IOException {
+        return openTcp(host, port, tls ? (SSLSocketFactory) SSLSocketFactory.getDefault() : null, connectTimeoutMs);
+    }
+
+    /**
+     * Conecta por TCP; con {@code tlsFactory} distinto de null negocia TLS verificando que el certificado
+     * corresponde a {@code host} (como HTTPS) y enviando el nombre por SNI.
+     */
+    static KicomAvConnection openTcp(String host, int port, SSLSocketFactory tlsFactory, int connectTimeoutMs)
+            throws IOException {
+        SocketChannel ch = SocketChannel.open();
+        try {
+            Socket s = ch.socket();
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            s.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+
+            if (tlsFactory != null) {
+                SSLSocket ssl = (SSLSocket) tlsFactory.createSocket(s, host, port, true);
+                SSLParameters params = ssl.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                if (!isIpLiteral(host)) {
+                    params.setServerNames(List.of(new SNIHostName(host)));
+                }
+                ssl.setSSLParameters(params);
+                ssl.startHandshake();
+                return new KicomAvConnection(host + ":" + port, ch, ssl, null,
+                        ssl.getInputStream(), ssl.getOutputStream());
+            }
+            return new KicomAvConnection(host + ":" + port, ch, s, null, s.getInputStream(), s.getOutputStream());
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static boolean isIpLiteral(String host) {
+        // SNI no admite direcciones IP: solo se envía para nombres de host
+        return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    /**
+     * Conecta por Unix domain socket (k2d en el mismo host). No pasa por la pila TCP de loopback:
+     * sin puertos efímeros, sin TIME_WAIT y sin Nagle.
+     */
+    static KicomAvConnection openUnix(Path path) throws IOException {
+        SocketChannel ch = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            ch.connect(UnixDomainSocketAddress.of(path));
+            UnixChannelStreams streams = new UnixChannelStreams(ch);
+            return new KicomAvConnection("unix:" + path, ch, null, streams, streams.input(), streams.output());
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    InputStream in() {
+        return in;
+    }
+
+    OutputStream out() {
+        return out;
+    }
+
+    /**
+     * Número de la siguiente petición en la sesión, para protocolos que numeran las respuestas.
+     */
+    int nextSequence() {
+        return ++sequence;
+    }
+
+    void setReadTimeout(int readTimeoutMs) throws IOException {
+        if (socket != null) {
+            socket.setSoTimeout(readTimeoutMs);
+        } else {
+            unixStreams.timeoutMs = readTimeoutMs;
+        }
+    }
+
+    /**
+     * Envía {@code count} bytes del fichero directamente al socket con {@link FileChannel#transferTo}
+     * (sendfile en Linux), sin copiarlos al heap. Antes vacía el buffer de salida para no desordenar
+     * el protocolo. Sobre TLS el cifrado exige pasar por memoria y se copia por el stream.
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException {
+        out.flush();
+        long end = position + count;
+        if (socket instanceof SSLSocket) {
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            while (position < end) {
+                buf.clear().limit((int) Math.min(buf.capacity(), end - position));
+                int n = file.read(buf, position);
+                if (n < 0) throw new EOFException("Fichero truncado durante el envío a KicomAV");
+                out.write(buf.array(), 0, n);
+                position += n;
+            }
+            return;
+        }
+        while (position < end) {
+            long n = file.transferTo(position, end - position, channel);
+            if (n == 0) {
+                if (position >= file.size()) throw new EOFException("Fichero truncado durante el envío a KicomAV");
+                // canal no bloqueante (unix socket) con el buffer del kernel lleno
+                if (unixStreams != null) unixStreams.await(SelectionKey.OP_WRITE);
+            }
+            position += n;
+        }
+    }
+
+    long idleNanos() {
+        return System.nanoTime() - lastUsedNanos;
+    }
+
+    void touch() {
+        lastUsedNanos = System.nanoTime();
+    }
+
+    boolean isClosed() {
+        return closed || !channel.isOpen();
+    }
+
+    /**
+     * Comprueba, sin bloquear, si el otro extremo ha cerrado la conexión mientras estaba ociosa
+     * (k2d/uvicorn cierra las keep-alive tras unos segundos). También la descarta si quedaron
+     * bytes sin consumir, porque el protocolo estaría desincronizado.
+     */
+    boolean isStale() {
+        if (isClosed()) return true;
+        try {
+            if (in.available() > 0) return true;
+            if (socket instanceof SSLSocket) return false;
+            if (unixStreams != null) {
+                return channel.read(ByteBuffer.allocate(1)) != 0;
+            }
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) != 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {
+            // nada que hacer
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // nada que hacer
+        }
+        if (unixStreams != null) {
+            unixStreams.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "KicomAvConnection[" + endpoint + "]";
+    }
+
+    /**
+     * Streams sobre un {@link SocketChannel} no bloqueante que esperan en un {@link Selector} con
+     * timeout. Una interrupción del hilo cierra el canal, igual que en los sockets TCP.
+     */
+    private static final class UnixChannelStreams {
+
+        private final SocketChannel channel;
+        private final Selector selector;
+        private volatile int timeoutMs;
+
+        UnixChannelStreams(SocketChannel channel) throws IOException {
+            this.channel = channel;
+            this.selector = Selector.open();
+            channel.configureBlocking(false);
+        }
+
+        InputStream input() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    int n = read(one, 0, 1);
+                    return n < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) return 0;
+                    ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                    int n;
+                    while ((n = channel.read(buf)) == 0) {
+                        await(SelectionKey.OP_READ);
+                    }
+                    return n;
+                }
+            };
+        }
+
+        OutputStream output() {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                    while (buf.hasRemaining()) {
+                        if (channel.write(buf) == 0) {
+                            await(SelectionKey.OP_WRITE);
+                        }
+                    }
+                }
+            };
+        }
+
+        private void await(int op) throws IOException {
+            SelectionKey key = channel.register(selector, op);
+            try {
+                int ready = selector.select(timeoutMs);
+                if (Thread.interrupted()) {
+                    channel.close();
+                    throw new ClosedByInterruptException();
+                }
+                if (ready == 0) {
+                    throw new SocketTimeoutException("Timeout de " + timeoutMs + " ms en unix socket");
+                }
+            } finally {
+                if (key.isValid()) key.interestOps(0);
+                selector.selectedKeys().clear();
+            }
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // nada que hacer
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of keep-alive {@link KicomAvConnection}s to a single k2d endpoint.
+ * <p>
+ * Behaviour:
+ * <ul>
+ *   <li>At most {@code maxConnections} connections are leased or idle at the same time; callers
+ *       wait up to {@code leaseTimeoutMs} for a free slot and then get a {@link KicomAvException}.</li>
+ *   <li>Idle connections are reused LIFO, so the hottest socket is picked first and the rest can age out.</li>
+ *   <li>Connections idle for longer than {@code idleTimeoutMs}, or closed by the peer, are evicted
+ *       on lease and by {@link #evictIdle()}, which the owner calls periodically.</li>
+ *   <li>Health probes ({@link #leaseForProbe()}) never wait: with every slot taken by scans they get
+ *       a connection of their own outside the pool, so a busy endpoint is not reported as down.</li>
+ * </ul>
+ * Counters and gauges are published in {@link KicomAvMetrics} under {@code <prefix>.*}.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvConnectionPool implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvConnectionPool.class);
+
+    @FunctionalInterface
+    interface ConnectionFactory {
+        KicomAvConnection open() throws IOException;
+    }
+
+    private final ConnectionFactory factory;
+    private final int maxConnections;
+    private final long idleTimeoutNanos;
+    private final long leaseTimeoutMs;
+    private final KicomAvMetrics metrics;
+    private final String prefix;
+
+    private final Semaphore permits;
+    private final Deque<KicomAvConnection> idle = new ArrayDeque<>();
+    private final Set<KicomAvConnection> unpooled = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    KicomAvConnectionPool(ConnectionFactory factory, int maxConnections, long idleTimeoutMs, long leaseTimeoutMs,
+                          KicomAvMetrics metrics, String prefix) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections debe ser >= 1");
+        }
+        this.factory = factory;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.leaseTimeoutMs = leaseTimeoutMs;
+        this.metrics = metrics;
+        this.prefix = prefix;
+        this.permits = new Semaphore(maxConnections, true);
+
+        metrics.registerGauge(prefix + ".leased", this::getLeased);
+        metrics.registerGauge(prefix + ".idle", this::getIdle);
+        metrics.registerGauge(prefix + ".max", () -> maxConnections);
+    }
+
+    KicomAvConnection lease() throws IOException {
+        if (closed) throw new KicomAvException("Pool de conexiones KicomAV cerrado: " + prefix);
+
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(leaseTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KicomAvException("Interrumpido esperando conexión KicomAV", e);
+        }
+        if (!acquired) {
+            metrics.increment(prefix + ".leaseTimeouts");
+            throw new KicomAvPoolExhaustedException("Pool de conexiones KicomAV agotado (max=" + maxConnections
+                    + ", esperado " + leaseTimeoutMs + " ms)");
+        }
+        return leaseAcquired();
+    }
+
+    /**
+     * Conexión para una sonda de salud o de versión: del pool si hay un hueco libre ahora mismo; si
+     * todos los ocupan escaneos, una conexión aparte que no cuenta en {@code maxConnections} y se
+     * cierra al devolverla. Así un endpoint ocupado no se confunde con uno caído.
+     */
+    KicomAvConnection leaseForProbe() throws IOException {
+        if (closed) throw new KicomAvException("Pool de conexiones KicomAV cerrado: " + prefix);
+        if (permits.tryAcquire()) {
+            return leaseAcquired();
+        }
+        KicomAvConnection con = factory.open();
+        metrics.increment(prefix + ".probeConnections");
+        unpooled.add(con);
+        return con;
+    }
+
+    private KicomAvConnection leaseAcquired() throws IOException {
+        try {
+            KicomAvConnection con;
+            while ((con = pollIdle()) != null) {
+                if (con.idleNanos() > idleTimeoutNanos || con.isStale()) {
+                    metrics.increment(prefix + ".evicted");
+                    con.close();
+                    continue;
+                }
+                metrics.increment(prefix + ".reused");
+                return con;
+            }
+
+            con = factory.open();
+            metrics.increment(prefix + ".created");
+            LOG.debug("[KicomAV] nueva conexión {}", con);
+            return con;
+        } catch (IOException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Devuelve la conexión al pool. Si {@code reusable} es false (error, respuesta sin keep-alive,
+     * protocolo a medias) se cierra y el hueco queda libre para una nueva.
+     */
+    void release(KicomAvConnection con, boolean reusable) {
+        if (unpooled.remove(con)) {
+            con.close();
+            return;
+        }
+        try {
+            if (reusable && !closed && !con.isClosed()) {
+                con.touch();
+                synchronized (idle) {
+                    idle.push(con);
+                }
+            } else {
+                metrics.increment(prefix + ".discarded");
+                con.close();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Cierra las conexiones ociosas que superan {@code idleTimeoutMs}.
+     */
+    void evictIdle() {
+        synchronized (idle) {
+            Iterator<KicomAvConnection> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                KicomAvConnection con = it.next();
+                if (con.idleNanos() > idleTimeoutNanos || con.isClosed()) {
+                    it.remove();
+                    metrics.increment(prefix + ".evicted");
+                    con.close();
+                }
+            }
+        }
+    }
+
+    int getLeased() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    int getIdle() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    private KicomAvConnection pollIdle() {
+        synchronized (idle) {
+            return idle.poll();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (idle) {
+            idle.forEach(KicomAvConnection::close);
+            idle.clear();
+        }
+    }
+}
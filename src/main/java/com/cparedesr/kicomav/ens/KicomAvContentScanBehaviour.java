@@ -5,29 +5,64 @@ import org.alfresco.repo.policy.JavaBehaviour;
 import org.alfresco.repo.policy.PolicyComponent;
 import org.alfresco.repo.policy.Behaviour.NotificationFrequency;
 import org.alfresco.repo.content.ContentServicePolicies;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
 import org.alfresco.service.cmr.repository.*;
 import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
 import org.alfresco.util.PropertyCheck;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Behaviour que escanea contenido en onContentUpdate.
+ * Behaviour que escanea contenido en onContentUpdate (u onContentPropertyUpdate).
  *
  * Cambio clave:
  *  - failOpen configurable: si KicomAV falla (caído / timeout / respuesta rara),
  *    puedes elegir si bloquear la subida (fail-closed) o permitirla (fail-open).
+ *  - si el contenido está en un fichero local (FileContentStore) se envía sin copia
+ *    (FileChannel.transferTo), o k2d lo escanea en su sitio si comparte el volumen
+ *    (av.kicomav.byReference.*); para el resto de stores se copia el stream como siempre.
+ *  - las URLs de contenido de Alfresco son inmutables: con av.kicomav.urlCache.enabled el veredicto
+ *    se recuerda por URL (y versión de firmas), así que copias, checkouts y versiones que reutilizan
+ *    el mismo binario no se vuelven a leer ni a enviar a k2d.
+ *  - asyncMode (av.kicomav.async.enabled): la subida no espera a k2d; el nodo queda con
+ *    kav:pendingScan y {@link KicomAvScanQueue} lo escanea tras el commit. La lectura de contenido
+ *    de nodos kav:pendingScan o kav:quarantined se deniega siempre.
+ *  - batchEnabled (av.kicomav.batch.enabled): los nodos escritos en una misma transacción (zip,
+ *    subida masiva, lote CMIS) se escanean en paralelo en beforeCommit, así que la transacción tarda
+ *    lo que el más lento y no la suma; una infección sigue haciendo rollback.
+ *  - los eventos repetidos de un mismo nodo y URL de contenido dentro de una transacción se ignoran
+ *    (métrica scan.duplicateEvents) una vez hay veredicto (o el nodo está en cola o en el lote); tras
+ *    un fallo con failOpen el siguiente evento lo vuelve a intentar.
+ *  - contentPropertyUpdate (av.kicomav.contentPropertyUpdate.enabled): con onContentPropertyUpdate se
+ *    escanea cualquier propiedad d:content, y sólo si el binario cambió (otra URL o tamaño).
  */
-public class KicomAvContentScanBehaviour implements ContentServicePolicies.OnContentUpdatePolicy {
+public class KicomAvContentScanBehaviour implements ContentServicePolicies.OnContentUpdatePolicy,
+        ContentServicePolicies.OnContentPropertyUpdatePolicy, ContentServicePolicies.OnContentReadPolicy {
 
     private static final Logger LOG = LoggerFactory.getLogger(KicomAvContentScanBehaviour.class);
 
+    private static final String TXN_BATCH = KicomAvContentScanBehaviour.class.getName() + ".batch";
+    private static final String TXN_SEEN = KicomAvContentScanBehaviour.class.getName() + ".seen";
+
     private PolicyComponent policyComponent;
     private ContentService contentService;
     private NodeService nodeService;
     private KicomAvRestClient kicomAvClient;
+    private KicomAvScanQueue scanQueue;
+    private KicomAvMetrics metrics = new KicomAvMetrics();
 
     private QName classQName = ContentModel.TYPE_CONTENT;
 
@@ -37,66 +72,296 @@ public class KicomAvContentScanBehaviour implements ContentServicePolicies.OnCon
      */
     private boolean failOpen = false;
 
+    /**
+     * Si true: se escanea tras el commit ({@link KicomAvScanQueue}) en lugar de dentro de la subida.
+     */
+    private boolean asyncMode = false;
+
+    /**
+     * Si false: no se escanea en el behaviour (p.ej. porque escanea el content store); la denegación
+     * de lectura de nodos pendientes o en cuarentena se mantiene.
+     */
+    private boolean enabled = true;
+
+    /**
+     * Si true: se usa onContentPropertyUpdate (valor anterior y nuevo de cada propiedad d:content) en
+     * lugar de onContentUpdate (sólo cm:content, sin saber si el binario cambió).
+     */
+    private boolean contentPropertyUpdate = false;
+
+    /**
+     * Si true: los nodos escritos en una transacción se escanean juntos y en paralelo en beforeCommit.
+     */
+    private boolean batchEnabled = false;
+    private int batchParallelism = 8;
+    private ExecutorService batchExecutor;
+
     public void init() {
         PropertyCheck.mandatory(this, "policyComponent", policyComponent);
         PropertyCheck.mandatory(this, "contentService", contentService);
         PropertyCheck.mandatory(this, "nodeService", nodeService);
         PropertyCheck.mandatory(this, "kicomAvClient", kicomAvClient);
+        if (asyncMode) {
+            PropertyCheck.mandatory(this, "scanQueue", scanQueue);
+        }
 
-        JavaBehaviour behaviour = new JavaBehaviour(this, "onContentUpdate", NotificationFrequency.EVERY_EVENT);
+        if (batchEnabled) {
+            AtomicInteger seq = new AtomicInteger();
+            // sin cola: si no hay worker libre escanea el hilo de la transacción (acota hilos y memoria)
+            batchExecutor = new ThreadPoolExecutor(0, batchParallelism, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "kicomav-batch-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.CallerRunsPolicy());
+        }
 
-        policyComponent.bindClassBehaviour(
-                ContentServicePolicies.OnContentUpdatePolicy.QNAME,
-                classQName,
-                behaviour
-        );
+        if (!enabled) {
+            // el escaneo lo hace el content store (av.kicomav.store.scanEnabled)
+            LOG.info("[KicomAV] Behaviour de escaneo desactivado");
+        } else if (contentPropertyUpdate) {
+            policyComponent.bindClassBehaviour(
+                    ContentServicePolicies.OnContentPropertyUpdatePolicy.QNAME,
+                    classQName,
+                    new JavaBehaviour(this, "onContentPropertyUpdate", NotificationFrequency.EVERY_EVENT)
+            );
+        } else {
+            JavaBehaviour behaviour = new JavaBehaviour(this, "onContentUpdate", NotificationFrequency.EVERY_EVENT);
 
-        LOG.info("[KicomAV] Behaviour inicializado y bind a {} (failOpen={})", classQName, failOpen);
+            policyComponent.bindClassBehaviour(
+                    ContentServicePolicies.OnContentUpdatePolicy.QNAME,
+                    classQName,
+                    behaviour
+            );
+        }
+
+        // Pendiente de escaneo o en cuarentena: no se sirve el contenido
+        JavaBehaviour denyRead = new JavaBehaviour(this, "onContentRead", NotificationFrequency.EVERY_EVENT);
+        policyComponent.bindClassBehaviour(ContentServicePolicies.OnContentReadPolicy.QNAME,
+                KicomAvModel.ASPECT_PENDING_SCAN, denyRead);
+        policyComponent.bindClassBehaviour(ContentServicePolicies.OnContentReadPolicy.QNAME,
+                KicomAvModel.ASPECT_QUARANTINED, denyRead);
+
+        LOG.info("[KicomAV] Behaviour inicializado y bind a {} (failOpen={}, asyncMode={}, batchEnabled={}, contentPropertyUpdate={})",
+                classQName, failOpen, asyncMode, batchEnabled, contentPropertyUpdate);
+    }
+
+    public void destroy() {
+        if (batchExecutor != null) batchExecutor.shutdownNow();
     }
 
     @Override
     public void onContentUpdate(NodeRef nodeRef, boolean newContent) {
         if (nodeRef == null) return;
 
+        LOG.debug("[KicomAV] onContentUpdate node={} newContent={}", nodeRef, newContent);
+        contentChanged(nodeRef, ContentModel.PROP_CONTENT);
+    }
+
+    @Override
+    public void onContentPropertyUpdate(NodeRef nodeRef, QName propertyQName, ContentData beforeValue, ContentData afterValue) {
+        if (nodeRef == null || !ContentData.hasContent(afterValue)) return;
+
+        // Las URLs de contenido son inmutables: misma URL (y tamaño) = mismo binario, p.ej. al cambiar
+        // sólo el mimetype o el encoding
+        if (beforeValue != null
+                && Objects.equals(beforeValue.getContentUrl(), afterValue.getContentUrl())
+                && beforeValue.getSize() == afterValue.getSize()) {
+            metrics.increment("scan.unchangedContent");
+            LOG.debug("[KicomAV] binario sin cambios, no se escanea: node={} property={}", nodeRef, propertyQName);
+            return;
+        }
+
+        LOG.debug("[KicomAV] onContentPropertyUpdate node={} property={} url={}",
+                nodeRef, propertyQName, afterValue.getContentUrl());
+        contentChanged(nodeRef, propertyQName);
+    }
+
+    private void contentChanged(NodeRef nodeRef, QName propertyQName) {
         if (!nodeService.exists(nodeRef)) {
             LOG.debug("[KicomAV] node no existe: {}", nodeRef);
             return;
         }
 
-        ContentReader reader = contentService.getReader(nodeRef, ContentModel.PROP_CONTENT);
+        ContentReader reader = rawReader(nodeRef, propertyQName);
         if (reader == null || !reader.exists()) {
             LOG.debug("[KicomAV] sin contenido para escanear: {}", nodeRef);
             return;
         }
 
+        String contentUrl = reader.getContentUrl();
+        if (seenInTransaction(nodeRef, contentUrl)) {
+            metrics.increment("scan.duplicateEvents");
+            LOG.debug("[KicomAV] evento repetido en la transacción, ya escaneado: node={} url={}",
+                    nodeRef, reader.getContentUrl());
+            return;
+        }
+
         String name = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
 
-        LOG.debug("[KicomAV] onContentUpdate node={} name={} newContent={} size={}",
-                nodeRef, name, newContent, reader.getSize());
+        LOG.debug("[KicomAV] contenido a escanear: node={} name={} property={} size={}",
+                nodeRef, name, propertyQName, reader.getSize());
+
+        // la cola asíncrona escanea cm:content; el resto de propiedades d:content se escanea aquí
+        if (asyncMode && ContentModel.PROP_CONTENT.equals(propertyQName) && !scanQueue.isSaturated()) {
+            Map<QName, Serializable> props = new HashMap<>();
+            props.put(KicomAvModel.PROP_QUEUED_AT, new Date());
+            nodeService.addAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN, props);
+            scanQueue.enqueueAfterCommit(nodeRef);
+            markSeen(nodeRef, contentUrl);
+            LOG.debug("[KicomAV] escaneo diferido tras el commit: node={} name={}", nodeRef, name);
+            return;
+        }
+        // con la cola llena se escanea aquí mismo: la subida espera (contrapresión)
+
+        if (batchEnabled && AlfrescoTransactionSupport.getTransactionReadState() == TxnReadState.TXN_READ_WRITE) {
+            batchNodes().add(new Pair<>(nodeRef, propertyQName));
+            markSeen(nodeRef, contentUrl);
+            LOG.debug("[KicomAV] escaneo agrupado en beforeCommit: node={} name={}", nodeRef, name);
+            return;
+        }
+
+        if (checkContent(nodeRef, name, () -> scanContent(kicomAvClient, reader, name))) {
+            markSeen(nodeRef, contentUrl);
+        }
+    }
+
+    /**
+     * Reader del binario actual de {@code propertyQName} por su URL, como en {@link KicomAvScanQueue}:
+     * {@code contentService.getReader(nodo, propiedad)} dispara OnContentReadPolicy, que deniega la
+     * lectura de nodos {@code kav:pendingScan} o {@code kav:quarantined}, y haría fallar la subida de
+     * una versión nueva de esos nodos o un segundo evento en la misma transacción.
+     *
+     * @return null si la propiedad no tiene contenido
+     */
+    private ContentReader rawReader(NodeRef nodeRef, QName propertyQName) {
+        Serializable value = nodeService.getProperty(nodeRef, propertyQName);
+        if (!(value instanceof ContentData) || !ContentData.hasContent((ContentData) value)) {
+            return null;
+        }
+        return contentService.getRawReader(((ContentData) value).getContentUrl());
+    }
+
+    /**
+     * Reglas, extracción de metadatos o versionado pueden lanzar onContentUpdate varias veces para el
+     * mismo nodo en una transacción: cada par (nodo, URL de contenido) se procesa una sola vez.
+     *
+     * @return true si el par ya tiene veredicto (o está en cola o en el lote) en la transacción actual
+     */
+    private boolean seenInTransaction(NodeRef nodeRef, String contentUrl) {
+        Set<String> seen = seenPairs(false);
+        return seen != null && contentUrl != null && seen.contains(nodeRef + "|" + contentUrl);
+    }
 
-        try (InputStream in = reader.getContentInputStream()) {
+    /**
+     * Se marca sólo cuando hay veredicto: un fallo dejado pasar con failOpen no cuenta como escaneado.
+     */
+    private void markSeen(NodeRef nodeRef, String contentUrl) {
+        Set<String> seen = seenPairs(true);
+        if (seen != null && contentUrl != null) {
+            seen.add(nodeRef + "|" + contentUrl);
+        }
+    }
 
-            KicomAvScanResult result = kicomAvClient.scan(in, name);
+    private Set<String> seenPairs(boolean create) {
+        if (AlfrescoTransactionSupport.getTransactionReadState() != TxnReadState.TXN_READ_WRITE) {
+            return null;
+        }
+        Set<String> seen = AlfrescoTransactionSupport.getResource(TXN_SEEN);
+        if (seen == null && create) {
+            seen = new HashSet<>();
+            AlfrescoTransactionSupport.bindResource(TXN_SEEN, seen);
+        }
+        return seen;
+    }
+
+    /**
+     * Contenidos (nodo, propiedad) de la transacción actual pendientes del escaneo en beforeCommit; la primera vez registra
+     * el listener que los escanea. El listener desliga el lote antes de escanearlo: lo que se escriba después en
+     * beforeCommit (reglas, otros listeners) abre un lote nuevo con su propio listener, que Alfresco también ejecuta.
+     */
+    private Set<Pair<NodeRef, QName>> batchNodes() {
+        Set<Pair<NodeRef, QName>> nodes = AlfrescoTransactionSupport.getResource(TXN_BATCH);
+        if (nodes == null) {
+            Set<Pair<NodeRef, QName>> batch = new LinkedHashSet<>();
+            AlfrescoTransactionSupport.bindResource(TXN_BATCH, batch);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    AlfrescoTransactionSupport.unbindResource(TXN_BATCH);
+                    scanAll(batch);
+                }
+            });
+            nodes = batch;
+        }
+        return nodes;
+    }
 
-            if (result.isInfected()) {
-                String creator = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_CREATOR);
+    /**
+     * Escanea en paralelo el contenido actual de cada par (nodo, propiedad d:content) (en {@code batchExecutor}) y aplica el
+     * resultado de cada uno como en el modo síncrono: la primera infección o fallo bloqueante corta
+     * el resto y lanza la excepción, que hace rollback de la transacción. Nodos, readers y
+     * propiedades se leen en el hilo de la transacción; en los workers sólo se escanea.
+     */
+    void scanAll(Collection<Pair<NodeRef, QName>> contents) {
+        List<NodeRef> nodes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<Future<KicomAvScanResult>> scans = new ArrayList<>();
+        try {
+            for (Pair<NodeRef, QName> content : contents) {
+                NodeRef nodeRef = content.getFirst();
+                if (!nodeService.exists(nodeRef)) continue;
+                ContentReader reader = rawReader(nodeRef, content.getSecond());
+                if (reader == null || !reader.exists()) continue;
+                String name = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
 
-                // Según lo que hablamos: infección como INFO (aunque en producción suele ser WARN/ERROR)
-                LOG.info("[KicomAV] INFECCIÓN detectada: signature='{}' node={} name={} creator={}",
-                        result.getSignature(), nodeRef, name, creator);
+                nodes.add(nodeRef);
+                names.add(name);
+                scans.add(batchExecutor.submit(() -> scanContent(kicomAvClient, reader, name)));
+            }
+            LOG.debug("[KicomAV] beforeCommit: escaneando {} nodos en paralelo", scans.size());
 
-                // Bloquea subida
-                throw new KicomAvException("Fichero infectado: " + result.getSignature());
+            for (int i = 0; i < scans.size(); i++) {
+                Future<KicomAvScanResult> scan = scans.get(i);
+                checkContent(nodes.get(i), names.get(i), () -> await(scan));
             }
+        } finally {
+            for (Future<KicomAvScanResult> scan : scans) {
+                scan.cancel(true);
+            }
+        }
+    }
+
+    private static KicomAvScanResult await(Future<KicomAvScanResult> scan) throws Exception {
+        try {
+            return scan.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
 
-            LOG.info("[KicomAV] Nodo limpio: node={} name={}", nodeRef, name);
+    /**
+     * Aplica el veredicto de {@code scan} al nodo: infectado bloquea siempre; un fallo del AV bloquea
+     * o se deja pasar según {@code failOpen}.
+     *
+     * @return true si el contenido está limpio; false si falló el escaneo y se dejó pasar (failOpen)
+     */
+    private boolean checkContent(NodeRef nodeRef, String name, ScanCall scan) {
+        KicomAvScanResult result;
+        try {
+            result = scan.call();
 
         } catch (KicomAvException e) {
-            // Si viene de infección o del cliente, decidir failOpen/failClosed
+            // Fallo del cliente (caído, timeout, circuito abierto...): decidir failOpen/failClosed
             if (failOpen) {
                 LOG.warn("[KicomAV] AV falló pero failOpen=true, permitiendo subida. node={} name={} cause={}",
                         nodeRef, name, e.toString());
-                return;
+                return false;
             }
             throw e;
 
@@ -105,13 +370,102 @@ public class KicomAvContentScanBehaviour implements ContentServicePolicies.OnCon
             if (failOpen) {
                 LOG.warn("[KicomAV] Error inesperado escaneando pero failOpen=true, permitiendo subida. node={} name={} cause={}",
                         nodeRef, name, e.toString(), e);
-                return;
+                return false;
             }
 
             LOG.info("[KicomAV] Error escaneando. Bloqueando subida. node={} name={} cause={}",
                     nodeRef, name, e.toString(), e);
             throw new KicomAvException("Error al escanear con KicomAV: " + e.getMessage(), e);
         }
+
+        // El veredicto se aplica fuera del try: una infección bloquea siempre, también con failOpen
+        if (result.isInfected()) {
+            String creator = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_CREATOR);
+
+            // Según lo que hablamos: infección como INFO (aunque en producción suele ser WARN/ERROR)
+            LOG.info("[KicomAV] INFECCIÓN detectada: signature='{}' node={} name={} creator={}",
+                    result.getSignature(), nodeRef, name, creator);
+
+            // Bloquea subida
+            throw new KicomAvException("Fichero infectado: " + result.getSignature());
+        }
+
+        LOG.info("[KicomAV] Nodo limpio: node={} name={}", nodeRef, name);
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface ScanCall {
+        KicomAvScanResult call() throws Exception;
+    }
+
+    @Override
+    public void onContentRead(NodeRef nodeRef) {
+        if (nodeRef == null || !nodeService.exists(nodeRef)) return;
+
+        if (nodeService.hasAspect(nodeRef, KicomAvModel.ASPECT_QUARANTINED)) {
+            throw new KicomAvException("Contenido en cuarentena por KicomAV: " + nodeRef);
+        }
+        if (nodeService.hasAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN)) {
+            throw new KicomAvException("Contenido pendiente de análisis antivirus: " + nodeRef);
+        }
+    }
+
+    /**
+     * Veredicto del contenido de {@code reader}: el recordado para su URL si lo hay; si no, lo
+     * escanea (por fichero si es local, una sola vez aunque varios hilos lo pidan a la vez) y lo
+     * recuerda. Lo comparten el modo síncrono y {@link KicomAvScanQueue}.
+     */
+    static KicomAvScanResult scanContent(KicomAvRestClient kicomAvClient, ContentReader reader, String name)
+            throws IOException {
+        String contentUrl = reader.getContentUrl();
+        String verdictKey = contentUrl != null ? kicomAvClient.contentUrlKey(contentUrl) : null;
+        KicomAvScanResult known = verdictKey != null ? kicomAvClient.getVerdict(verdictKey) : null;
+        if (known != null) {
+            LOG.debug("[KicomAV] binario ya escaneado, sin reenviar: url={} name={}", contentUrl, name);
+            return known;
+        }
+
+        if (verdictKey == null) {
+            return scan(kicomAvClient, reader, name);
+        }
+        // si otro hilo ya escanea este binario (copia masiva, reglas) se espera su veredicto
+        return kicomAvClient.scanOnce(verdictKey, () -> {
+            KicomAvScanResult result = scan(kicomAvClient, reader, name);
+            kicomAvClient.putVerdict(verdictKey, result);
+            return result;
+        });
+    }
+
+    private static KicomAvScanResult scan(KicomAvRestClient kicomAvClient, ContentReader reader, String name)
+            throws IOException {
+        Path file = localFile(reader);
+
+        try (InputStream in = file == null ? reader.getContentInputStream() : null) {
+
+            // Si el healthcheck ya sabe que k2d está caído, se decide failOpen/failClosed sin subir nada
+            if (kicomAvClient.isKnownDown()) {
+                throw new KicomAvException("KicomAV no disponible (healthcheck)");
+            }
+
+            return file != null
+                    ? kicomAvClient.scanFile(file, name)
+                    : kicomAvClient.scan(in, name);
+        }
+    }
+
+    /**
+     * Fichero del {@code FileContentStore} que respalda al reader, o null si el store no es local
+     * (S3, cifrado, caché...) y hay que leer el stream.
+     */
+    private static Path localFile(ContentReader reader) {
+        if (reader instanceof FileContentReader) {
+            File file = ((FileContentReader) reader).getFile();
+            if (file != null && file.isFile()) {
+                return file.toPath();
+            }
+        }
+        return null;
     }
 
     // Setters Spring
@@ -131,6 +485,10 @@ public class KicomAvContentScanBehaviour implements ContentServicePolicies.OnCon
         this.kicomAvClient = kicomAvClient;
     }
 
+    public void setMetrics(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+    }
+
     public void setClassQName(QName classQName) {
         this.classQName = classQName;
     }
@@ -138,4 +496,28 @@ public class KicomAvContentScanBehaviour implements ContentServicePolicies.OnCon
     public void setFailOpen(boolean failOpen) {
         this.failOpen = failOpen;
     }
+
+    public void setAsyncMode(boolean asyncMode) {
+        this.asyncMode = asyncMode;
+    }
+
+    public void setScanQueue(KicomAvScanQueue scanQueue) {
+        this.scanQueue = scanQueue;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setContentPropertyUpdate(boolean contentPropertyUpdate) {
+        this.contentPropertyUpdate = contentPropertyUpdate;
+    }
+
+    public void setBatchEnabled(boolean batchEnabled) {
+        this.batchEnabled = batchEnabled;
+    }
+
+    public void setBatchParallelism(int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+    }
 }
\ No newline at end of file
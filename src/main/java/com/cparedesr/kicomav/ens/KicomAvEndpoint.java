@@ -0,0 +1,192 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One k2d instance behind {@link KicomAvRestClient}, with the state the client needs to balance
+ * scans across several of them.
+ * <p>
+ * Each endpoint owns its {@link KicomAvTransport} (and therefore its connection pool), an optional
+ * {@link KicomAvHealthMonitor}, the number of outstanding requests and an EWMA of the scan latency.
+ * An endpoint is ejected when a request fails at transport level: with the health check enabled it
+ * comes back as soon as a probe succeeds; without it, once {@code av.kicomav.lb.ejectionMs} has
+ * passed. Independently, an optional {@link KicomAvCircuitBreaker} rejects scans without network
+ * I/O while the endpoint keeps failing.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvEndpoint {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvEndpoint.class);
+
+    /**
+     * Peso de la última muestra en la media móvil exponencial de latencia.
+     */
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final String name;
+    private final URI uri;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private KicomAvMetrics metrics;
+
+    volatile KicomAvTransport transport;
+    volatile KicomAvHealthMonitor healthMonitor;
+    volatile KicomAvCircuitBreaker breaker;
+
+    private volatile double ewmaMillis;
+    private volatile long ejectedUntilNanos;
+    private volatile boolean ejected;
+
+    KicomAvEndpoint(String name, URI uri, KicomAvMetrics metrics) {
+        this.name = name;
+        this.uri = uri;
+        setMetrics(metrics);
+    }
+
+    void setMetrics(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+        metrics.registerGauge("lb." + name + ".outstanding", outstanding::get);
+        metrics.registerGauge("lb." + name + ".ewmaMs", () -> Math.round(ewmaMillis));
+    }
+
+    String getName() {
+        return name;
+    }
+
+    URI getUri() {
+        return uri;
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    double getEwmaMillis() {
+        return ewmaMillis;
+    }
+
+    /**
+     * @return true si puede recibir tráfico: healthcheck en verde o, sin healthcheck, fuera del
+     * periodo de expulsión.
+     */
+    boolean isAvailable() {
+        KicomAvHealthMonitor monitor = healthMonitor;
+        if (monitor != null) {
+            return monitor.isHealthy();
+        }
+        if (ejected && System.nanoTime() - ejectedUntilNanos >= 0) {
+            ejected = false;
+            metrics.increment("lb.readmissions");
+            LOG.info("[KicomAV] endpoint {} readmitido tras el periodo de expulsión", this);
+        }
+        return !ejected;
+    }
+
+    /**
+     * Coste de enviar una petición más a este endpoint para la estrategia dada: peticiones en
+     * curso, o éstas ponderadas por la latencia media observada.
+     */
+    double cost(String strategy) {
+        int inFlight = outstanding.get() + 1;
+        if ("ewma".equals(strategy)) {
+            return inFlight * Math.max(ewmaMillis, 1.0);
+        }
+        return inFlight;
+    }
+
+    /**
+     * Reserva permiso en el circuit breaker, si lo hay.
+     */
+    boolean tryAcquire() {
+        KicomAvCircuitBreaker b = breaker;
+        return b == null || b.tryAcquire();
+    }
+
+    /**
+     * @return false si el circuit breaker rechazaría ahora mismo cualquier petición.
+     */
+    boolean isCallPermitted() {
+        KicomAvCircuitBreaker b = breaker;
+        return b == null || b.isCallPermitted();
+    }
+
+    // Resultado de una petición autorizada con tryAcquire()
+    void recordSuccess() {
+        KicomAvCircuitBreaker b = breaker;
+        if (b != null) b.onSuccess();
+    }
+
+    void recordFailure() {
+        KicomAvCircuitBreaker b = breaker;
+        if (b != null) b.onFailure();
+    }
+
+    void recordIgnored() {
+        KicomAvCircuitBreaker b = breaker;
+        if (b != null) b.onIgnored();
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Cierra una petición iniciada con {@link #begin()}; sólo las terminadas con éxito alimentan la
+     * media de latencia.
+     */
+    void end(long elapsedNanos, boolean success) {
+        outstanding.decrementAndGet();
+        if (success) {
+            double sample = elapsedNanos / 1_000_000.0;
+            synchronized (this) {
+                ewmaMillis = ewmaMillis == 0 ? sample : ewmaMillis + EWMA_ALPHA * (sample - ewmaMillis);
+            }
+        }
+    }
+
+    /**
+     * Saca el endpoint del reparto tras un fallo de transporte.
+     */
+    void eject(String reason, long ejectionMs) {
+        KicomAvHealthMonitor monitor = healthMonitor;
+        if (monitor != null) {
+            if (monitor.isHealthy()) metrics.increment("lb.ejections");
+            monitor.markDown(reason);
+            return;
+        }
+        ejectedUntilNanos = System.nanoTime() + ejectionMs * 1_000_000L;
+        if (!ejected) {
+            ejected = true;
+            metrics.increment("lb.ejections");
+            LOG.warn("[KicomAV] endpoint {} expulsado durante {} ms: {}", this, ejectionMs, reason);
+        }
+    }
+
+    String getLastError() {
+        KicomAvHealthMonitor monitor = healthMonitor;
+        return monitor != null ? monitor.getLastError() : null;
+    }
+
+    void close() {
+        KicomAvHealthMonitor monitor = healthMonitor;
+        if (monitor != null) {
+            monitor.stop();
+            healthMonitor = null;
+        }
+        KicomAvTransport t = transport;
+        if (t != null) {
+            t.close();
+            transport = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
@@ -0,0 +1,168 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local blocklist of SHA-256 hashes of known malware, used to reject repeated samples (the same
+ * attachment sent to many mailboxes) without a k2d round trip.
+ * <p>
+ * It is filled in two ways: every infected verdict obtained for a known hash is learned (up to
+ * {@code maxEntries}, kept in memory), and an optional feed file ({@code feedFile}) is loaded at
+ * startup and reloaded when it changes, checked every {@code feedReloadMs}. The feed has one
+ * {@code <sha256> <signature>} per line; blank lines and lines starting with {@code #} are ignored.
+ * Unlike the verdict caches, entries do not depend on the signature version: known malware stays
+ * malware.
+ * <p>
+ * Metrics: {@code blocklist.hits}, {@code blocklist.learned}, {@code blocklist.full} and gauges
+ * {@code blocklist.size}, {@code blocklist.feedSize}.
+ *
+ * @author cparedesr
+ */
+
+public class KicomAvHashBlocklist {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvHashBlocklist.class);
+
+    private KicomAvMetrics metrics = new KicomAvMetrics();
+
+    private boolean enabled = false;
+    private int maxEntries = 100_000;
+    private Path feedFile;
+    private long feedReloadMs = 300_000;
+
+    private final Map<String, String> learned = new ConcurrentHashMap<>();
+    private volatile Map<String, String> feed = Map.of();
+    private long feedModified = Long.MIN_VALUE;
+    private ScheduledExecutorService reloader;
+
+    public void init() {
+        if (!enabled) return;
+        metrics.registerGauge("blocklist.size", learned::size);
+        metrics.registerGauge("blocklist.feedSize", () -> feed.size());
+        if (feedFile != null) {
+            reloadFeed();
+            if (feedReloadMs > 0) {
+                reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "kicomav-blocklist");
+                    t.setDaemon(true);
+                    return t;
+                });
+                reloader.scheduleWithFixedDelay(this::reloadFeed, feedReloadMs, feedReloadMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        LOG.info("[KicomAV] lista local de hashes de malware: maxEntries={} feedFile={} ({} hashes)",
+                maxEntries, feedFile, feed.size());
+    }
+
+    public void destroy() {
+        if (reloader != null) reloader.shutdownNow();
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param sha256Hex SHA-256 del contenido en hexadecimal
+     * @return la firma del malware conocido con ese hash, o null si no está en la lista.
+     */
+    String signature(String sha256Hex) {
+        if (!enabled) return null;
+        String signature = feed.get(sha256Hex);
+        if (signature == null) signature = learned.get(sha256Hex);
+        if (signature != null) metrics.increment("blocklist.hits");
+        return signature;
+    }
+
+    /**
+     * Añade el hash de un contenido que k2d ha dado por infectado; si la lista está llena no se añade.
+     */
+    void learn(String sha256Hex, String signature) {
+        if (!enabled || feed.containsKey(sha256Hex)) return;
+        if (learned.size() >= maxEntries && !learned.containsKey(sha256Hex)) {
+            metrics.increment("blocklist.full");
+            return;
+        }
+        if (learned.put(sha256Hex, signature) == null) {
+            metrics.increment("blocklist.learned");
+        }
+    }
+
+    /**
+     * Vuelve a leer el fichero de hashes si ha cambiado; si no se puede leer se mantiene lo cargado.
+     */
+    synchronized void reloadFeed() {
+        try {
+            long modified = Files.getLastModifiedTime(feedFile).toMillis();
+            if (modified == feedModified) return;
+            Map<String, String> loaded = new HashMap<>();
+            int invalid = 0;
+            try (BufferedReader in = Files.newBufferedReader(feedFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) continue;
+                    String[] parts = line.split("[\\s,;]+", 2);
+                    if (!isSha256(parts[0])) {
+                        invalid++;
+                        continue;
+                    }
+                    loaded.put(parts[0].toLowerCase(Locale.ROOT), parts.length > 1 ? parts[1] : "INFECTED");
+                }
+            }
+            feed = Map.copyOf(loaded);
+            feedModified = modified;
+            LOG.info("[KicomAV] lista de hashes de malware cargada de {}: {} hashes ({} líneas no válidas)",
+                    feedFile, loaded.size(), invalid);
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("[KicomAV] no se pudo leer la lista de hashes {}: {}", feedFile, e.toString());
+        }
+    }
+
+    private static boolean isSha256(String s) {
+        if (s.length() != 64) return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    // Setters Spring
+    public void setMetrics(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Fichero de hashes importado (vacío = sólo los aprendidos de veredictos anteriores).
+     */
+    public void setFeedFile(String feedFile) {
+        this.feedFile = feedFile == null || feedFile.isBlank() ? null
+                : Path.of(feedFile.trim()).toAbsolutePath().normalize();
+    }
+
+    public void setFeedReloadMs(long feedReloadMs) {
+        this.feedReloadMs = feedReloadMs;
+    }
+}
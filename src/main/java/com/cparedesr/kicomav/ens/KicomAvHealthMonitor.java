@@ -0,0 +1,109 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodic health checker for a k2d endpoint.
+ * <p>
+ * Runs the given probe (normally {@code GET /ping}) every {@code intervalMs} on the owner's
+ * scheduler and keeps the last known state, so the scan path can read it without any network
+ * call. The state starts as healthy (optimistic) until the first probe says otherwise, and
+ * {@link #markDown(String)} lets the owner record a failure seen on real traffic right away.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvHealthMonitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvHealthMonitor.class);
+
+    @FunctionalInterface
+    interface Probe {
+        void check() throws Exception;
+    }
+
+    private final String name;
+    private final Probe probe;
+    private final long intervalMs;
+    private final KicomAvMetrics metrics;
+
+    private volatile boolean healthy = true;
+    private volatile long lastCheckMillis;
+    private volatile String lastError;
+    private ScheduledFuture<?> task;
+
+    KicomAvHealthMonitor(String name, Probe probe, long intervalMs, KicomAvMetrics metrics) {
+        this.name = name;
+        this.probe = probe;
+        this.intervalMs = intervalMs;
+        this.metrics = metrics;
+
+        metrics.registerGauge("health." + name + ".up", () -> healthy ? 1L : 0L);
+    }
+
+    synchronized void start(ScheduledExecutorService scheduler) {
+        if (task == null) {
+            task = scheduler.scheduleWithFixedDelay(this::probeNow, 0L, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Ejecuta la sonda de forma síncrona y actualiza el estado.
+     */
+    void probeNow() {
+        metrics.increment("health.probes");
+        try {
+            probe.check();
+            lastCheckMillis = System.currentTimeMillis();
+            markUp();
+        } catch (Exception e) {
+            lastCheckMillis = System.currentTimeMillis();
+            metrics.increment("health.probeFailures");
+            markDown(e.toString());
+        }
+    }
+
+    void markDown(String reason) {
+        lastError = reason;
+        if (healthy) {
+            healthy = false;
+            LOG.warn("[KicomAV] {} marcado como NO disponible: {}", name, reason);
+        }
+    }
+
+    private void markUp() {
+        if (!healthy) {
+            healthy = true;
+            LOG.info("[KicomAV] {} disponible de nuevo", name);
+        }
+        lastError = null;
+    }
+
+    boolean isHealthy() {
+        return healthy;
+    }
+
+    long getLastCheckMillis() {
+        return lastCheckMillis;
+    }
+
+    String getLastError() {
+        return lastError;
+    }
+
+    String getName() {
+        return name;
+    }
+}
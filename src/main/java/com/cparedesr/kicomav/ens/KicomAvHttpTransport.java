@@ -0,0 +1,428 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link KicomAvTransport} for the k2d REST API ({@code GET /ping}, {@code GET /version},
+ * {@code POST /scan/file}, {@code POST /scan/path}).
+ * <p>
+ * Minimal HTTP/1.1 client over pooled keep-alive connections: the multipart body is streamed
+ * with {@code Transfer-Encoding: chunked} and the connection only goes back to the pool when the
+ * response has been read completely and the server did not ask to close it. Local files
+ * ({@link #scanFile(Path, String, int)}) go with a {@code Content-Length} instead, so the file part
+ * can be handed to the socket with {@code FileChannel.transferTo}. {@code /scan/path} receives
+ * {@code {"path": "..."}} and scans a file k2d reads from its own filesystem.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvHttpTransport implements KicomAvTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvHttpTransport.class);
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int MAX_LINE = 8 * 1024;
+
+    private final String baseUrl;
+    private final String host;
+    private final int port;
+    private final String basePath;
+    private final KicomAvConnectionPool pool;
+    private volatile boolean scanPathSupported = true;
+
+    KicomAvHttpTransport(URI uri, KicomAvTransportConfig config) {
+        if (uri.getHost() == null) {
+            throw new IllegalArgumentException("baseUrl sin host: " + uri);
+        }
+        boolean tls = "https".equalsIgnoreCase(uri.getScheme());
+        this.baseUrl = uri.toString();
+        this.host = uri.getHost();
+        this.port = uri.getPort() > 0 ? uri.getPort() : (tls ? 443 : 80);
+        this.basePath = uri.getRawPath() == null ? "" : uri.getRawPath();
+        this.pool = config.newPool(() -> KicomAvConnection.openTcp(host, port, tls, config.connectTimeoutMs));
+    }
+
+    @Override
+    public void ping(int timeoutMs) throws IOException {
+        String url = baseUrl + "/ping";
+        HttpResponse response = execute("GET", "/ping", null, -1, timeoutMs, null, true);
+        String norm = response.body.trim().toLowerCase();
+
+        if (!response.isSuccess() || !(norm.contains("pong") || norm.contains("ok"))) {
+            throw new KicomAvException("KicomAV /ping falló. url=" + url + " HTTP=" + response.code
+                    + " body=" + response.body);
+        }
+
+        LOG.debug("[KicomAV] ping ok: {}", response.body.isEmpty() ? "(empty)" : response.body.trim());
+    }
+
+    @Override
+    public String version(int timeoutMs) throws IOException {
+        HttpResponse response = execute("GET", "/version", null, -1, timeoutMs, null, true);
+        String version = response.body.trim();
+
+        if (!response.isSuccess() || version.isEmpty()) {
+            throw new KicomAvException("KicomAV /version falló. url=" + baseUrl + "/version HTTP=" + response.code
+                    + " body=" + response.body);
+        }
+        return version;
+    }
+
+    @Override
+    public KicomAvScanResult scan(InputStream data, String filename, int timeoutMs) throws IOException {
+        final String boundary = "----AlfrescoKicomAV" + System.currentTimeMillis();
+        final String safeName = (filename == null || filename.isBlank()) ? "upload.bin" : filename;
+
+        HttpResponse response = execute("POST", "/scan/file", "multipart/form-data; boundary=" + boundary, -1,
+                timeoutMs, (out, con) -> {
+                    out.write(multipartHead(boundary, safeName));
+
+                    long total = data.transferTo(out);
+
+                    out.write(multipartTail(boundary));
+
+                    LOG.debug("[KicomAV] enviado /scan/file ({} bytes) filename={}", total, safeName);
+                });
+
+        return verdict(response);
+    }
+
+    @Override
+    public KicomAvScanResult scanFile(Path file, String filename, int timeoutMs) throws IOException {
+        final String boundary = "----AlfrescoKicomAV" + System.currentTimeMillis();
+        final String safeName = (filename == null || filename.isBlank()) ? "upload.bin" : filename;
+        final byte[] head = multipartHead(boundary, safeName);
+        final byte[] tail = multipartTail(boundary);
+
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = fc.size();
+            HttpResponse response = execute("POST", "/scan/file", "multipart/form-data; boundary=" + boundary,
+                    head.length + size + tail.length, timeoutMs, (out, con) -> {
+                        out.write(head);
+                        con.transferFrom(fc, 0, size);
+                        out.write(tail);
+
+                        LOG.debug("[KicomAV] enviado /scan/file sin copia ({} bytes) filename={}", size, safeName);
+                    });
+
+            return verdict(response);
+        }
+    }
+
+    /**
+     * Un 4xx significa que k2d no puede leer la ruta (no existe en su volumen, sin permisos...) y el
+     * llamante envía el contenido; 405 o 501, que esta versión de k2d no tiene {@code /scan/path}, y
+     * no se vuelve a intentar. Un 5xx es un fallo de k2d como en {@code /scan/file}.
+     */
+    @Override
+    public KicomAvScanResult scanPath(String path, String filename, int timeoutMs) throws IOException {
+        if (!scanPathSupported) {
+            throw new NoSuchFileException(path, null, "k2d no admite /scan/path");
+        }
+        final byte[] json = ("{\"path\":\"" + escapeJson(path) + "\"}").getBytes(StandardCharsets.UTF_8);
+
+        HttpResponse response = execute("POST", "/scan/path", "application/json", json.length, timeoutMs,
+                (out, con) -> out.write(json));
+        LOG.debug("[KicomAV] respuesta /scan/path HTTP={} body={} filename={}", response.code, response.body, filename);
+
+        if (response.code == 405 || response.code == 501) {
+            scanPathSupported = false;
+            LOG.warn("[KicomAV] {} no admite /scan/path (HTTP={}); se enviará siempre el contenido",
+                    baseUrl, response.code);
+            throw new NoSuchFileException(path, null, "HTTP=" + response.code);
+        }
+        if (response.code >= 400 && response.code < 500) {
+            throw new NoSuchFileException(path, null, "HTTP=" + response.code + " body=" + response.body);
+        }
+        if (!response.isSuccess()) {
+            throw new KicomAvException("KicomAV /scan/path falló. url=" + baseUrl + "/scan/path HTTP="
+                    + response.code + " body=" + response.body);
+        }
+        return KicomAvResponseParser.parse(path, response.body);
+    }
+
+    private KicomAvScanResult verdict(HttpResponse response) {
+        LOG.debug("[KicomAV] respuesta HTTP={} body={}", response.code, response.body);
+
+        if (!response.isSuccess()) {
+            throw new KicomAvException("KicomAV /scan/file falló. url=" + baseUrl + "/scan/file HTTP="
+                    + response.code + " body=" + response.body);
+        }
+
+        return KicomAvResponseParser.parse(response.body);
+    }
+
+    private static byte[] multipartHead(String boundary, String safeName) {
+        return ("--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + escapeQuotes(safeName) + "\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] multipartTail(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public void evictIdle() {
+        pool.evictIdle();
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return baseUrl;
+    }
+
+    /**
+     * Ejecuta una petición HTTP/1.1 sobre una conexión del pool. El cuerpo, si lo hay, se envía con
+     * {@code Transfer-Encoding: chunked} o, si se conoce su tamaño ({@code contentLength >= 0}), con
+     * {@code Content-Length}; la conexión sólo vuelve al pool si la respuesta se ha leído completa y
+     * el servidor no pidió cerrarla.
+     */
+    private HttpResponse execute(String method, String path, String contentType, long contentLength, int timeoutMs,
+                                 BodyWriter body) throws IOException {
+        return execute(method, path, contentType, contentLength, timeoutMs, body, false);
+    }
+
+    /**
+     * @param probe {@code /ping} o {@code /version}: no espera a que los escaneos liberen una conexión
+     *              ({@link KicomAvConnectionPool#leaseForProbe()}).
+     */
+    private HttpResponse execute(String method, String path, String contentType, long contentLength, int timeoutMs,
+                                 BodyWriter body, boolean probe) throws IOException {
+        KicomAvConnection con = probe ? pool.leaseForProbe() : pool.lease();
+        boolean reusable = false;
+        try {
+            con.setReadTimeout(timeoutMs);
+            OutputStream out = con.out();
+
+            StringBuilder head = new StringBuilder(256)
+                    .append(method).append(' ').append(basePath).append(path).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(host).append(':').append(port).append("\r\n")
+                    .append("User-Agent: alfresco-kicomav-ens\r\n")
+                    .append("Accept: */*\r\n");
+            if (body != null) {
+                head.append("Content-Type: ").append(contentType).append("\r\n");
+                if (contentLength >= 0) {
+                    head.append("Content-Length: ").append(contentLength).append("\r\n");
+                } else {
+                    head.append("Transfer-Encoding: chunked\r\n");
+                }
+            }
+            head.append("\r\n");
+            writeAscii(out, head.toString());
+
+            if (body != null && contentLength >= 0) {
+                body.writeTo(out, con);
+            } else if (body != null) {
+                ChunkedOutputStream chunked = new ChunkedOutputStream(out, CHUNK_SIZE);
+                body.writeTo(chunked, con);
+                chunked.finish();
+            }
+            out.flush();
+
+            HttpResponse response = readResponse(con.in(), method);
+            reusable = response.keepAlive;
+            return response;
+        } finally {
+            pool.release(con, reusable);
+        }
+    }
+
+    private static HttpResponse readResponse(InputStream in, String method) throws IOException {
+        String statusLine;
+        Map<String, String> headers;
+        int code;
+        do {
+            statusLine = readLine(in);
+            if (statusLine == null) throw new EOFException("KicomAV cerró la conexión sin responder");
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Línea de estado HTTP inválida: " + statusLine);
+            }
+            try {
+                code = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Línea de estado HTTP inválida: " + statusLine, e);
+            }
+            headers = readHeaders(in);
+        } while (code >= 100 && code < 200);
+
+        boolean keepAlive = !statusLine.startsWith("HTTP/1.0");
+        String connection = headers.get("connection");
+        if (connection != null) {
+            String c = connection.toLowerCase();
+            if (c.contains("close")) keepAlive = false;
+            else if (c.contains("keep-alive")) keepAlive = true;
+        }
+
+        byte[] body;
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (method.equals("HEAD") || code == 204 || code == 304) {
+            body = new byte[0];
+        } else if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+            body = readChunked(in);
+        } else if (contentLength != null) {
+            int length = Integer.parseInt(contentLength.trim());
+            body = in.readNBytes(length);
+            // cuerpo incompleto: la conexión no puede volver al pool
+            if (body.length < length) {
+                throw new EOFException("Respuesta truncada: " + body.length + " de " + length + " bytes");
+            }
+        } else {
+            body = in.readAllBytes();
+            keepAlive = false;
+        }
+
+        return new HttpResponse(code, new String(body, StandardCharsets.UTF_8), keepAlive);
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int idx = line.indexOf(':');
+            if (idx > 0) {
+                headers.put(line.substring(0, idx).trim().toLowerCase(), line.substring(idx + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        while (true) {
+            String sizeLine = readLine(in);
+            if (sizeLine == null) throw new EOFException("Respuesta chunked truncada");
+            int semi = sizeLine.indexOf(';');
+            int size = Integer.parseInt((semi >= 0 ? sizeLine.substring(0, semi) : sizeLine).trim(), 16);
+            if (size == 0) {
+                readHeaders(in); // trailers
+                return baos.toByteArray();
+            }
+            baos.write(in.readNBytes(size));
+            readLine(in);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+                return sb.toString();
+            }
+            if (sb.length() >= MAX_LINE) throw new IOException("Línea HTTP demasiado larga");
+            sb.append((char) b);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void writeAscii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String escapeQuotes(String s) {
+        return s.replace("\"", "\\\"");
+    }
+
+    private static String escapeJson(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    @FunctionalInterface
+    private interface BodyWriter {
+        void writeTo(OutputStream out, KicomAvConnection con) throws IOException;
+    }
+
+    private static final class HttpResponse {
+        final int code;
+        final String body;
+        final boolean keepAlive;
+
+        HttpResponse(int code, String body, boolean keepAlive) {
+            this.code = code;
+            this.body = body;
+            this.keepAlive = keepAlive;
+        }
+
+        boolean isSuccess() {
+            return code >= 200 && code < 300;
+        }
+    }
+
+    /**
+     * Codifica el cuerpo en trozos HTTP/1.1 de como mucho {@code chunkSize} bytes.
+     * No cierra el stream subyacente: la conexión vuelve al pool.
+     */
+    private static final class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buf;
+        private int count;
+
+        ChunkedOutputStream(OutputStream out, int chunkSize) {
+            this.out = out;
+            this.buf = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) flushChunk();
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buf.length) flushChunk();
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        void finish() throws IOException {
+            flushChunk();
+            writeAscii(out, "0\r\n\r\n");
+        }
+
+        private void flushChunk() throws IOException {
+            if (count == 0) return;
+            writeAscii(out, Integer.toHexString(count) + "\r\n");
+            out.write(buf, 0, count);
+            writeAscii(out, "\r\n");
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.cparedesr.kicomav.ens;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latency of the most recent scans in a fixed ring and answers percentile queries.
+ * <p>
+ * The percentile is recomputed (copy and sort of the ring) at most once every
+ * {@code RECOMPUTE_EVERY} new samples, so asking for it on every scan costs a field read.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvLatencyTracker {
+
+    private static final int RECOMPUTE_EVERY = 32;
+
+    private final long[] samples;
+    private final double percentile;
+    private int next;
+    private int count;
+    private int sinceRecompute;
+    private volatile long cachedNanos;
+
+    KicomAvLatencyTracker(int size, double percentile) {
+        if (size <= 0 || percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("size > 0 y percentile en (0, 100]");
+        }
+        this.samples = new long[size];
+        this.percentile = percentile;
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+        if (++sinceRecompute >= RECOMPUTE_EVERY || count < RECOMPUTE_EVERY) {
+            sinceRecompute = 0;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int idx = (int) Math.ceil(percentile / 100.0 * count) - 1;
+            cachedNanos = sorted[Math.max(0, Math.min(idx, count - 1))];
+        }
+    }
+
+    /**
+     * @return el percentil configurado de las últimas muestras, en ms; 0 si aún no hay ninguna.
+     */
+    long percentileMillis() {
+        return cachedNanos / 1_000_000L;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+}
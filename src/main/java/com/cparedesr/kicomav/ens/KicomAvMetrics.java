@@ -0,0 +1,61 @@
+package com.cparedesr.kicomav.ens;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal metrics registry shared by the KicomAV components.
+ * <p>
+ * Holds named monotonic counters and gauges (values computed on demand). The whole registry
+ * is exposed over JMX from {@code service-context.xml}, so operators can read it with any
+ * JMX console without extra dependencies.
+ *
+ * @author cparedesr
+ */
+
+public class KicomAvMetrics {
+
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    public void increment(String name) {
+        add(name, 1L);
+    }
+
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0L : counter.sum();
+    }
+
+    public void registerGauge(String name, LongSupplier supplier) {
+        gauges.put(name, supplier);
+    }
+
+    public long getGauge(String name) {
+        LongSupplier gauge = gauges.get(name);
+        return gauge == null ? 0L : gauge.getAsLong();
+    }
+
+    /**
+     * @return copia ordenada de todos los contadores y gauges en el momento de la llamada
+     */
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> snapshot.put(name, gauge.getAsLong()));
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString();
+    }
+}
@@ -0,0 +1,28 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.service.namespace.QName;
+
+/**
+ * QNames of the module content model ({@code model/kicomav-model.xml}).
+ * <ul>
+ *   <li>{@code kav:pendingScan}: the content was stored but the asynchronous scan has not finished;
+ *       reads are denied until it does.</li>
+ *   <li>{@code kav:quarantined}: k2d reported the content as infected after commit; reads are denied.</li>
+ * </ul>
+ *
+ * @author cparedesr
+ */
+
+public interface KicomAvModel {
+
+    String NAMESPACE = "http://www.cparedesr.com/model/kicomav/1.0";
+    String PREFIX = "kav";
+
+    QName ASPECT_PENDING_SCAN = QName.createQName(NAMESPACE, "pendingScan");
+    QName PROP_QUEUED_AT = QName.createQName(NAMESPACE, "queuedAt");
+    QName PROP_SCAN_ERROR = QName.createQName(NAMESPACE, "scanError");
+
+    QName ASPECT_QUARANTINED = QName.createQName(NAMESPACE, "quarantined");
+    QName PROP_SIGNATURE = QName.createQName(NAMESPACE, "signature");
+    QName PROP_QUARANTINED_AT = QName.createQName(NAMESPACE, "quarantinedAt");
+}
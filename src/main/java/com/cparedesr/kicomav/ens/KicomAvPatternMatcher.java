@@ -0,0 +1,292 @@
+package com.cparedesr.kicomav.ens;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Multi-pattern byte matcher (Aho-Corasick) used to pre-filter content in the JVM while it is being
+ * written, so that obvious malware is rejected before k2d answers.
+ * <p>
+ * The automaton is compiled into a full transition table ({@code states x 256} ints), so matching
+ * costs one array lookup per byte, with no allocation and no failure-link walk; a transition into a
+ * state where some pattern ends is stored negated, so the inner loop has a single well-predicted
+ * branch. While the automaton is in its root state, positions whose two bytes do not begin any
+ * pattern are skipped with an 8 KB bigram bitmap: that loop does not depend on the automaton state,
+ * so the CPU can overlap iterations, and it is where almost all of the bytes of clean content go.
+ * Patterns marked as anchored (magic bytes) only match at offset 0 and are compared against
+ * the first bytes of the content instead. A compiled matcher is immutable and shared; each content
+ * is matched through its own {@link Stream}, and only the first match is reported.
+ * <p>
+ * Pattern files have one {@code <name> [^]text:<bytes>} or {@code <name> [^]hex:<bytes>} per line
+ * ({@code ^} = only at offset 0); blank lines and lines starting with {@code #} are ignored.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvPatternMatcher {
+
+    // partido en dos para que el propio código no se detecte como EICAR
+    private static final String EICAR = "X5O!P%@AP[4\\PZX54(P^)7CC)7}$" + "EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*";
+    private static final int MAX_STATES = 1 << 14;
+
+    private final String[] names;
+    private final int[] delta;
+    private final int[] output;
+    private final long[] starts;
+    private final byte[][] anchored;
+    private final int[] anchoredIds;
+    private final int headBytes;
+
+    private KicomAvPatternMatcher(String[] names, int[] delta, int[] output, long[] starts, byte[][] anchored,
+                                  int[] anchoredIds) {
+        this.names = names;
+        this.delta = delta;
+        this.output = output;
+        this.starts = starts;
+        this.anchored = anchored;
+        this.anchoredIds = anchoredIds;
+        int max = 0;
+        for (byte[] p : anchored) max = Math.max(max, p.length);
+        this.headBytes = max;
+    }
+
+    /**
+     * Patrones por defecto: la cadena de prueba EICAR al principio del contenido, como la detecta k2d;
+     * un documento que sólo la cita (manuales de antivirus, correos) no se rechaza.
+     */
+    static KicomAvPatternMatcher defaults() {
+        return compile(List.of("Eicar-Test-Signature ^text:" + EICAR));
+    }
+
+    static KicomAvPatternMatcher load(Path file) throws IOException {
+        return compile(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compila las líneas de un fichero de patrones.
+     *
+     * @throws IllegalArgumentException si alguna línea no es válida o el autómata es demasiado grande.
+     */
+    static KicomAvPatternMatcher compile(List<String> lines) {
+        List<String> names = new ArrayList<>();
+        List<byte[]> floating = new ArrayList<>();
+        List<Integer> floatingIds = new ArrayList<>();
+        List<byte[]> anchored = new ArrayList<>();
+        List<Integer> anchoredIds = new ArrayList<>();
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] parts = line.split("\\s+", 2);
+            if (parts.length < 2) {
+                throw new IllegalArgumentException("[KicomAV] patrón sin valor en la línea " + (n + 1) + ": " + line);
+            }
+            String value = parts[1];
+            boolean atStart = value.startsWith("^");
+            if (atStart) value = value.substring(1);
+            byte[] bytes;
+            if (value.startsWith("text:")) {
+                bytes = value.substring(5).getBytes(StandardCharsets.ISO_8859_1);
+            } else if (value.startsWith("hex:")) {
+                try {
+                    bytes = HexFormat.of().parseHex(value.substring(4).replace(" ", ""));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("[KicomAV] hex no válido en la línea " + (n + 1) + ": " + line, e);
+                }
+            } else {
+                throw new IllegalArgumentException("[KicomAV] el patrón debe empezar por text: o hex: (línea " + (n + 1) + ")");
+            }
+            if (bytes.length == 0) {
+                throw new IllegalArgumentException("[KicomAV] patrón vacío en la línea " + (n + 1));
+            }
+            (atStart ? anchored : floating).add(bytes);
+            (atStart ? anchoredIds : floatingIds).add(names.size());
+            names.add(parts[0]);
+        }
+        return build(names, floating, floatingIds, anchored, anchoredIds);
+    }
+
+    private static KicomAvPatternMatcher build(List<String> names, List<byte[]> patterns, List<Integer> ids,
+                                               List<byte[]> anchored, List<Integer> anchoredIds) {
+        int capacity = 1;
+        for (byte[] p : patterns) capacity += p.length;
+        if (capacity > MAX_STATES) {
+            throw new IllegalArgumentException("[KicomAV] demasiados patrones: " + capacity + " estados (máximo " + MAX_STATES + ")");
+        }
+        int[] next = new int[capacity * 256];
+        Arrays.fill(next, -1);
+        int[] output = new int[capacity];
+        Arrays.fill(output, -1);
+        int states = 1;
+
+        // trie
+        for (int i = 0; i < patterns.size(); i++) {
+            int s = 0;
+            for (byte b : patterns.get(i)) {
+                int slot = s * 256 + (b & 0xFF);
+                if (next[slot] < 0) next[slot] = states++;
+                s = next[slot];
+            }
+            if (output[s] < 0) output[s] = ids.get(i);
+        }
+
+        // enlaces de fallo resueltos en la tabla: cada estado tiene las 256 transiciones
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < 256; c++) {
+            if (next[c] < 0) {
+                next[c] = 0;
+            } else {
+                fail[next[c]] = 0;
+                queue.add(next[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int r = queue.poll();
+            if (output[r] < 0) output[r] = output[fail[r]];
+            for (int c = 0; c < 256; c++) {
+                int t = next[r * 256 + c];
+                if (t < 0) {
+                    next[r * 256 + c] = next[fail[r] * 256 + c];
+                } else {
+                    fail[t] = next[fail[r] * 256 + c];
+                    queue.add(t);
+                }
+            }
+        }
+
+        // pares de bytes con los que empieza algún patrón (los de un byte valen con cualquier segundo)
+        long[] starts = new long[65536 / 64];
+        for (byte[] p : patterns) {
+            int first = (p[0] & 0xFF) << 8;
+            for (int second = 0; second < 256; second++) {
+                if (p.length == 1 || (p[1] & 0xFF) == second) {
+                    starts[(first | second) >>> 6] |= 1L << second;
+                }
+            }
+        }
+
+        int[] delta = new int[states * 256];
+        for (int i = 0; i < delta.length; i++) {
+            int t = next[i];
+            delta[i] = output[t] >= 0 ? ~(t << 8) : t << 8;
+        }
+        return new KicomAvPatternMatcher(names.toArray(new String[0]), delta, Arrays.copyOf(output, states),
+                starts, anchored.toArray(new byte[0][]), anchoredIds.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    Stream stream() {
+        return new Stream();
+    }
+
+    /**
+     * Estado del emparejamiento de un contenido, que se recibe por trozos.
+     */
+    final class Stream {
+
+        private final byte[] head = new byte[headBytes];
+        private int headFill;
+        private int state;
+        private int match = -1;
+
+        /**
+         * @return true si con estos bytes (o antes) ha aparecido algún patrón.
+         */
+        boolean update(byte[] b, int off, int len) {
+            if (match >= 0) return true;
+            for (int i = off; i < off + len && headFill < headBytes; i++) {
+                toHead(b[i]);
+            }
+            if (match >= 0) return true;
+
+            int[] d = delta;
+            long[] bigrams = starts;
+            int s = state;
+            for (int i = off, end = off + len; i < end; i++) {
+                if (s == 0) {
+                    // en la raíz: se salta hasta donde pueda empezar un patrón
+                    while (i < end - 1) {
+                        int pair = (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+                        if ((bigrams[pair >>> 6] & 1L << pair) != 0) break;
+                        i++;
+                    }
+                }
+                s = d[s | (b[i] & 0xFF)];
+                if (s < 0) {
+                    match = output[~s >>> 8];
+                    return true;
+                }
+            }
+            state = s;
+            return false;
+        }
+
+        /**
+         * Como {@link #update(byte[], int, int)} con los bytes entre la posición y el límite de
+         * {@code buf}, sin moverlos.
+         */
+        boolean update(ByteBuffer buf) {
+            if (buf.hasArray()) {
+                return update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            }
+            if (match >= 0) return true;
+            int from = buf.position();
+            int end = buf.limit();
+            for (int i = from; i < end && headFill < headBytes; i++) {
+                toHead(buf.get(i));
+            }
+            if (match >= 0) return true;
+
+            int[] d = delta;
+            long[] bigrams = starts;
+            int s = state;
+            for (int i = from; i < end; i++) {
+                if (s == 0) {
+                    while (i < end - 1) {
+                        int pair = (buf.get(i) & 0xFF) << 8 | (buf.get(i + 1) & 0xFF);
+                        if ((bigrams[pair >>> 6] & 1L << pair) != 0) break;
+                        i++;
+                    }
+                }
+                s = d[s | (buf.get(i) & 0xFF)];
+                if (s < 0) {
+                    match = output[~s >>> 8];
+                    return true;
+                }
+            }
+            state = s;
+            return false;
+        }
+
+        /**
+         * @return el nombre del patrón encontrado, o null.
+         */
+        String matched() {
+            return match < 0 ? null : names[match];
+        }
+
+        /**
+         * Primeros bytes del contenido: se comparan con los patrones anclados al completar cada uno.
+         */
+        private void toHead(byte b) {
+            head[headFill++] = b;
+            for (int i = 0; i < anchored.length && match < 0; i++) {
+                byte[] p = anchored[i];
+                if (p.length == headFill && Arrays.equals(head, 0, headFill, p, 0, p.length)) {
+                    match = anchoredIds[i];
+                }
+            }
+        }
+    }
+}
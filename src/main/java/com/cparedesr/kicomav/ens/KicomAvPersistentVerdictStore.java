@@ -0,0 +1,394 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Durable verdict store on top of Alfresco's {@link AttributeService} (repository database), so
+ * that verdicts survive restarts and rolling deploys.
+ * <p>
+ * Nothing is loaded at startup: {@link KicomAvRestClient} asks this store only after a miss in its
+ * in-memory caches, and copies what it finds into them. Writes never block the caller: verdicts
+ * are queued (up to {@code queueCapacity}, further ones are dropped) and written every
+ * {@code flushIntervalMs} in batches of up to {@code batchSize} per transaction.
+ * <p>
+ * Keys are those of the in-memory caches, which already carry the k2d signature version; the
+ * value holds the verdict and the time it was obtained, and entries older than {@code ttlMs} are
+ * ignored. Every {@code purgeIntervalMs} expired entries, and those whose key carries a signature
+ * version other than the current one, are removed in transactions of up to {@code purgeBatchSize}
+ * keys, so the table does not keep growing with verdicts nobody will read again. Metrics:
+ * {@code persistent.writes}, {@code persistent.dropped}, {@code persistent.errors},
+ * {@code persistent.purged} and gauge {@code persistent.queue}.
+ * <p>
+ * With {@code bloomEnabled} a {@link KicomAvBloomFilter} of the stored keys sits in front of the
+ * database: a key the filter has never seen is a miss without a query. The filter is updated on
+ * every {@link #put}, saved to {@code bloomPath} on shutdown and loaded (and the file removed) at
+ * startup. Without a saved filter, e.g. after a crash, it is rebuilt lazily instead of reading every
+ * stored key in one long transaction: for {@code ttlMs} every lookup goes to the database and the
+ * keys found there or put are added; after that any key stored before startup has expired, so the
+ * filter is complete and starts answering. In a cluster a node's filter does
+ * not see what other nodes store after it was built, so their verdicts may be missed and scanned
+ * again; a stale filter costs scans, never a wrong verdict. Metrics: {@code persistent.bloomNegatives},
+ * {@code persistent.bloomFalsePositives} and gauges {@code persistent.bloomFalsePositivePpm}
+ * (observed) and {@code persistent.bloomExpectedFppPpm} (from the filter's occupancy).
+ *
+ * @author cparedesr
+ */
+
+public class KicomAvPersistentVerdictStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvPersistentVerdictStore.class);
+
+    private static final String ATTR_ROOT = "kicomav.verdicts";
+
+    private AttributeService attributeService;
+    private TransactionService transactionService;
+    private KicomAvMetrics metrics = new KicomAvMetrics();
+
+    private boolean enabled = false;
+    private long ttlMs = 7 * 24 * 60 * 60 * 1000L;
+    private int queueCapacity = 10_000;
+    private int batchSize = 200;
+    private long flushIntervalMs = 2000;
+    private long purgeIntervalMs = 60 * 60 * 1000L;
+    private int purgeBatchSize = 500;
+    private volatile Supplier<String> versionSource = () -> null;
+    private boolean bloomEnabled = false;
+    private long bloomExpectedEntries = 10_000_000L;
+    private double bloomFpp = 0.01;
+    private Path bloomPath;
+
+    private BlockingQueue<Pending> queue;
+    private ScheduledExecutorService flusher;
+    private KicomAvBloomFilter bloom;
+    private volatile boolean bloomReady;
+    private long bloomReadyAt;
+
+    public void init() {
+        if (!enabled) return;
+        PropertyCheck.mandatory(this, "attributeService", attributeService);
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Pending> q = queue;
+        metrics.registerGauge("persistent.queue", q::size);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kicomav-verdict-store");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+        if (purgeIntervalMs > 0) {
+            flusher.scheduleWithFixedDelay(this::purge, purgeIntervalMs, purgeIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        if (bloomEnabled) {
+            initBloom();
+        }
+        LOG.info("[KicomAV] veredictos persistidos en AttributeService: ttlMs={} batchSize={} flushIntervalMs={} purgeIntervalMs={}",
+                ttlMs, batchSize, flushIntervalMs, purgeIntervalMs);
+    }
+
+    public void destroy() {
+        if (flusher == null) return;
+        flusher.shutdownNow();
+        // lo pendiente se intenta guardar al parar; si falla se pierde (sólo es una caché)
+        flush();
+        // a medio completar no se guarda: el siguiente arranque vuelve a empezar
+        if (isBloomReady() && bloomPath != null) {
+            try {
+                bloom.save(bloomPath);
+                LOG.info("[KicomAV] filtro Bloom de veredictos guardado en {}", bloomPath);
+            } catch (IOException e) {
+                LOG.warn("[KicomAV] no se pudo guardar el filtro Bloom en {}: {}", bloomPath, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Carga el filtro guardado al parar o, si no lo hay, empieza uno vacío que se completa durante
+     * {@code ttlMs}. El fichero se borra al cargarlo: sólo es fiable si se guardó al parar, y tras
+     * una caída no lo habrá.
+     */
+    private void initBloom() {
+        KicomAvBloomFilter empty = KicomAvBloomFilter.create(bloomExpectedEntries, bloomFpp);
+        KicomAvBloomFilter saved = null;
+        if (bloomPath != null) {
+            try {
+                saved = KicomAvBloomFilter.load(bloomPath, empty);
+                Files.deleteIfExists(bloomPath);
+            } catch (IOException e) {
+                LOG.warn("[KicomAV] no se pudo leer el filtro Bloom de {}: {}", bloomPath, e.toString());
+            }
+        }
+        KicomAvBloomFilter filter = saved != null ? saved : empty;
+        bloom = filter;
+        metrics.registerGauge("persistent.bloomExpectedFppPpm", () -> Math.round(filter.expectedFpp() * 1e6));
+        metrics.registerGauge("persistent.bloomFalsePositivePpm", () -> {
+            long falsePositives = metrics.getCount("persistent.bloomFalsePositives");
+            long absent = falsePositives + metrics.getCount("persistent.bloomNegatives");
+            return absent == 0 ? 0 : falsePositives * 1_000_000 / absent;
+        });
+        if (saved != null) {
+            bloomReady = true;
+            LOG.info("[KicomAV] filtro Bloom de veredictos cargado de {}", bloomPath);
+            return;
+        }
+        // sin recorrer la BD: lo anterior al arranque habrá caducado dentro de ttlMs
+        bloomReadyAt = System.currentTimeMillis() + ttlMs;
+        LOG.info("[KicomAV] filtro Bloom de veredictos sin guardar; se completa con el uso y se aplica en {} ms", ttlMs);
+    }
+
+    /**
+     * @return el veredicto guardado para {@code key} en la tabla {@code table}, o null si no lo hay,
+     * ha caducado o la base de datos no responde.
+     */
+    KicomAvScanResult get(String table, String key) {
+        if (!enabled) return null;
+        KicomAvBloomFilter filter = isBloomReady() ? bloom : null;
+        if (filter != null && !filter.mightContain(table, key)) {
+            metrics.increment("persistent.bloomNegatives");
+            return null;
+        }
+        Serializable value;
+        try {
+            value = transactionService.getRetryingTransactionHelper().doInTransaction(
+                    () -> attributeService.getAttribute(ATTR_ROOT, table, key), true, false);
+        } catch (RuntimeException e) {
+            metrics.increment("persistent.errors");
+            LOG.debug("[KicomAV] no se pudo leer el veredicto persistido: {}", e.toString());
+            return null;
+        }
+        if (filter != null && value == null) {
+            metrics.increment("persistent.bloomFalsePositives");
+        }
+        KicomAvScanResult result = value instanceof String ? decode((String) value) : null;
+        if (result != null && filter == null && bloom != null) {
+            // calentando: se aprende lo que ya estaba guardado
+            bloom.add(table, key);
+        }
+        return result;
+    }
+
+    /**
+     * Encola el veredicto para guardarlo en el siguiente lote; nunca espera.
+     */
+    void put(String table, String key, KicomAvScanResult result) {
+        if (!enabled) return;
+        if (bloom != null) {
+            bloom.add(table, key);
+        }
+        if (!queue.offer(new Pending(table, key, encode(result, System.currentTimeMillis())))) {
+            metrics.increment("persistent.dropped");
+        }
+    }
+
+    void flush() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        RetryingTransactionHelper txn = transactionService.getRetryingTransactionHelper();
+        while (queue.drainTo(batch, batchSize) > 0) {
+            try {
+                txn.doInTransaction(() -> {
+                    for (Pending p : batch) {
+                        attributeService.setAttribute(p.value, ATTR_ROOT, p.table, p.key);
+                    }
+                    return null;
+                }, false, true);
+                metrics.add("persistent.writes", batch.size());
+            } catch (RuntimeException e) {
+                metrics.increment("persistent.errors");
+                LOG.warn("[KicomAV] no se pudieron persistir {} veredictos: {}", batch.size(), e.toString());
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Borra las entradas caducadas o de otra versión de firmas, en lotes de {@code purgeBatchSize}: cada
+     * lote se busca en una transacción de lectura que se corta al llenarlo y se borra en otra. Entre
+     * lote y lote se escribe lo encolado, que comparte hilo con la purga.
+     *
+     * @return número de entradas borradas
+     */
+    int purge() {
+        RetryingTransactionHelper txn = transactionService.getRetryingTransactionHelper();
+        String version = versionSource.get();
+        long now = System.currentTimeMillis();
+        int purged = 0;
+        try {
+            while (true) {
+                List<Serializable[]> stale = new ArrayList<>(purgeBatchSize);
+                txn.doInTransaction(() -> {
+                    attributeService.getAttributes((id, value, keys) -> {
+                        if (isStale(value, keys, version, now)) {
+                            stale.add(keys);
+                        }
+                        return stale.size() < purgeBatchSize;
+                    }, ATTR_ROOT);
+                    return null;
+                }, true, false);
+                if (stale.isEmpty()) break;
+
+                txn.doInTransaction(() -> {
+                    for (Serializable[] keys : stale) {
+                        attributeService.removeAttribute(keys);
+                    }
+                    return null;
+                }, false, true);
+                purged += stale.size();
+                metrics.add("persistent.purged", stale.size());
+                if (stale.size() < purgeBatchSize) break;
+                flush();
+            }
+        } catch (RuntimeException e) {
+            metrics.increment("persistent.errors");
+            LOG.warn("[KicomAV] purga de veredictos persistidos interrumpida tras {} borrados: {}", purged, e.toString());
+        }
+        if (purged > 0) {
+            LOG.info("[KicomAV] purgados {} veredictos persistidos caducados o de otra versión de firmas", purged);
+        }
+        return purged;
+    }
+
+    /**
+     * Caducada, ilegible o con una versión de firmas en la clave distinta de {@code version} (null =
+     * versión aún desconocida: sólo cuenta la caducidad).
+     */
+    private boolean isStale(Serializable value, Serializable[] keys, String version, long now) {
+        if (keys.length != 3 || !(value instanceof String)) return true;
+        String stored = (String) value;
+        int bar = stored.indexOf('|');
+        try {
+            if (bar < 0 || now - Long.parseLong(stored.substring(0, bar)) >= ttlMs) return true;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        if (version == null) return false;
+        // claves "versión:sha256" (tabla h) y "versión|url" (tabla u)
+        String prefix = version + ("h".equals(keys[1]) ? ":" : "|");
+        return !String.valueOf(keys[2]).startsWith(prefix);
+    }
+
+    /**
+     * @return true si el filtro se cargó al arrancar o ya pasó {@code ttlMs} completándolo
+     */
+    boolean isBloomReady() {
+        if (!bloomReady && bloom != null && System.currentTimeMillis() >= bloomReadyAt) {
+            bloomReady = true;
+        }
+        return bloomReady;
+    }
+
+    /**
+     * {@code <ms>|C} o {@code <ms>|I|<firma>}.
+     */
+    static String encode(KicomAvScanResult result, long timestampMs) {
+        return timestampMs + (result.isInfected() ? "|I|" + result.getSignature() : "|C");
+    }
+
+    private KicomAvScanResult decode(String value) {
+        int bar = value.indexOf('|');
+        if (bar < 0 || bar + 1 >= value.length()) return null;
+        try {
+            long storedAt = Long.parseLong(value.substring(0, bar));
+            if (System.currentTimeMillis() - storedAt >= ttlMs) return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return value.charAt(bar + 1) == 'I'
+                ? KicomAvScanResult.infected(value.substring(Math.min(bar + 3, value.length())))
+                : KicomAvScanResult.clean();
+    }
+
+    // Setters Spring
+    public void setAttributeService(AttributeService attributeService) {
+        this.attributeService = attributeService;
+    }
+
+    public void setTransactionService(TransactionService transactionService) {
+        this.transactionService = transactionService;
+    }
+
+    public void setMetrics(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setTtlMs(long ttlMs) {
+        this.ttlMs = ttlMs;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    public void setPurgeIntervalMs(long purgeIntervalMs) {
+        this.purgeIntervalMs = purgeIntervalMs;
+    }
+
+    public void setPurgeBatchSize(int purgeBatchSize) {
+        this.purgeBatchSize = purgeBatchSize;
+    }
+
+    /**
+     * Versión de firmas vigente (la de las claves que aún sirven); la fija {@link KicomAvRestClient}.
+     */
+    void setVersionSource(Supplier<String> versionSource) {
+        this.versionSource = versionSource;
+    }
+
+    public void setBloomEnabled(boolean bloomEnabled) {
+        this.bloomEnabled = bloomEnabled;
+    }
+
+    public void setBloomExpectedEntries(long bloomExpectedEntries) {
+        this.bloomExpectedEntries = bloomExpectedEntries;
+    }
+
+    public void setBloomFpp(double bloomFpp) {
+        this.bloomFpp = bloomFpp;
+    }
+
+    /**
+     * Fichero donde se guarda el filtro al parar (vacío = se reconstruye en cada arranque).
+     */
+    public void setBloomPath(String bloomPath) {
+        this.bloomPath = bloomPath == null || bloomPath.isBlank() ? null
+                : Path.of(bloomPath.trim()).toAbsolutePath().normalize();
+    }
+
+    private static final class Pending {
+        final String table;
+        final String key;
+        final String value;
+
+        Pending(String table, String key, String value) {
+            this.table = table;
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
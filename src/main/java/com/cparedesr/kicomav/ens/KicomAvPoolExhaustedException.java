@@ -0,0 +1,16 @@
+package com.cparedesr.kicomav.ens;
+
+/**
+ * Thrown by {@link KicomAvConnectionPool#lease()} when no connection frees up within the lease
+ * timeout. It means this node has too many scans in flight, not that k2d failed, so it must not
+ * count against the endpoint's circuit breaker.
+ *
+ * @author cparedesr
+ */
+
+class KicomAvPoolExhaustedException extends KicomAvException {
+
+    KicomAvPoolExhaustedException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,105 @@
+package com.cparedesr.kicomav.ens;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tolerant parser for k2d scan verdicts, shared by every transport.
+ * <p>
+ * Understands the clamd-style text replies ({@code "stream: OK"}, {@code "stream: Sig FOUND"})
+ * returned by both the socket protocol and {@code /scan/file}, plus the JSON shapes of the REST API
+ * ({@code status}, {@code infected}, {@code result}). Anything else is a {@link KicomAvException}.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvResponseParser {
+
+    private KicomAvResponseParser() {
+    }
+
+    static KicomAvScanResult parse(String body) {
+        if (body == null || body.trim().isEmpty()) {
+            return KicomAvScanResult.clean();
+        }
+
+        String b = body.trim();
+        String lower = b.toLowerCase();
+        if (lower.contains("found")) {
+            String sig = b.replaceFirst("(?i)^.*?:\\s*", "")
+                    .replaceFirst("(?i)\\s+FOUND\\s*$", "");
+            return KicomAvScanResult.infected(sig);
+        }
+
+        if (lower.contains(" ok") || lower.equals("ok") || lower.contains("clean") || lower.contains("no virus")) {
+            return KicomAvScanResult.clean();
+        }
+
+        if (lower.contains("\"status\"")) {
+            String status = extractJsonString(b, "status");
+            if (status != null) {
+                String st = status.trim().toLowerCase();
+
+                if (st.contains("infect")) {
+                    String sig = extractJsonString(b, "malware");
+                    if (sig == null) sig = extractJsonString(b, "signature");
+                    if (sig == null) sig = extractJsonString(b, "sig");
+                    return KicomAvScanResult.infected(sig);
+                }
+
+                if (st.equals("clean") || st.equals("ok")) {
+                    return KicomAvScanResult.clean();
+                }
+
+                if (st.equals("error")) {
+                    String err = extractJsonString(b, "error");
+                    throw new KicomAvException("KicomAV devolvió status=error: " + err + " body=" + b);
+                }
+            }
+        }
+
+        if (lower.contains("\"infected\"")) {
+            if (lower.matches("(?s).*\"infected\"\\s*:\\s*(true|1).*")) {
+                String sig = extractJsonString(b, "signature");
+                if (sig == null) sig = extractJsonString(b, "sig");
+                return KicomAvScanResult.infected(sig);
+            }
+            if (lower.matches("(?s).*\"infected\"\\s*:\\s*(false|0).*")) {
+                return KicomAvScanResult.clean();
+            }
+        }
+
+        if (lower.contains("\"result\"")) {
+            String result = extractJsonString(b, "result");
+            if (result != null) {
+                String r = result.trim().toLowerCase();
+                if (r.contains("clean") || r.equals("ok")) return KicomAvScanResult.clean();
+                if (r.contains("infect")) {
+                    String sig = extractJsonString(b, "signature");
+                    return KicomAvScanResult.infected(sig);
+                }
+            }
+        }
+
+        throw new KicomAvException("Respuesta inesperada de KicomAV: " + b);
+    }
+
+
+    /**
+     * Veredicto de un escaneo por ruta: la respuesta en texto empieza por la propia ruta
+     * ({@code "/ruta/fichero.bin: OK"}), que se sustituye por {@code stream} para que el nombre del
+     * fichero no se confunda con el veredicto.
+     */
+    static KicomAvScanResult parse(String path, String body) {
+        if (body != null && body.trim().startsWith(path + ":")) {
+            return parse("stream" + body.trim().substring(path.length()));
+        }
+        return parse(body);
+    }
+
+    private static String extractJsonString(String json, String key) {
+        Pattern p = Pattern.compile("\"" + Pattern.quote(key) + "\"\\s*:\\s*\"([^\"]+)\"");
+        Matcher m = p.matcher(json);
+        return m.find() ? m.group(1) : null;
+    }
+}
@@ -1,14 +1,34 @@
 package com.cparedesr.kicomav.ens;
 
+import org.alfresco.repo.cache.SimpleCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * KicomAvRestClient provides methods to interact with the KicomAV antivirus REST API.
@@ -21,8 +41,81 @@ import java.util.regex.Pattern;
  *   <li>Use {@link #scan(InputStream, String)} to scan files for viruses.</li>
  * </ul>
  * <p>
- * The client handles multipart file uploads and parses various response formats,
- * including plain text and JSON. It throws {@link KicomAvException} on errors.
+ * The wire protocol is chosen from the URL scheme (see {@link KicomAvTransport}): {@code http(s)://}
+ * uses the REST API with multipart uploads, {@code tcp://} the native k2d socket protocol on port 3311
+ * and {@code unix:///var/run/kicomav/k2d.sock} the same protocol over a Unix domain socket.
+ * Responses in plain text and JSON are parsed by {@link KicomAvResponseParser}, and errors are
+ * reported as {@link KicomAvException}.
+ * <p>
+ * Either way requests go over keep-alive connections taken from a bounded
+ * {@link KicomAvConnectionPool} ({@code av.kicomav.pool.*}), so consecutive scans reuse the same
+ * TCP connection instead of paying a handshake and leaving a TIME_WAIT socket per file.
+ * Pool counters are published in {@link #getMetrics()}.
+ * <p>
+ * When {@code av.kicomav.health.intervalMs > 0}, {@link #init()} starts a background
+ * {@link KicomAvHealthMonitor} that probes {@code /ping}; scans then rely on the last known state
+ * (see {@link #isKnownDown()}) instead of pinging before every upload.
+ * <p>
+ * {@code av.kicomav.baseUrl} may list several k2d instances separated by commas. Each one gets its
+ * own pool and health state ({@link KicomAvEndpoint}) and every scan goes to the available endpoint
+ * with the fewest outstanding requests ({@code av.kicomav.lb.strategy=leastOutstanding}) or with the
+ * lowest outstanding requests weighted by its latency EWMA ({@code ewma}). Endpoints failing at
+ * transport level are ejected and readmitted automatically.
+ * <p>
+ * With {@code av.kicomav.breaker.enabled=true} each endpoint also has a {@link KicomAvCircuitBreaker}
+ * fed with the outcome of every scan (errors, read timeouts and missed deadlines count as failures).
+ * While it is open scans are rejected at once without touching the network, so an overloaded or hung
+ * k2d does not hold request threads for the whole connect/read timeout.
+ * <p>
+ * Optional hedging ({@code av.kicomav.hedge.enabled}) cuts tail latency with several endpoints: small
+ * files (up to {@code av.kicomav.hedge.maxSizeBytes}) are buffered in memory and, if the scan has not
+ * finished after the configured latency percentile, the same content is sent to a second endpoint and
+ * the first verdict wins. Hedges are limited by a token budget ({@code av.kicomav.hedge.budgetPercent}
+ * of the hedge-eligible scans).
+ * <p>
+ * Local files are sent with {@code FileChannel.transferTo} ({@link #scanFile(Path, String)}). With
+ * {@code av.kicomav.byReference.enabled=true} and k2d mounting the content store, files under
+ * {@code av.kicomav.byReference.localRoot} are not sent at all: k2d scans them in place at the same
+ * relative path under {@code av.kicomav.byReference.remoteRoot}, and only when it cannot read them
+ * does the client fall back to uploading the content.
+ * <p>
+ * With {@code av.kicomav.cache.enabled=true} verdicts are cached in a {@link KicomAvVerdictCache}
+ * keyed by the k2d engine/signature version plus the SHA-256 of the content. Content up to
+ * {@code av.kicomav.cache.maxContentBytes} is read once into memory while hashing: a hit returns
+ * without any network I/O and a miss uploads the bytes already read. The version is read with
+ * {@code VERSION} / {@code GET /version} and refreshed in the background; when it changes the cache
+ * is emptied.
+ * <p>
+ * Alfresco content URLs never change their binary, so with {@code av.kicomav.urlCache.enabled=true}
+ * the behaviour also remembers the verdict per content URL and signature version
+ * ({@link #contentUrlKey(String)}): copies, checkouts and versions that reuse the same URL are
+ * neither read nor sent again.
+ * <p>
+ * In a cluster both caches can be backed by a shared Alfresco {@link SimpleCache}
+ * ({@code av.kicomav.cache.cluster.enabled=true}, Hazelcast behind {@code cacheFactory}): a local
+ * miss is looked up there, and every new verdict is also stored there, so a binary scanned on one
+ * node is not scanned again on another. Metrics keep local hits ({@code cache.hits},
+ * {@code urlCache.hits}), cluster hits ({@code *.clusterHits}) and misses apart. With a
+ * {@link KicomAvPersistentVerdictStore} the verdicts also survive restarts ({@code *.persistentHits}).
+ * <p>
+ * For very large repositories, {@code av.kicomav.cache.index.enabled=true} adds a
+ * {@link KicomAvVerdictIndex} behind the local hash cache: an off-heap, memory-mapped table of
+ * SHA-256 verdicts (up to {@code av.kicomav.cache.index.maxEntries}) read without locks or
+ * allocation, which keeps its content across restarts ({@code cache.indexHits}).
+ * <p>
+ * With a {@link KicomAvHashBlocklist}, content whose SHA-256 is known malware (learned from earlier
+ * infected verdicts or imported from a feed) is rejected with the stored signature before it is
+ * sent, whatever the current signature version.
+ * <p>
+ * Concurrent scans of the same content are coalesced ({@link KicomAvSingleFlight},
+ * {@code av.kicomav.singleFlight.enabled}): while one thread scans a hash or a content URL
+ * ({@link #scanOnce(String, ContentScan)}), others asking for it wait for the same verdict or
+ * failure instead of sending it again ({@code cache.coalesced}, {@code urlCache.coalesced}).
+ * <p>
+ * {@link #scanAsync(InputStream, String, long)} returns a {@link CompletableFuture} with cancellation
+ * and deadline support; the blocking {@link #scan(InputStream, String)} simply waits on it. Scans
+ * waiting for a connection are bounded by {@code av.kicomav.pool.queueCapacity} (gauge
+ * {@code scan.queued}); beyond it they fail at once ({@code scan.rejected}).
  *
  * <p>
  * Example:
@@ -40,194 +133,1315 @@ public class KicomAvRestClient {
 
     private static final Logger LOG = LoggerFactory.getLogger(KicomAvRestClient.class);
 
+    private static final KicomAvScanResult CLEAN = KicomAvScanResult.clean();
+    // hash binario de la clave, reutilizado para no crear objetos en cada consulta al índice
+    private static final ThreadLocal<byte[]> INDEX_KEY = ThreadLocal.withInitial(() -> new byte[KicomAvVerdictIndex.KEY_BYTES]);
+
     private final String baseUrl;
+    private final List<KicomAvEndpoint> endpoints;
     private final int connectTimeoutMs;
     private final int readTimeoutMs;
 
+    private int maxConnections = 16;
+    private int queueCapacity = 1000;
+    private long idleTimeoutMs = 4000;
+    private boolean socketSession = true;
+    private long healthCheckIntervalMs = 0;
+    private int healthCheckTimeoutMs = 3000;
+    private long scanTimeoutMs = 0;
+    private String loadBalancing = "leastOutstanding";
+    private long ejectionMs = 30_000;
+    private boolean breakerEnabled = true;
+    private int breakerWindowSize = 20;
+    private int breakerMinimumCalls = 10;
+    private int breakerFailureRateThreshold = 50;
+    private long breakerOpenMs = 30_000;
+    private int breakerHalfOpenProbes = 3;
+    private boolean hedgeEnabled = false;
+    private int hedgeMaxSizeBytes = 1024 * 1024;
+    private double hedgePercentile = 95;
+    private long hedgeMinDelayMs = 50;
+    private double hedgeBudgetPercent = 5;
+    private boolean byReferenceEnabled = false;
+    private Path byReferenceLocalRoot;
+    private String byReferenceRemoteRoot;
+    private boolean cacheEnabled = false;
+    private int cacheMaxEntries = 50_000;
+    private long cacheTtlMs = 24 * 60 * 60 * 1000L;
+    private int cacheMaxContentBytes = 4 * 1024 * 1024;
+    private long cacheVersionRefreshMs = 60_000;
+    private boolean urlCacheEnabled = false;
+    private int urlCacheMaxEntries = 100_000;
+    private boolean clusterCacheEnabled = false;
+    private SimpleCache<String, KicomAvScanResult> clusterCache;
+    private KicomAvPersistentVerdictStore persistentStore;
+    private boolean cacheIndexEnabled = false;
+    private Path cacheIndexPath;
+    private long cacheIndexMaxEntries = 50_000_000L;
+    private long cacheIndexTtlMs = 7 * 24 * 60 * 60 * 1000L;
+    private KicomAvHashBlocklist blocklist;
+    private boolean singleFlightEnabled = true;
+    private KicomAvMetrics metrics = new KicomAvMetrics();
+
+    private final AtomicInteger roundRobin = new AtomicInteger();
+    private volatile boolean monitored;
+    private volatile boolean breakersReady;
+    private volatile KicomAvLatencyTracker latencies;
+    private final Object hedgeLock = new Object();
+    private double hedgeTokens = 1;
+    private volatile KicomAvVerdictCache verdictCache;
+    private volatile KicomAvVerdictCache urlCache;
+    private volatile KicomAvVerdictIndex verdictIndex;
+    private volatile KicomAvSingleFlight<KicomAvScanResult> singleFlight;
+    private boolean verdictIndexFailed;
+    private volatile String engineVersion;
+    private volatile long nextVersionCheckNanos = System.nanoTime();
+    private final AtomicBoolean versionRefreshing = new AtomicBoolean();
+    private ScheduledExecutorService housekeeping;
+    private ExecutorService scanExecutor;
+
     public KicomAvRestClient(String baseUrl, int connectTimeoutMs, int readTimeoutMs) {
         if (baseUrl == null || baseUrl.isBlank()) {
             throw new IllegalArgumentException("baseUrl no puede ser null/blank");
         }
-        this.baseUrl = baseUrl.replaceAll("/+$", "");
+        List<URI> uris = new ArrayList<>();
+        for (String url : baseUrl.split(",")) {
+            if (!url.isBlank()) uris.add(parseEndpoint(url.trim().replaceAll("/+$", "")));
+        }
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("baseUrl sin endpoints: " + baseUrl);
+        }
+        this.baseUrl = baseUrl.trim().replaceAll("/+$", "");
         this.connectTimeoutMs = connectTimeoutMs;
         this.readTimeoutMs = readTimeoutMs;
+        this.endpoints = Collections.unmodifiableList(createEndpoints(uris));
     }
 
-    public void ping() {
-        HttpURLConnection con = null;
-        try {
-            URL url = new URL(baseUrl + "/ping");
-            con = (HttpURLConnection) url.openConnection();
-            con.setRequestMethod("GET");
-            con.setConnectTimeout(connectTimeoutMs);
-            con.setReadTimeout(readTimeoutMs);
+    private static URI parseEndpoint(String baseUrl) {
+        URI uri = URI.create(baseUrl);
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+        if (scheme.equals("unix")) {
+            if (uri.getPath() == null || uri.getPath().isEmpty()) {
+                throw new IllegalArgumentException("baseUrl unix sin ruta al socket: " + baseUrl);
+            }
+        } else if (!scheme.equals("http") && !scheme.equals("https") && !scheme.equals("tcp")) {
+            throw new IllegalArgumentException(
+                    "baseUrl debe ser http(s)://host:puerto, tcp://host:puerto o unix:///ruta.sock: " + baseUrl);
+        } else if (uri.getHost() == null) {
+            throw new IllegalArgumentException("baseUrl sin host: " + baseUrl);
+        }
+        return uri;
+    }
 
-            int code = con.getResponseCode();
-            String body = readAll(code >= 200 && code < 300 ? con.getInputStream() : con.getErrorStream());
-            String norm = body == null ? "" : body.trim().toLowerCase();
+    /**
+     * Con un único endpoint se mantienen los nombres de métricas de siempre ({@code pool.*},
+     * {@code health.k2d.up}); con varios cada uno lleva su sufijo ({@code k2d-1}, {@code k2d-2}...).
+     */
+    private List<KicomAvEndpoint> createEndpoints(List<URI> uris) {
+        List<KicomAvEndpoint> list = new ArrayList<>(uris.size());
+        for (int i = 0; i < uris.size(); i++) {
+            String name = uris.size() == 1 ? "k2d" : "k2d-" + (i + 1);
+            list.add(new KicomAvEndpoint(name, uris.get(i), metrics));
+        }
+        return list;
+    }
 
-            if (code < 200 || code >= 300 || !(norm.contains("pong") || norm.contains("ok"))) {
-                throw new KicomAvException("KicomAV /ping falló. url=" + url + " HTTP=" + code + " body=" + body);
+    /**
+     * Arranca el healthcheck periódico de cada endpoint si {@code healthCheckIntervalMs > 0}. Se invoca
+     * como init-method de Spring; sin él (p.ej. en tests) {@link #scan(InputStream, String)} hace
+     * {@code /ping} antes de cada subida como hasta ahora.
+     */
+    public synchronized void init() {
+        if (healthCheckIntervalMs > 0 && !monitored) {
+            for (KicomAvEndpoint endpoint : endpoints) {
+                KicomAvHealthMonitor monitor = new KicomAvHealthMonitor(endpoint.getName(),
+                        () -> ping(endpoint, healthCheckTimeoutMs), healthCheckIntervalMs, metrics);
+                endpoint.healthMonitor = monitor;
+                monitor.start(scheduler());
             }
+            monitored = true;
+            LOG.info("[KicomAV] healthcheck de {} cada {} ms", baseUrl, healthCheckIntervalMs);
+        }
+    }
 
-            LOG.debug("[KicomAV] ping ok: {}", body != null ? body.trim() : "(empty)");
+    /**
+     * Comprueba que al menos un endpoint responde a {@code PING}, empezando por los disponibles.
+     */
+    public void ping() {
+        List<KicomAvEndpoint> order = new ArrayList<>(endpoints);
+        order.sort((a, b) -> Boolean.compare(b.isAvailable(), a.isAvailable()));
+        KicomAvException last = null;
+        for (KicomAvEndpoint endpoint : order) {
+            try {
+                ping(endpoint, readTimeoutMs);
+                return;
+            } catch (KicomAvException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     * @return true si ningún endpoint puede recibir un escaneo ahora mismo: el healthcheck periódico
+     * los da por caídos o su circuit breaker está abierto. Sin healthcheck ni circuitos abiertos
+     * devuelve false (no se sabe nada sin hacer una llamada de red).
+     */
+    public boolean isKnownDown() {
+        for (KicomAvEndpoint endpoint : endpoints) {
+            if ((!monitored || endpoint.isAvailable()) && endpoint.isCallPermitted()) return false;
+        }
+        return true;
+    }
+
+    private void ping(KicomAvEndpoint endpoint, int timeoutMs) {
+        try {
+            transport(endpoint).ping(timeoutMs);
         } catch (IOException e) {
-            throw new KicomAvException("Error conectando con KicomAV /ping. baseUrl=" + baseUrl, e);
-        } finally {
-            if (con != null) con.disconnect();
+            throw new KicomAvException("Error conectando con KicomAV /ping. baseUrl=" + endpoint, e);
         }
     }
 
+    /**
+     * Escaneo bloqueante: espera el resultado de {@link #scanAsync(InputStream, String)}.
+     */
     public KicomAvScanResult scan(InputStream data, String filename) {
+        return await(scanAsync(data, filename));
+    }
+
+    /**
+     * Lanza el escaneo sin bloquear al llamante, con el plazo por defecto {@code av.kicomav.scanTimeoutMs}.
+     */
+    public CompletableFuture<KicomAvScanResult> scanAsync(InputStream data, String filename) {
+        return scanAsync(data, filename, scanTimeoutMs);
+    }
+
+    /**
+     * Lanza el escaneo en el executor del cliente y devuelve un future que se completa con el veredicto
+     * o con la {@link KicomAvException} correspondiente.
+     * <p>
+     * Sólo hay tantos hilos como conexiones en el pool; el resto de escaneos esperan en cola sin ocupar
+     * hilo, hasta {@code queueCapacity}: con la cola llena el future falla al instante con
+     * {@link KicomAvException} (y quien escanea aplica failOpen/failClosed). Cancelar el future (o vencer {@code timeoutMs}, si es mayor que 0) interrumpe la subida en
+     * curso, lo que cierra el socket y lo descarta del pool. El stream {@code data} se lee desde otro
+     * hilo y no debe usarse hasta que el future termine. Un plazo vencido cuenta como fallo para el
+     * circuit breaker del endpoint; una cancelación no.
+     */
+    public CompletableFuture<KicomAvScanResult> scanAsync(InputStream data, String filename, long timeoutMs) {
         if (data == null) throw new IllegalArgumentException("data no puede ser null");
-        ping();
 
-        final String boundary = "----AlfrescoKicomAV" + System.currentTimeMillis();
-        HttpURLConnection con = null;
+        return withDeadline(cacheEnabled ? cachedScan(data, filename) : streamScan(data, filename), timeoutMs);
+    }
+
+    private CompletableFuture<KicomAvScanResult> streamScan(InputStream data, String filename) {
+        return hedgeEnabled && endpoints.size() > 1
+                ? hedgedScan(data, filename)
+                : attempt((t, timeout) -> t.scan(data, filename, timeout), null, new AtomicReference<>());
+    }
+
+    /**
+     * Escaneo bloqueante de un fichero local: espera el resultado de {@link #scanFileAsync(Path, String, long)}.
+     */
+    public KicomAvScanResult scanFile(Path file, String filename) {
+        return await(scanFileAsync(file, filename, scanTimeoutMs));
+    }
+
+    /**
+     * Como {@link #scanAsync(InputStream, String, long)} para un fichero local (p.ej. el de un
+     * {@code FileContentStore}): el contenido va del fichero al socket con {@code FileChannel.transferTo},
+     * sin copiarse en el heap, y al poder releerse se puede cubrir con hedging sin bufferizarlo.
+     * <p>
+     * En modo por referencia, si el fichero está bajo {@code byReferenceLocalRoot} se pide a k2d que
+     * lo escanee en su ruta remota y sólo se envía el contenido si k2d no lo ve.
+     */
+    public CompletableFuture<KicomAvScanResult> scanFileAsync(Path file, String filename, long timeoutMs) {
+        if (file == null) throw new IllegalArgumentException("file no puede ser null");
+
+        String remotePath = remotePath(file);
+        ScanRequest request = remotePath != null
+                ? (t, timeout) -> scanByReference(t, remotePath, file, filename, timeout)
+                : (t, timeout) -> {
+                    metrics.increment("scan.zeroCopy");
+                    return t.scanFile(file, filename, timeout);
+                };
+        Supplier<CompletableFuture<KicomAvScanResult>> scan = () -> hedgeEnabled && endpoints.size() > 1 && isSmall(file)
+                ? hedged(request)
+                : attempt(request, null, new AtomicReference<>());
 
+        if (cacheEnabled) {
+            byte[] content = readForCache(file);
+            String key = content == null ? null : cacheKey(content);
+            if (key != null) {
+                // sin referencia se envía lo ya leído en lugar de volver a leer el fichero
+                return withDeadline(cached(key, remotePath != null ? scan : () -> bufferedScan(content, filename)),
+                        timeoutMs);
+            }
+        }
+        return withDeadline(scan.get(), timeoutMs);
+    }
+
+    /**
+     * Clave con la que recordar el veredicto de una URL de contenido de Alfresco ({@code versión|url}),
+     * o null si la caché por URL está desactivada o no se conoce la versión de firmas. La versión queda
+     * fijada en la clave: un veredicto obtenido justo antes de una actualización de firmas no se
+     * guarda como si fuera de la nueva.
+     */
+    public String contentUrlKey(String contentUrl) {
+        if (!urlCacheEnabled || contentUrl == null || contentUrl.isEmpty()) return null;
+        String version = engineVersion();
+        return version == null ? null : version + "|" + contentUrl;
+    }
+
+    /**
+     * @return el veredicto recordado para {@code key} (ver {@link #contentUrlKey(String)}), o null.
+     */
+    public KicomAvScanResult getVerdict(String key) {
+        return lookup(urlCache(), "urlCache", "u", key);
+    }
+
+    public void putVerdict(String key, KicomAvScanResult result) {
+        remember(urlCache(), "u", key, result);
+    }
+
+    /**
+     * Ejecuta {@code scan} para el contenido de {@code key} (ver {@link #contentUrlKey(String)}) salvo
+     * que otro hilo ya lo esté escaneando: entonces espera su veredicto, o su error, hasta
+     * {@code av.kicomav.scanTimeoutMs}. Sin clave o sin single-flight simplemente llama a {@code scan}.
+     */
+    public KicomAvScanResult scanOnce(String key, ContentScan scan) throws IOException {
+        if (!singleFlightEnabled || key == null) return scan.scan();
+        CompletableFuture<KicomAvScanResult> own = new CompletableFuture<>();
+        AtomicBoolean leader = new AtomicBoolean();
+        CompletableFuture<KicomAvScanResult> shared = singleFlight().join("urlCache", "u/" + key, () -> {
+            leader.set(true);
+            return own;
+        });
+        if (!leader.get()) {
+            LOG.debug("[KicomAV] esperando el escaneo en curso del mismo contenido: {}", key);
+            return await(withDeadline(shared, scanTimeoutMs));
+        }
         try {
-            URL url = new URL(baseUrl + "/scan/file");
-            con = (HttpURLConnection) url.openConnection();
-
-            con.setRequestMethod("POST");
-            con.setConnectTimeout(connectTimeoutMs);
-            con.setReadTimeout(readTimeoutMs);
-            con.setDoOutput(true);
-
-            con.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-            con.setChunkedStreamingMode(16 * 1024);
-
-            String safeName = (filename == null || filename.isBlank()) ? "upload.bin" : filename;
-
-            try (OutputStream out = new BufferedOutputStream(con.getOutputStream())) {
-                writeAscii(out, "--" + boundary + "\r\n");
-                writeAscii(out, "Content-Disposition: form-data; name=\"file\"; filename=\""
-                        + escapeQuotes(safeName) + "\"\r\n");
-                writeAscii(out, "Content-Type: application/octet-stream\r\n\r\n");
-
-                byte[] buffer = new byte[16 * 1024];
-                int read;
-                long total = 0;
-                while ((read = data.read(buffer)) != -1) {
-                    out.write(buffer, 0, read);
-                    total += read;
-                }
+            KicomAvScanResult result = scan.scan();
+            own.complete(result);
+            return result;
+        } catch (IOException | RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        }
+    }
 
-                writeAscii(out, "\r\n");
-                writeAscii(out, "--" + boundary + "--\r\n");
-                out.flush();
+    /**
+     * Veredicto de la caché local o, si no está, de la caché de clúster o del almacén persistente (lo
+     * encontrado se copia a la local). {@code tier} separa las claves por hash ({@code h}) y por URL
+     * ({@code u}) en los niveles compartidos. Un fallo de esos niveles cuenta como fallo de caché,
+     * nunca como error de escaneo.
+     */
+    private KicomAvScanResult lookup(KicomAvVerdictCache local, String name, String tier, String key) {
+        KicomAvScanResult hit = local.get(key);
+        if (hit != null) {
+            metrics.increment(name + ".hits");
+            return hit;
+        }
+        int indexed = tier.equals("h") ? indexGet(key) : KicomAvVerdictIndex.MISS;
+        if (indexed == KicomAvVerdictIndex.CLEAN) {
+            metrics.increment(name + ".indexHits");
+            local.put(key, CLEAN);
+            return CLEAN;
+        }
+        if (clusterCacheEnabled && clusterCache != null) {
+            try {
+                hit = clusterCache.get(tier + "/" + key);
+            } catch (RuntimeException e) {
+                LOG.debug("[KicomAV] caché de clúster no disponible: {}", e.toString());
+            }
+            if (hit != null) {
+                metrics.increment(name + ".clusterHits");
+                local.put(key, hit);
+                return hit;
+            }
+        }
+        if (persistentStore != null) {
+            hit = persistentStore.get(tier, key);
+            if (hit != null) {
+                metrics.increment(name + ".persistentHits");
+                local.put(key, hit);
+                return hit;
+            }
+        }
+        if (indexed == KicomAvVerdictIndex.INFECTED) {
+            // el índice no guarda la firma: sólo se usa si ningún otro nivel la conoce
+            metrics.increment(name + ".indexHits");
+            hit = KicomAvScanResult.infected(null);
+            local.put(key, hit);
+            return hit;
+        }
+        metrics.increment(name + ".misses");
+        return null;
+    }
 
-                LOG.debug("[KicomAV] enviado /scan/file ({} bytes) filename={}", total, safeName);
+    private void remember(KicomAvVerdictCache local, String tier, String key, KicomAvScanResult result) {
+        local.put(key, result);
+        if (clusterCacheEnabled && clusterCache != null) {
+            try {
+                clusterCache.put(tier + "/" + key, result);
+            } catch (RuntimeException e) {
+                LOG.debug("[KicomAV] no se pudo guardar en la caché de clúster: {}", e.toString());
             }
+        }
+        if (persistentStore != null) {
+            persistentStore.put(tier, key, result);
+        }
+        if (tier.equals("h")) {
+            indexPut(key, result);
+            if (result.isInfected() && isBlocklistEnabled()) {
+                blocklist.learn(key.substring(key.lastIndexOf(':') + 1), result.getSignature());
+            }
+        }
+    }
+
+    public boolean isBlocklistEnabled() {
+        return blocklist != null && blocklist.isEnabled();
+    }
+
+    /**
+     * @return el veredicto de un contenido cuyo SHA-256 está en la lista local de malware conocido, o
+     * null si no está (o la lista está desactivada).
+     */
+    public KicomAvScanResult blocklisted(byte[] sha256) {
+        if (!isBlocklistEnabled()) return null;
+        String signature = blocklist.signature(HexFormat.of().formatHex(sha256));
+        return signature == null ? null : KicomAvScanResult.infected(signature);
+    }
 
-            int code = con.getResponseCode();
-            InputStream responseStream = (code >= 200 && code < 300) ? con.getInputStream() : con.getErrorStream();
-            String body = readAll(responseStream);
+    /**
+     * Añade a la lista local el hash de un contenido que k2d ha dado por infectado.
+     */
+    public void rememberInfected(byte[] sha256, KicomAvScanResult result) {
+        if (result.isInfected() && isBlocklistEnabled()) {
+            blocklist.learn(HexFormat.of().formatHex(sha256), result.getSignature());
+        }
+    }
 
-            LOG.debug("[KicomAV] respuesta HTTP={} body={}", code, body);
+    /**
+     * Consulta del índice para una clave {@code versión:sha256}: la versión va como etiqueta en el
+     * valor, de modo que un veredicto de otras firmas es un fallo.
+     */
+    private int indexGet(String key) {
+        KicomAvVerdictIndex index = verdictIndex();
+        if (index == null) return KicomAvVerdictIndex.MISS;
+        int colon = key.lastIndexOf(':');
+        byte[] hash = INDEX_KEY.get();
+        if (!parseHash(key, colon + 1, hash)) return KicomAvVerdictIndex.MISS;
+        long minTimestampSec = (System.currentTimeMillis() - cacheIndexTtlMs) / 1000;
+        return index.get(hash, KicomAvVerdictIndex.versionTag(key, 0, colon), minTimestampSec);
+    }
+
+    private void indexPut(String key, KicomAvScanResult result) {
+        KicomAvVerdictIndex index = verdictIndex();
+        if (index == null) return;
+        int colon = key.lastIndexOf(':');
+        byte[] hash = INDEX_KEY.get();
+        if (!parseHash(key, colon + 1, hash)) return;
+        long now = System.currentTimeMillis();
+        if (!index.put(hash, result.isInfected(), KicomAvVerdictIndex.versionTag(key, 0, colon),
+                now / 1000, (now - cacheIndexTtlMs) / 1000)) {
+            metrics.increment("cache.indexFull");
+        }
+    }
+
+    private static boolean parseHash(String key, int from, byte[] hash) {
+        if (from <= 0 || key.length() - from != hash.length * 2) return false;
+        for (int i = 0; i < hash.length; i++) {
+            int hi = Character.digit(key.charAt(from + 2 * i), 16);
+            int lo = Character.digit(key.charAt(from + 2 * i + 1), 16);
+            if (hi < 0 || lo < 0) return false;
+            hash[i] = (byte) (hi << 4 | lo);
+        }
+        return true;
+    }
+
+    /**
+     * Escaneo con caché de veredictos: lee hasta {@code cacheMaxContentBytes} en memoria (en el hilo
+     * llamante) y calcula su SHA-256. Si hay veredicto para ese hash y la versión de firmas actual se
+     * devuelve sin tocar la red; si no, se envía el contenido ya leído. El contenido mayor, o sin versión
+     * conocida de k2d, se escanea sin caché.
+     */
+    private CompletableFuture<KicomAvScanResult> cachedScan(InputStream data, String filename) {
+        byte[] head;
+        try {
+            head = data.readNBytes(cacheMaxContentBytes + 1);
+        } catch (IOException e) {
+            CompletableFuture<KicomAvScanResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new KicomAvException("Error leyendo el contenido a escanear", e));
+            return failed;
+        }
+        if (head.length > cacheMaxContentBytes) {
+            metrics.increment("cache.bypassed");
+            return streamScan(new SequenceInputStream(new ByteArrayInputStream(head), data), filename);
+        }
+        String key = cacheKey(head);
+        return key != null ? cached(key, () -> bufferedScan(head, filename)) : bufferedScan(head, filename);
+    }
 
-            if (code < 200 || code >= 300) {
-                throw new KicomAvException("KicomAV /scan/file falló. url=" + url + " HTTP=" + code + " body=" + body);
+    private CompletableFuture<KicomAvScanResult> cached(String key,
+                                                        Supplier<CompletableFuture<KicomAvScanResult>> scan) {
+        if (isBlocklistEnabled()) {
+            String signature = blocklist.signature(key.substring(key.lastIndexOf(':') + 1));
+            if (signature != null) {
+                LOG.debug("[KicomAV] hash de malware conocido: {}", signature);
+                return CompletableFuture.completedFuture(KicomAvScanResult.infected(signature));
             }
+        }
+        KicomAvVerdictCache cache = verdictCache();
+        KicomAvScanResult hit = lookup(cache, "cache", "h", key);
+        if (hit != null) {
+            LOG.debug("[KicomAV] veredicto en caché: {}", hit);
+            return CompletableFuture.completedFuture(hit);
+        }
+        // el veredicto se guarda antes de entregarlo; cancelar o vencer el plazo detiene el escaneo
+        Supplier<CompletableFuture<KicomAvScanResult>> scanAndRemember = () -> {
+            CompletableFuture<KicomAvScanResult> scanning = scan.get();
+            CompletableFuture<KicomAvScanResult> result = scanning.thenApply(r -> {
+                remember(cache, "h", key, r);
+                return r;
+            });
+            result.whenComplete((r, t) -> {
+                if (t != null && !scanning.isDone()) scanning.completeExceptionally(t);
+            });
+            return result;
+        };
+        return singleFlightEnabled ? singleFlight().join("cache", "h/" + key, scanAndRemember) : scanAndRemember.get();
+    }
 
-            return parseScanResponse(body);
+    /**
+     * Escaneo de contenido que ya está en memoria (se puede repetir, así que admite cobertura).
+     */
+    private CompletableFuture<KicomAvScanResult> bufferedScan(byte[] content, String filename) {
+        ScanRequest request = (t, timeout) -> t.scan(new ByteArrayInputStream(content), filename, timeout);
+        return hedgeEnabled && endpoints.size() > 1 && content.length <= hedgeMaxSizeBytes
+                ? hedged(request)
+                : attempt(request, null, new AtomicReference<>());
+    }
 
+    /**
+     * Contenido del fichero si cabe en {@code cacheMaxContentBytes}; null si es mayor o no se puede
+     * leer (el escaneo normal informará del error).
+     */
+    private byte[] readForCache(Path file) {
+        try {
+            if (Files.size(file) <= cacheMaxContentBytes) {
+                return Files.readAllBytes(file);
+            }
         } catch (IOException e) {
-            throw new KicomAvException("Error escaneando con KicomAV. baseUrl=" + baseUrl, e);
-        } finally {
-            if (con != null) con.disconnect();
+            LOG.debug("[KicomAV] no se pudo leer {} para la caché: {}", file, e.toString());
         }
+        metrics.increment("cache.bypassed");
+        return null;
     }
 
-    private KicomAvScanResult parseScanResponse(String body) {
-        if (body == null || body.trim().isEmpty()) {
-            return KicomAvScanResult.clean();
+    /**
+     * Clave de caché {@code versión:sha256}, o null (sin caché) si no se conoce la versión de k2d.
+     */
+    private String cacheKey(byte[] content) {
+        String version = engineVersion();
+        if (version == null) {
+            metrics.increment("cache.bypassed");
+            return null;
+        }
+        try {
+            return version + ":" + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
         }
+    }
 
-        String b = body.trim();
-        String lower = b.toLowerCase();
-        if (lower.contains("found")) {
-            String sig = b.replaceFirst("(?i)^.*?:\\s*", "")
-                    .replaceFirst("(?i)\\s+FOUND\\s*$", "");
-            return KicomAvScanResult.infected(sig);
+    /**
+     * Versión de firmas de los endpoints (las distintas, ordenadas, por si hay una actualización a
+     * medias), releída como mucho cada {@code cacheVersionRefreshMs}. Mientras no se conoce se consulta
+     * en el hilo llamante; después se refresca en segundo plano y se sigue usando la anterior.
+     */
+    private String engineVersion() {
+        if (System.nanoTime() - nextVersionCheckNanos >= 0 && versionRefreshing.compareAndSet(false, true)) {
+            Runnable refresh = () -> {
+                try {
+                    refreshEngineVersion();
+                } finally {
+                    nextVersionCheckNanos = System.nanoTime() + cacheVersionRefreshMs * 1_000_000L;
+                    versionRefreshing.set(false);
+                }
+            };
+            if (engineVersion == null) refresh.run();
+            else scheduler().execute(refresh);
         }
+        return engineVersion;
+    }
 
-        if (lower.contains(" ok") || lower.equals("ok") || lower.contains("clean") || lower.contains("no virus")) {
-            return KicomAvScanResult.clean();
+    private void refreshEngineVersion() {
+        Set<String> versions = new TreeSet<>();
+        for (KicomAvEndpoint endpoint : endpoints) {
+            if (monitored && !endpoint.isAvailable()) continue;
+            try {
+                versions.add(transport(endpoint).version(healthCheckTimeoutMs));
+            } catch (IOException | KicomAvException e) {
+                LOG.debug("[KicomAV] no se pudo leer la versión de {}: {}", endpoint, e.toString());
+            }
+        }
+        String version = versions.isEmpty() ? null : String.join("|", versions);
+        String previous = engineVersion;
+        engineVersion = version;
+        if (previous != null && version != null && !version.equals(previous)) {
+            // la caché de clúster y el índice no se vacían: llevan la versión y caducan solos
+            verdictCache().clear();
+            urlCache().clear();
+            metrics.increment("cache.versionChanges");
+            LOG.info("[KicomAV] versión de firmas {} -> {}: cachés de veredictos vaciadas", previous, version);
         }
+    }
 
-        if (lower.contains("\"status\"")) {
-            String status = extractJsonString(b, "status");
-            if (status != null) {
-                String st = status.trim().toLowerCase();
+    private KicomAvScanResult scanByReference(KicomAvTransport transport, String remotePath, Path file,
+                                              String filename, int timeoutMs) throws IOException {
+        try {
+            KicomAvScanResult result = transport.scanPath(remotePath, filename, timeoutMs);
+            metrics.increment("scan.byReference");
+            return result;
+        } catch (NoSuchFileException e) {
+            metrics.increment("scan.byReference.fallbacks");
+            LOG.debug("[KicomAV] k2d no ve {} ({}); se envía el contenido", remotePath, e.getReason());
+            metrics.increment("scan.zeroCopy");
+            return transport.scanFile(file, filename, timeoutMs);
+        }
+    }
 
-                if (st.contains("infect")) {
-                    String sig = extractJsonString(b, "malware");
-                    if (sig == null) sig = extractJsonString(b, "signature");
-                    if (sig == null) sig = extractJsonString(b, "sig");
-                    return KicomAvScanResult.infected(sig);
+    /**
+     * Ruta con la que k2d ve {@code file}: la misma ruta relativa a {@code byReferenceLocalRoot} bajo
+     * {@code byReferenceRemoteRoot} (separador {@code /}). Null si el modo está desactivado o el
+     * fichero no está bajo la raíz local.
+     */
+    String remotePath(Path file) {
+        Path localRoot = byReferenceLocalRoot;
+        if (!byReferenceEnabled || localRoot == null) return null;
+
+        Path local = file.toAbsolutePath().normalize();
+        if (!local.startsWith(localRoot) || local.equals(localRoot)) return null;
+
+        String remoteRoot = byReferenceRemoteRoot != null ? byReferenceRemoteRoot
+                : localRoot.toString().replace(File.separatorChar, '/');
+        StringBuilder remote = new StringBuilder(remoteRoot.replaceAll("/+$", ""));
+        for (Path part : localRoot.relativize(local)) {
+            remote.append('/').append(part);
+        }
+        return remote.toString();
+    }
+
+    private boolean isSmall(Path file) {
+        try {
+            return Files.size(file) <= hedgeMaxSizeBytes;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static CompletableFuture<KicomAvScanResult> withDeadline(CompletableFuture<KicomAvScanResult> result,
+                                                                     long timeoutMs) {
+        if (timeoutMs > 0) {
+            result.orTimeout(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * Un intento de escaneo en el executor. {@code target} recibe el endpoint elegido en cuanto se conoce.
+     */
+    private CompletableFuture<KicomAvScanResult> attempt(ScanRequest request, KicomAvEndpoint exclude,
+                                                         AtomicReference<KicomAvEndpoint> target) {
+        CompletableFuture<KicomAvScanResult> result = new CompletableFuture<>();
+        Future<?> task;
+        try {
+            task = executor().submit(() -> {
+                try {
+                    result.complete(doScan(request, exclude, target));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            // cola llena: mejor fallar ya que acumular escaneos (y su contenido) sin límite
+            metrics.increment("scan.rejected");
+            result.completeExceptionally(new KicomAvException("Cola de escaneos KicomAV llena (queueCapacity="
+                    + queueCapacity + "). baseUrl=" + baseUrl, e));
+            return result;
+        }
 
-                if (st.equals("clean") || st.equals("ok")) {
-                    return KicomAvScanResult.clean();
+        result.whenComplete((r, t) -> {
+            if (result.isCancelled() || t instanceof TimeoutException) {
+                task.cancel(true);
+                KicomAvEndpoint endpoint = target.get();
+                if (t instanceof TimeoutException && endpoint != null) endpoint.recordFailure();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Escaneo con cobertura: lee en memoria hasta {@code hedgeMaxSizeBytes} (en el hilo llamante) para
+     * poder reenviar el contenido. Si el fichero es mayor se escanea de forma normal, concatenando lo
+     * ya leído con el resto del stream.
+     * <p>
+     * Pasado el percentil de latencia configurado (nunca menos de {@code hedgeMinDelayMs}), si el
+     * primer intento no ha terminado y queda presupuesto, se lanza otro contra un endpoint distinto.
+     * Gana la primera respuesta correcta y el otro intento se cancela; sólo si fallan todos los
+     * intentos lanzados falla el escaneo.
+     */
+    private CompletableFuture<KicomAvScanResult> hedgedScan(InputStream data, String filename) {
+        byte[] head;
+        try {
+            head = data.readNBytes(hedgeMaxSizeBytes + 1);
+        } catch (IOException e) {
+            CompletableFuture<KicomAvScanResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new KicomAvException("Error leyendo el contenido a escanear", e));
+            return failed;
+        }
+        if (head.length > hedgeMaxSizeBytes) {
+            InputStream whole = new SequenceInputStream(new ByteArrayInputStream(head), data);
+            return attempt((t, timeout) -> t.scan(whole, filename, timeout), null, new AtomicReference<>());
+        }
+        return hedged((t, timeout) -> t.scan(new ByteArrayInputStream(head), filename, timeout));
+    }
+
+    /**
+     * Lanza {@code request} (que debe poder repetirse) y, si tarda, una cobertura contra otro endpoint.
+     */
+    private CompletableFuture<KicomAvScanResult> hedged(ScanRequest request) {
+        earnHedgeToken();
+
+        CompletableFuture<KicomAvScanResult> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        AtomicReference<KicomAvEndpoint> primaryTarget = new AtomicReference<>();
+        AtomicReference<CompletableFuture<KicomAvScanResult>> hedge = new AtomicReference<>();
+
+        Consumer<Throwable> onFailure = t -> {
+            if (pending.decrementAndGet() == 0) result.completeExceptionally(t);
+        };
+        CompletableFuture<KicomAvScanResult> primary = attempt(request, null, primaryTarget);
+        primary.whenComplete((r, t) -> {
+            if (t == null) result.complete(r);
+            else onFailure.accept(t);
+        });
+
+        long delay = Math.max(hedgeMinDelayMs, latencies().percentileMillis());
+        ScheduledFuture<?> timer = scheduler().schedule(() -> {
+            KicomAvEndpoint first = primaryTarget.get();
+            // si el primario sigue en cola el retraso no es de k2d: reenviar sólo añadiría carga
+            if (result.isDone() || first == null || !hasAlternative(first)) return;
+            if (!takeHedgeToken()) {
+                metrics.increment("hedge.budgetExhausted");
+                return;
+            }
+            if (pending.getAndIncrement() == 0) return;
+            metrics.increment("hedge.sent");
+            CompletableFuture<KicomAvScanResult> second = attempt(request, first, new AtomicReference<>());
+            hedge.set(second);
+            second.whenComplete((r, t) -> {
+                if (t == null) {
+                    if (result.complete(r)) metrics.increment("hedge.wins");
+                } else {
+                    onFailure.accept(t);
                 }
+            });
+            if (result.isDone()) second.cancel(true);
+        }, delay, TimeUnit.MILLISECONDS);
+
+        result.whenComplete((r, t) -> {
+            timer.cancel(false);
+            stopAttempt(primary, t);
+            stopAttempt(hedge.get(), t);
+        });
+        return result;
+    }
+
+    /**
+     * Propaga al intento el fin del escaneo: el plazo vencido como tal (cuenta para el circuit breaker),
+     * el resto como cancelación del perdedor.
+     */
+    private static void stopAttempt(CompletableFuture<KicomAvScanResult> attempt, Throwable t) {
+        if (attempt == null || attempt.isDone()) return;
+        if (t instanceof TimeoutException) attempt.completeExceptionally(t);
+        else attempt.cancel(true);
+    }
+
+    private boolean hasAlternative(KicomAvEndpoint exclude) {
+        for (KicomAvEndpoint endpoint : endpoints) {
+            if (endpoint != exclude && endpoint.isAvailable() && endpoint.isCallPermitted()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Cada escaneo apto para cobertura aporta {@code hedgeBudgetPercent / 100} fichas y cada reenvío
+     * gasta una, así que a la larga no hay más de ese porcentaje de carga extra. El cubo admite como
+     * mucho una ráfaga de 10 fichas.
+     */
+    private void earnHedgeToken() {
+        synchronized (hedgeLock) {
+            hedgeTokens = Math.min(10, hedgeTokens + hedgeBudgetPercent / 100.0);
+        }
+    }
+
+    private boolean takeHedgeToken() {
+        synchronized (hedgeLock) {
+            if (hedgeTokens < 1) return false;
+            hedgeTokens -= 1;
+            return true;
+        }
+    }
+
+    private KicomAvScanResult doScan(ScanRequest request, KicomAvEndpoint exclude,
+                                     AtomicReference<KicomAvEndpoint> target) {
+        KicomAvEndpoint endpoint = selectEndpoint(exclude);
+        target.set(endpoint);
+        long start = System.nanoTime();
+        boolean success = false;
+        endpoint.begin();
+        try {
+            KicomAvScanResult result = request.send(transport(endpoint), readTimeoutMs);
+            success = true;
+            endpoint.recordSuccess();
+            latencies().record(System.nanoTime() - start);
+            return result;
+        } catch (ClosedByInterruptException | FileSystemException e) {
+            // cancelación/plazo vencido (lo decide quien canceló) o fichero local ilegible:
+            // no dice nada de la salud de k2d
+            endpoint.recordIgnored();
+            throw new KicomAvException("Error escaneando con KicomAV. baseUrl=" + endpoint, e);
+        } catch (IOException e) {
+            endpoint.recordFailure();
+            endpoint.eject(e.toString(), ejectionMs);
+            throw new KicomAvException("Error escaneando con KicomAV. baseUrl=" + endpoint, e);
+        } catch (KicomAvPoolExhaustedException e) {
+            // saturación local (demasiados escaneos en vuelo), no un fallo de k2d
+            endpoint.recordIgnored();
+            throw e;
+        } catch (RuntimeException e) {
+            endpoint.recordFailure();
+            throw e;
+        } finally {
+            endpoint.end(System.nanoTime() - start, success);
+        }
+    }
+
+    private KicomAvScanResult await(CompletableFuture<KicomAvScanResult> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new KicomAvException("Interrumpido esperando a KicomAV. baseUrl=" + baseUrl, e);
+        } catch (CancellationException e) {
+            throw new KicomAvException("Escaneo KicomAV cancelado. baseUrl=" + baseUrl, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException) {
+                metrics.increment("scan.timeouts");
+                throw new KicomAvException("KicomAV no respondió dentro del plazo. baseUrl=" + baseUrl, cause);
+            }
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new KicomAvException("Error escaneando con KicomAV. baseUrl=" + baseUrl, cause);
+        }
+    }
+
+    /**
+     * Elige el endpoint para un escaneo entre los disponibles.
+     * <p>
+     * Con healthcheck activo usa el último estado conocido (sin red) y falla al instante si no queda
+     * ninguno en verde. Sin él mantiene el {@code /ping} previo a cada escaneo: si falla, expulsa ese
+     * endpoint y prueba el siguiente; si todos están expulsados los prueba igualmente antes de
+     * rendirse, para no rechazar tráfico sólo por fallos antiguos.
+     * <p>
+     * En ambos casos sólo se eligen endpoints cuyo circuit breaker concede permiso; si ninguno lo
+     * hace el escaneo se rechaza sin E/S de red. El endpoint devuelto tiene un permiso reservado.
+     * {@code exclude} (puede ser null) es el endpoint del intento primario cuando se lanza una cobertura.
+     */
+    private KicomAvEndpoint selectEndpoint(KicomAvEndpoint exclude) {
+        ensureBreakers();
+        List<KicomAvEndpoint> candidates = new ArrayList<>(endpoints.size());
+        for (KicomAvEndpoint endpoint : endpoints) {
+            if (endpoint != exclude && endpoint.isAvailable()) candidates.add(endpoint);
+        }
+
+        if (monitored) {
+            if (candidates.isEmpty()) {
+                metrics.increment("health.fastFailures");
+                throw new KicomAvException("KicomAV no disponible según el último healthcheck. baseUrl=" + baseUrl
+                        + " cause=" + endpoints.get(0).getLastError());
+            }
+            return acquire(candidates);
+        }
 
-                if (st.equals("error")) {
-                    String err = extractJsonString(b, "error");
-                    throw new KicomAvException("KicomAV devolvió status=error: " + err + " body=" + b);
+        if (candidates.isEmpty()) {
+            candidates.addAll(endpoints);
+            candidates.remove(exclude);
+        }
+        KicomAvException last = null;
+        while (!candidates.isEmpty()) {
+            KicomAvEndpoint endpoint = last == null ? acquire(candidates) : tryAcquire(candidates);
+            if (endpoint == null) break;
+            try {
+                ping(endpoint, readTimeoutMs);
+                return endpoint;
+            } catch (KicomAvException e) {
+                if (e.getCause() instanceof ClosedByInterruptException) {
+                    endpoint.recordIgnored();
+                    throw e;
                 }
+                last = e;
+                endpoint.recordFailure();
+                endpoint.eject(String.valueOf(e.getCause() != null ? e.getCause() : e.getMessage()), ejectionMs);
+                candidates.remove(endpoint);
             }
         }
+        throw last;
+    }
+
+    /**
+     * Como {@link #tryAcquire(List)}, pero rechaza el escaneo si ningún circuit breaker da permiso.
+     */
+    private KicomAvEndpoint acquire(List<KicomAvEndpoint> candidates) {
+        KicomAvEndpoint endpoint = tryAcquire(candidates);
+        if (endpoint == null) {
+            metrics.increment("breaker.rejected");
+            throw new KicomAvException("KicomAV circuito abierto, escaneo rechazado sin conectar. baseUrl=" + baseUrl);
+        }
+        return endpoint;
+    }
+
+    /**
+     * Elige entre los candidatos y reserva permiso en su circuit breaker; los que lo deniegan se
+     * retiran de la lista. Devuelve null si no queda ninguno.
+     */
+    private KicomAvEndpoint tryAcquire(List<KicomAvEndpoint> candidates) {
+        while (!candidates.isEmpty()) {
+            KicomAvEndpoint endpoint = pick(candidates);
+            if (endpoint.tryAcquire()) return endpoint;
+            candidates.remove(endpoint);
+        }
+        return null;
+    }
+
+    /**
+     * El de menor coste según {@code av.kicomav.lb.strategy}; los empates se reparten en round-robin.
+     */
+    private KicomAvEndpoint pick(List<KicomAvEndpoint> candidates) {
+        int size = candidates.size();
+        if (size == 1) return candidates.get(0);
 
-        if (lower.contains("\"infected\"")) {
-            if (lower.matches("(?s).*\"infected\"\\s*:\\s*(true|1).*")) {
-                String sig = extractJsonString(b, "signature");
-                if (sig == null) sig = extractJsonString(b, "sig");
-                return KicomAvScanResult.infected(sig);
+        int offset = Math.floorMod(roundRobin.getAndIncrement(), size);
+        KicomAvEndpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            KicomAvEndpoint endpoint = candidates.get((offset + i) % size);
+            double cost = endpoint.cost(loadBalancing);
+            if (cost < bestCost) {
+                best = endpoint;
+                bestCost = cost;
             }
-            if (lower.matches("(?s).*\"infected\"\\s*:\\s*(false|0).*")) {
-                return KicomAvScanResult.clean();
+        }
+        return best;
+    }
+
+    /**
+     * Cierra las conexiones keep-alive y el hilo de mantenimiento. Se invoca como destroy-method de Spring.
+     */
+    public synchronized void destroy() {
+        monitored = false;
+        if (scanExecutor != null) {
+            scanExecutor.shutdownNow();
+            scanExecutor = null;
+        }
+        if (housekeeping != null) {
+            housekeeping.shutdownNow();
+            housekeeping = null;
+        }
+        for (KicomAvEndpoint endpoint : endpoints) {
+            endpoint.close();
+        }
+        KicomAvVerdictIndex index = verdictIndex;
+        verdictIndex = null;
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                LOG.warn("[KicomAV] no se pudo cerrar el índice de veredictos: {}", e.toString());
+            }
+        }
+    }
+
+    public KicomAvMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Setters Spring
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Escaneos que pueden esperar conexión libre; los que no caben se rechazan ({@code scan.rejected}).
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public void setSocketSession(boolean socketSession) {
+        this.socketSession = socketSession;
+    }
+
+    public void setHealthCheckIntervalMs(long healthCheckIntervalMs) {
+        this.healthCheckIntervalMs = healthCheckIntervalMs;
+    }
+
+    public void setHealthCheckTimeoutMs(int healthCheckTimeoutMs) {
+        this.healthCheckTimeoutMs = healthCheckTimeoutMs;
+    }
+
+    public void setScanTimeoutMs(long scanTimeoutMs) {
+        this.scanTimeoutMs = scanTimeoutMs;
+    }
+
+    /**
+     * Registra las métricas en el registro compartido (bean {@code kicomAvMetrics}). Los endpoints ya
+     * creados vuelven a publicar sus gauges en él.
+     */
+    public void setMetrics(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+        for (KicomAvEndpoint endpoint : endpoints) {
+            endpoint.setMetrics(metrics);
+        }
+    }
+
+    /**
+     * {@code leastOutstanding} (por defecto) o {@code ewma}.
+     */
+    public void setLoadBalancing(String loadBalancing) {
+        if (!"leastOutstanding".equals(loadBalancing) && !"ewma".equals(loadBalancing)) {
+            throw new IllegalArgumentException("av.kicomav.lb.strategy debe ser leastOutstanding o ewma: "
+                    + loadBalancing);
+        }
+        this.loadBalancing = loadBalancing;
+    }
+
+    public void setEjectionMs(long ejectionMs) {
+        this.ejectionMs = ejectionMs;
+    }
+
+    public void setBreakerEnabled(boolean breakerEnabled) {
+        this.breakerEnabled = breakerEnabled;
+    }
+
+    public void setBreakerWindowSize(int breakerWindowSize) {
+        this.breakerWindowSize = breakerWindowSize;
+    }
+
+    public void setBreakerMinimumCalls(int breakerMinimumCalls) {
+        this.breakerMinimumCalls = breakerMinimumCalls;
+    }
+
+    public void setBreakerFailureRateThreshold(int breakerFailureRateThreshold) {
+        this.breakerFailureRateThreshold = breakerFailureRateThreshold;
+    }
+
+    public void setBreakerOpenMs(long breakerOpenMs) {
+        this.breakerOpenMs = breakerOpenMs;
+    }
+
+    public void setBreakerHalfOpenProbes(int breakerHalfOpenProbes) {
+        this.breakerHalfOpenProbes = breakerHalfOpenProbes;
+    }
+
+    public void setHedgeEnabled(boolean hedgeEnabled) {
+        this.hedgeEnabled = hedgeEnabled;
+    }
+
+    public void setHedgeMaxSizeBytes(int hedgeMaxSizeBytes) {
+        this.hedgeMaxSizeBytes = hedgeMaxSizeBytes;
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public void setHedgeMinDelayMs(long hedgeMinDelayMs) {
+        this.hedgeMinDelayMs = hedgeMinDelayMs;
+    }
+
+    public void setHedgeBudgetPercent(double hedgeBudgetPercent) {
+        this.hedgeBudgetPercent = hedgeBudgetPercent;
+    }
+
+    public void setByReferenceEnabled(boolean byReferenceEnabled) {
+        this.byReferenceEnabled = byReferenceEnabled;
+    }
+
+    /**
+     * Raíz del content store en este servidor (normalmente {@code dir.contentstore}).
+     */
+    public void setByReferenceLocalRoot(String byReferenceLocalRoot) {
+        this.byReferenceLocalRoot = byReferenceLocalRoot == null || byReferenceLocalRoot.isBlank() ? null
+                : Path.of(byReferenceLocalRoot.trim()).toAbsolutePath().normalize();
+    }
+
+    /**
+     * Dónde monta k2d ese mismo content store; vacío si lo ve en la misma ruta.
+     */
+    public void setByReferenceRemoteRoot(String byReferenceRemoteRoot) {
+        this.byReferenceRemoteRoot = byReferenceRemoteRoot == null || byReferenceRemoteRoot.isBlank() ? null
+                : byReferenceRemoteRoot.trim();
+    }
+
+    public void setCacheEnabled(boolean cacheEnabled) {
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    public void setCacheMaxEntries(int cacheMaxEntries) {
+        this.cacheMaxEntries = cacheMaxEntries;
+    }
+
+    public void setCacheTtlMs(long cacheTtlMs) {
+        this.cacheTtlMs = cacheTtlMs;
+    }
+
+    public void setCacheMaxContentBytes(int cacheMaxContentBytes) {
+        this.cacheMaxContentBytes = cacheMaxContentBytes;
+    }
+
+    public void setCacheVersionRefreshMs(long cacheVersionRefreshMs) {
+        this.cacheVersionRefreshMs = cacheVersionRefreshMs;
+    }
+
+    public void setUrlCacheEnabled(boolean urlCacheEnabled) {
+        this.urlCacheEnabled = urlCacheEnabled;
+    }
+
+    public void setUrlCacheMaxEntries(int urlCacheMaxEntries) {
+        this.urlCacheMaxEntries = urlCacheMaxEntries;
+    }
+
+    public void setClusterCacheEnabled(boolean clusterCacheEnabled) {
+        this.clusterCacheEnabled = clusterCacheEnabled;
+    }
+
+    public void setClusterCache(SimpleCache<String, KicomAvScanResult> clusterCache) {
+        this.clusterCache = clusterCache;
+    }
+
+    /**
+     * Almacén persistente de veredictos (null = sin persistencia).
+     */
+    public void setPersistentStore(KicomAvPersistentVerdictStore persistentStore) {
+        this.persistentStore = persistentStore;
+        if (persistentStore != null) {
+            // la purga borra lo guardado con otras firmas
+            persistentStore.setVersionSource(() -> engineVersion);
+        }
+    }
+
+    public void setCacheIndexEnabled(boolean cacheIndexEnabled) {
+        this.cacheIndexEnabled = cacheIndexEnabled;
+    }
+
+    public void setCacheIndexPath(String cacheIndexPath) {
+        this.cacheIndexPath = cacheIndexPath == null || cacheIndexPath.isBlank() ? null
+                : Path.of(cacheIndexPath.trim()).toAbsolutePath().normalize();
+    }
+
+    public void setCacheIndexMaxEntries(long cacheIndexMaxEntries) {
+        this.cacheIndexMaxEntries = cacheIndexMaxEntries;
+    }
+
+    public void setCacheIndexTtlMs(long cacheIndexTtlMs) {
+        this.cacheIndexTtlMs = cacheIndexTtlMs;
+    }
+
+    /**
+     * Lista local de hashes de malware conocido (null = sin lista).
+     */
+    public void setBlocklist(KicomAvHashBlocklist blocklist) {
+        this.blocklist = blocklist;
+    }
+
+    public void setSingleFlightEnabled(boolean singleFlightEnabled) {
+        this.singleFlightEnabled = singleFlightEnabled;
+    }
+
+    public boolean isUrlCacheEnabled() {
+        return urlCacheEnabled;
+    }
+
+    private KicomAvVerdictCache urlCache() {
+        KicomAvVerdictCache c = urlCache;
+        if (c != null) return c;
+        synchronized (this) {
+            if (urlCache == null) {
+                urlCache = new KicomAvVerdictCache(urlCacheMaxEntries, cacheTtlMs);
+                KicomAvVerdictCache cache = urlCache;
+                metrics.registerGauge("urlCache.size", cache::size);
             }
+            return urlCache;
         }
+    }
 
-        if (lower.contains("\"result\"")) {
-            String result = extractJsonString(b, "result");
-            if (result != null) {
-                String r = result.trim().toLowerCase();
-                if (r.contains("clean") || r.equals("ok")) return KicomAvScanResult.clean();
-                if (r.contains("infect")) {
-                    String sig = extractJsonString(b, "signature");
-                    return KicomAvScanResult.infected(sig);
+    /**
+     * Índice de veredictos fuera del heap, abierto al primer uso; null si está desactivado o no se
+     * pudo abrir (se sigue sin él).
+     */
+    private KicomAvVerdictIndex verdictIndex() {
+        KicomAvVerdictIndex i = verdictIndex;
+        if (i != null || !cacheIndexEnabled) return i;
+        synchronized (this) {
+            if (verdictIndex == null && !verdictIndexFailed) {
+                if (cacheIndexPath == null) {
+                    LOG.warn("[KicomAV] av.kicomav.cache.index.enabled sin av.kicomav.cache.index.path; índice desactivado");
+                    verdictIndexFailed = true;
+                    return null;
+                }
+                try {
+                    verdictIndex = KicomAvVerdictIndex.open(cacheIndexPath, cacheIndexMaxEntries);
+                    KicomAvVerdictIndex index = verdictIndex;
+                    metrics.registerGauge("cache.indexSize", index::size);
+                } catch (IOException | RuntimeException e) {
+                    verdictIndexFailed = true;
+                    LOG.warn("[KicomAV] no se pudo abrir el índice de veredictos {}: {}", cacheIndexPath, e.toString());
                 }
             }
+            return verdictIndex;
         }
+    }
 
-        throw new KicomAvException("Respuesta inesperada de KicomAV /scan/file: " + b);
+    private KicomAvVerdictCache verdictCache() {
+        KicomAvVerdictCache c = verdictCache;
+        if (c != null) return c;
+        synchronized (this) {
+            if (verdictCache == null) {
+                verdictCache = new KicomAvVerdictCache(cacheMaxEntries, cacheTtlMs);
+                KicomAvVerdictCache cache = verdictCache;
+                metrics.registerGauge("cache.size", cache::size);
+            }
+            return verdictCache;
+        }
     }
 
-    private static void writeAscii(OutputStream out, String s) throws IOException {
-        out.write(s.getBytes(StandardCharsets.US_ASCII));
+    private KicomAvSingleFlight<KicomAvScanResult> singleFlight() {
+        KicomAvSingleFlight<KicomAvScanResult> f = singleFlight;
+        if (f != null) return f;
+        synchronized (this) {
+            if (singleFlight == null) {
+                singleFlight = new KicomAvSingleFlight<>(metrics);
+                KicomAvSingleFlight<KicomAvScanResult> flights = singleFlight;
+                metrics.registerGauge("singleFlight.inFlight", flights::size);
+            }
+            return singleFlight;
+        }
     }
 
-    private static String escapeQuotes(String s) {
-        return s.replace("\"", "\\\"");
+    private KicomAvLatencyTracker latencies() {
+        KicomAvLatencyTracker l = latencies;
+        if (l != null) return l;
+        synchronized (this) {
+            if (latencies == null) {
+                latencies = new KicomAvLatencyTracker(1024, hedgePercentile);
+                KicomAvLatencyTracker tracker = latencies;
+                metrics.registerGauge("scan.latencyPercentileMs", tracker::percentileMillis);
+            }
+            return latencies;
+        }
     }
 
-    private static String readAll(InputStream in) throws IOException {
-        if (in == null) return null;
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            byte[] buf = new byte[8192];
-            int r;
-            while ((r = in.read(buf)) != -1) {
-                baos.write(buf, 0, r);
+    /**
+     * Crea los circuit breakers con la configuración final (los setters de Spring llegan después del
+     * constructor).
+     */
+    private void ensureBreakers() {
+        if (breakersReady) return;
+        synchronized (this) {
+            if (!breakersReady) {
+                if (breakerEnabled) {
+                    for (KicomAvEndpoint endpoint : endpoints) {
+                        endpoint.breaker = new KicomAvCircuitBreaker(endpoint.getName(), breakerWindowSize,
+                                breakerMinimumCalls, breakerFailureRateThreshold, breakerOpenMs,
+                                breakerHalfOpenProbes, metrics);
+                    }
+                }
+                breakersReady = true;
+            }
+        }
+    }
+
+    private KicomAvTransport transport(KicomAvEndpoint endpoint) {
+        KicomAvTransport t = endpoint.transport;
+        if (t != null) return t;
+        synchronized (this) {
+            if (endpoint.transport == null) {
+                String prefix = endpoints.size() == 1 ? "pool" : "pool." + endpoint.getName();
+                t = KicomAvTransport.create(endpoint.getUri(), new KicomAvTransportConfig(connectTimeoutMs,
+                        maxConnections, idleTimeoutMs, socketSession, metrics, prefix));
+                endpoint.transport = t;
+
+                long period = Math.max(1000L, idleTimeoutMs / 2);
+                scheduler().scheduleWithFixedDelay(t::evictIdle, period, period, TimeUnit.MILLISECONDS);
+
+                LOG.info("[KicomAV] transporte {} (maxConnections={}, idleTimeoutMs={})",
+                        t, maxConnections, idleTimeoutMs);
             }
-            return baos.toString(StandardCharsets.UTF_8);
+            return endpoint.transport;
         }
     }
 
-    private static String extractJsonString(String json, String key) {
-        Pattern p = Pattern.compile("\"" + Pattern.quote(key) + "\"\\s*:\\s*\"([^\"]+)\"");
-        Matcher m = p.matcher(json);
-        return m.find() ? m.group(1) : null;
+    private synchronized ExecutorService executor() {
+        if (scanExecutor == null) {
+            AtomicInteger seq = new AtomicInteger();
+            int threads = maxConnections * endpoints.size();
+            ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads,
+                    60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+                        Thread t = new Thread(r, "kicomav-scan-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            tpe.allowCoreThreadTimeOut(true);
+            metrics.registerGauge("scan.queued", () -> tpe.getQueue().size());
+            metrics.registerGauge("scan.active", tpe::getActiveCount);
+            scanExecutor = tpe;
+        }
+        return scanExecutor;
+    }
+
+    /**
+     * Escaneo de un contenido para {@link #scanOnce(String, ContentScan)}.
+     */
+    @FunctionalInterface
+    public interface ContentScan {
+        KicomAvScanResult scan() throws IOException;
+    }
+
+    /**
+     * Lo que se envía a k2d en un intento, sobre el transporte del endpoint elegido.
+     */
+    @FunctionalInterface
+    private interface ScanRequest {
+        KicomAvScanResult send(KicomAvTransport transport, int timeoutMs) throws IOException;
+    }
+
+    private synchronized ScheduledExecutorService scheduler() {
+        if (housekeeping == null) {
+            housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "kicomav-housekeeping");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return housekeeping;
     }
-}
\ No newline at end of file
+}
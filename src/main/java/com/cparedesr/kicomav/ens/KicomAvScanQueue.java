@@ -0,0 +1,397 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.repository.*;
+import org.alfresco.service.cmr.search.QueryConsistency;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchParameters;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.PropertyCheck;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Post-commit scanning for {@code av.kicomav.async.enabled=true}; while disabled the queue starts no
+ * workers and no sweep, and reports itself saturated so content is scanned synchronously.
+ * <p>
+ * {@link KicomAvContentScanBehaviour} marks the node {@code kav:pendingScan} (reads are denied
+ * while the aspect is present) and calls {@link #enqueueAfterCommit(NodeRef)}; once the upload
+ * transaction commits the node is handed to a bounded pool of workers. Each worker reads the
+ * content by URL as the system user, scans it outside any transaction and then, in a new
+ * transaction, removes the aspect (clean) or replaces it with {@code kav:quarantined} (infected).
+ * <p>
+ * Backpressure: while the queue is full the behaviour scans synchronously inside the upload
+ * transaction as before, and a submission that still finds the queue full runs on the committing
+ * thread. A failed scan is retried {@code maxAttempts} times, {@code retryDelayMs} apart; after
+ * that the node stays pending (fail-closed, with {@code kav:scanError}) or is released (fail-open).
+ * <p>
+ * Recovery: the queue lives in memory, so a restart (or a lost task) would leave nodes pending for
+ * good. Every {@code sweepIntervalMs} (and shortly after startup) a sweep searches for
+ * {@code kav:pendingScan} nodes whose {@code kav:queuedAt} is older than {@code sweepMinAgeMs} and
+ * queues again, up to {@code sweepBatchSize} per pass, those not already queued or waiting for a
+ * retry. Fail-closed nodes with {@code kav:scanError} are retried this way too.
+ * <p>
+ * Metrics: counters {@code async.queued}, {@code async.clean}, {@code async.infected},
+ * {@code async.errors}, {@code async.retries}, {@code async.callerRuns}, {@code async.saturated},
+ * {@code async.recovered} and gauges {@code async.queue}, {@code async.active}.
+ *
+ * @author cparedesr
+ */
+
+public class KicomAvScanQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvScanQueue.class);
+
+    private static final String TXN_NODES = KicomAvScanQueue.class.getName() + ".nodes";
+    private static final long SWEEP_STARTUP_DELAY_MS = 60_000;
+
+    private NodeService nodeService;
+    private ContentService contentService;
+    private TransactionService transactionService;
+    private SearchService searchService;
+    private KicomAvRestClient kicomAvClient;
+    private KicomAvMetrics metrics = new KicomAvMetrics();
+
+    private boolean enabled = false;
+    private int workers = 4;
+    private int queueCapacity = 1000;
+    private int maxAttempts = 3;
+    private long retryDelayMs = 30_000;
+    private boolean failOpen = false;
+    private long sweepIntervalMs = 900_000;
+    private long sweepMinAgeMs = 3_600_000;
+    private int sweepBatchSize = 500;
+
+    private ThreadPoolExecutor executor;
+    private ScheduledExecutorService retries;
+    // nodos en cola, en escaneo o esperando un reintento (el barrido no los duplica)
+    private final ConcurrentMap<NodeRef, Integer> inFlight = new ConcurrentHashMap<>();
+
+    public void init() {
+        // sin modo asíncrono no hay hilos ni barrido: nadie encola nodos
+        if (!enabled) return;
+        PropertyCheck.mandatory(this, "nodeService", nodeService);
+        PropertyCheck.mandatory(this, "contentService", contentService);
+        PropertyCheck.mandatory(this, "transactionService", transactionService);
+        PropertyCheck.mandatory(this, "kicomAvClient", kicomAvClient);
+
+        AtomicInteger seq = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), r -> {
+                    Thread t = new Thread(r, "kicomav-async-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, (task, pool) -> {
+                    // cola llena: lo escanea quien envía (frena al productor en lugar de perder el nodo)
+                    metrics.increment("async.callerRuns");
+                    if (!pool.isShutdown()) task.run();
+                });
+        executor.allowCoreThreadTimeOut(true);
+        retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "kicomav-async-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        ThreadPoolExecutor pool = executor;
+        metrics.registerGauge("async.queue", () -> pool.getQueue().size());
+        metrics.registerGauge("async.active", pool::getActiveCount);
+
+        if (sweepIntervalMs > 0) {
+            PropertyCheck.mandatory(this, "searchService", searchService);
+            retries.scheduleWithFixedDelay(this::sweep, Math.min(SWEEP_STARTUP_DELAY_MS, sweepIntervalMs),
+                    sweepIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        LOG.info("[KicomAV] escaneo asíncrono: workers={} queueCapacity={} maxAttempts={} sweepIntervalMs={}",
+                workers, queueCapacity, maxAttempts, sweepIntervalMs);
+    }
+
+    public void destroy() {
+        if (retries != null) retries.shutdownNow();
+        if (executor != null) executor.shutdownNow();
+    }
+
+    /**
+     * @return true si la cola está llena y conviene escanear de forma síncrona (se cuenta en
+     * {@code async.saturated}); también si el modo asíncrono está desactivado.
+     */
+    public boolean isSaturated() {
+        if (executor == null) return true;
+        boolean saturated = executor.getQueue().remainingCapacity() == 0;
+        if (saturated) metrics.increment("async.saturated");
+        return saturated;
+    }
+
+    /**
+     * Encola el nodo cuando la transacción actual haga commit (si hace rollback no hay nada que
+     * escanear). Varias actualizaciones del mismo nodo en una transacción dan un solo escaneo.
+     */
+    public void enqueueAfterCommit(NodeRef nodeRef) {
+        Set<NodeRef> nodes = AlfrescoTransactionSupport.getResource(TXN_NODES);
+        if (nodes == null) {
+            Set<NodeRef> pending = new LinkedHashSet<>();
+            AlfrescoTransactionSupport.bindResource(TXN_NODES, pending);
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter() {
+                @Override
+                public void afterCommit() {
+                    for (NodeRef node : pending) {
+                        submit(node, 1);
+                    }
+                }
+            });
+            nodes = pending;
+        }
+        nodes.add(nodeRef);
+    }
+
+    void submit(NodeRef nodeRef, int attempt) {
+        inFlight.merge(nodeRef, 1, Integer::sum);
+        dispatch(nodeRef, attempt);
+    }
+
+    private void dispatch(NodeRef nodeRef, int attempt) {
+        metrics.increment("async.queued");
+        executor.execute(() -> process(nodeRef, attempt));
+    }
+
+    /**
+     * Vuelve a encolar los nodos {@code kav:pendingScan} con {@code kav:queuedAt} anterior a
+     * {@code sweepMinAgeMs} que no estén ya en cola: los que se perdieron en un reinicio y los que
+     * agotaron sus reintentos.
+     *
+     * @return número de nodos encolados de nuevo
+     */
+    int sweep() {
+        try {
+            List<NodeRef> stale = AuthenticationUtil.runAsSystem(() ->
+                    transactionService.getRetryingTransactionHelper().doInTransaction(this::findStale, true, true));
+            int recovered = 0;
+            for (NodeRef node : stale) {
+                // con la cola llena se deja para la próxima pasada
+                if (executor.getQueue().remainingCapacity() == 0) break;
+                if (inFlight.containsKey(node)) continue;
+                submit(node, 1);
+                recovered++;
+            }
+            if (recovered > 0) {
+                metrics.add("async.recovered", recovered);
+                LOG.warn("[KicomAV] {} nodos pendientes de escaneo sin encolar desde hace más de {} ms; se encolan de nuevo",
+                        recovered, sweepMinAgeMs);
+            }
+            return recovered;
+        } catch (RuntimeException e) {
+            // no debe cancelar las siguientes ejecuciones programadas
+            LOG.error("[KicomAV] Error buscando nodos pendientes de escaneo: {}", e.toString(), e);
+            return 0;
+        }
+    }
+
+    private List<NodeRef> findStale() {
+        Instant before = Instant.now().minusMillis(sweepMinAgeMs);
+        SearchParameters sp = new SearchParameters();
+        sp.addStore(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+        sp.setLanguage(SearchService.LANGUAGE_FTS_ALFRESCO);
+        // consulta en BD si está disponible; si no, Solr (el worker vuelve a comprobar el aspecto)
+        sp.setQueryConsistency(QueryConsistency.TRANSACTIONAL_IF_POSSIBLE);
+        sp.setQuery("ASPECT:\"" + KicomAvModel.PREFIX + ":pendingScan\" AND "
+                + KicomAvModel.PREFIX + ":queuedAt:[MIN TO \"" + before + "\"]");
+        sp.setMaxItems(sweepBatchSize);
+        ResultSet rs = searchService.query(sp);
+        try {
+            return new ArrayList<>(rs.getNodeRefs());
+        } finally {
+            rs.close();
+        }
+    }
+
+    private void process(NodeRef nodeRef, int attempt) {
+        boolean retrying = false;
+        try {
+            retrying = AuthenticationUtil.runAsSystem(() -> doProcess(nodeRef, attempt));
+        } catch (RuntimeException e) {
+            metrics.increment("async.errors");
+            LOG.error("[KicomAV] Error procesando el escaneo asíncrono de {}: {}", nodeRef, e.toString(), e);
+        } finally {
+            if (!retrying) inFlight.computeIfPresent(nodeRef, (k, n) -> n > 1 ? n - 1 : null);
+        }
+    }
+
+    /**
+     * @return true si queda un reintento programado (el nodo sigue en {@code inFlight})
+     */
+    private boolean doProcess(NodeRef nodeRef, int attempt) {
+        RetryingTransactionHelper txn = transactionService.getRetryingTransactionHelper();
+
+        // 1) estado actual, en una transacción de sólo lectura
+        Pending pending = txn.doInTransaction(() -> {
+            if (!nodeService.exists(nodeRef) || !nodeService.hasAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN)) {
+                return null;
+            }
+            ContentData content = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+            String name = (String) nodeService.getProperty(nodeRef, ContentModel.PROP_NAME);
+            return new Pending(content == null ? null : content.getContentUrl(), name);
+        }, true, true);
+        if (pending == null) {
+            LOG.debug("[KicomAV] nodo ya no pendiente de escaneo: {}", nodeRef);
+            return false;
+        }
+
+        // 2) escaneo fuera de transacción: no se retienen conexiones ni bloqueos de BD
+        KicomAvScanResult result;
+        try {
+            result = pending.contentUrl == null ? KicomAvScanResult.clean() : scan(pending);
+        } catch (IOException | RuntimeException e) {
+            return onError(nodeRef, pending, attempt, e);
+        }
+
+        // 3) resultado, en una transacción nueva
+        txn.doInTransaction(() -> {
+            if (!isStillPending(nodeRef, pending)) return null;
+            nodeService.removeAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN);
+            if (result.isInfected()) {
+                Map<QName, Serializable> props = new HashMap<>();
+                props.put(KicomAvModel.PROP_SIGNATURE, result.getSignature());
+                props.put(KicomAvModel.PROP_QUARANTINED_AT, new Date());
+                nodeService.addAspect(nodeRef, KicomAvModel.ASPECT_QUARANTINED, props);
+                metrics.increment("async.infected");
+                LOG.info("[KicomAV] INFECCIÓN detectada tras el commit, nodo en cuarentena: signature='{}' node={} name={}",
+                        result.getSignature(), nodeRef, pending.name);
+            } else {
+                metrics.increment("async.clean");
+                LOG.info("[KicomAV] Nodo limpio: node={} name={}", nodeRef, pending.name);
+            }
+            return null;
+        }, false, true);
+        return false;
+    }
+
+    private KicomAvScanResult scan(Pending pending) throws IOException {
+        ContentReader reader = contentService.getRawReader(pending.contentUrl);
+        if (reader == null || !reader.exists()) {
+            throw new KicomAvException("Contenido no encontrado: " + pending.contentUrl);
+        }
+        return KicomAvContentScanBehaviour.scanContent(kicomAvClient, reader, pending.name);
+    }
+
+    /**
+     * El nodo puede haber cambiado mientras se escaneaba: borrado, ya resuelto o con otro contenido
+     * (ese tendrá su propio escaneo).
+     */
+    private boolean isStillPending(NodeRef nodeRef, Pending pending) {
+        if (!nodeService.exists(nodeRef) || !nodeService.hasAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN)) {
+            return false;
+        }
+        ContentData content = (ContentData) nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT);
+        return Objects.equals(content == null ? null : content.getContentUrl(), pending.contentUrl);
+    }
+
+    private boolean onError(NodeRef nodeRef, Pending pending, int attempt, Exception e) {
+        metrics.increment("async.errors");
+        if (attempt < maxAttempts) {
+            metrics.increment("async.retries");
+            LOG.warn("[KicomAV] Error en escaneo asíncrono (intento {}/{}), se reintenta en {} ms. node={} cause={}",
+                    attempt, maxAttempts, retryDelayMs, nodeRef, e.toString());
+            retries.schedule(() -> dispatch(nodeRef, attempt + 1), retryDelayMs, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        transactionService.getRetryingTransactionHelper().doInTransaction(() -> {
+            if (!isStillPending(nodeRef, pending)) return null;
+            if (failOpen) {
+                nodeService.removeAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN);
+                LOG.warn("[KicomAV] AV falló pero failOpen=true, liberando contenido. node={} name={} cause={}",
+                        nodeRef, pending.name, e.toString());
+            } else {
+                nodeService.setProperty(nodeRef, KicomAvModel.PROP_SCAN_ERROR, e.toString());
+                LOG.error("[KicomAV] Error escaneando tras {} intentos; el contenido sigue bloqueado. node={} name={} cause={}",
+                        attempt, nodeRef, pending.name, e.toString(), e);
+            }
+            return null;
+        }, false, true);
+        return false;
+    }
+
+    // Setters Spring
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setNodeService(NodeService nodeService) {
+        this.nodeService = nodeService;
+    }
+
+    public void setContentService(ContentService contentService) {
+        this.contentService = contentService;
+    }
+
+    public void setTransactionService(TransactionService transactionService) {
+        this.transactionService = transactionService;
+    }
+
+    public void setSearchService(SearchService searchService) {
+        this.searchService = searchService;
+    }
+
+    public void setKicomAvClient(KicomAvRestClient kicomAvClient) {
+        this.kicomAvClient = kicomAvClient;
+    }
+
+    public void setMetrics(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public void setRetryDelayMs(long retryDelayMs) {
+        this.retryDelayMs = retryDelayMs;
+    }
+
+    public void setFailOpen(boolean failOpen) {
+        this.failOpen = failOpen;
+    }
+
+    public void setSweepIntervalMs(long sweepIntervalMs) {
+        this.sweepIntervalMs = sweepIntervalMs;
+    }
+
+    public void setSweepMinAgeMs(long sweepMinAgeMs) {
+        this.sweepMinAgeMs = sweepMinAgeMs;
+    }
+
+    public void setSweepBatchSize(int sweepBatchSize) {
+        this.sweepBatchSize = sweepBatchSize;
+    }
+
+    private static final class Pending {
+        final String contentUrl;
+        final String name;
+
+        Pending(String contentUrl, String name) {
+            this.contentUrl = contentUrl;
+            this.name = name;
+        }
+    }
+}
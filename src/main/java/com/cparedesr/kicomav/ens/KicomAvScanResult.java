@@ -1,5 +1,7 @@
 package com.cparedesr.kicomav.ens;
 
+import java.io.Serializable;
+
 /**
  * Represents the result of a scan performed by KicomAV.
  * <p>
@@ -14,11 +16,16 @@ package com.cparedesr.kicomav.ens;
  * <p>
  * Use {@link #clean()} to create a result representing a clean file, and {@link #infected(String)} to create a result for an infected file.
  * </p>
+ * <p>
+ * Serializable so that verdicts can be kept in Alfresco's clustered caches.
+ * </p>
  *
  * @author cparedesr
  */
 
-public final class KicomAvScanResult {
+public final class KicomAvScanResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private final boolean infected;
     private final String signature;
@@ -0,0 +1,323 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.DirectAccessUrl;
+import org.alfresco.service.cmr.repository.StorageClassSet;
+import org.alfresco.util.PropertyCheck;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ContentStore} decorator that scans new content as it is written.
+ * <p>
+ * With {@code teeEnabled}, writers handed out by {@link #getWriter(ContentContext)} copy every byte
+ * written to the wrapped store into a concurrent k2d scan ({@link KicomAvScanningContentWriter}),
+ * so the verdict is ready about when the write ends and is recorded under the new content URL;
+ * {@link KicomAvContentScanBehaviour} then finds it in the URL verdict cache instead of reading the
+ * content back from disk. At most {@code maxConcurrentScans} writes are teed at the same time, and a
+ * k2d that stops reading holds a write back for at most {@code writeTimeoutMs} before its scan is
+ * abandoned.
+ * <p>
+ * With {@code scanEnabled} the store itself enforces the verdict when the write is closed: every
+ * new binary is scanned exactly once, whatever the node type and however many nodes end up
+ * referencing it, and infected content is deleted and rejected; {@code failOpen} decides what
+ * happens when k2d fails. The behaviour can then be switched off
+ * ({@code av.kicomav.behaviour.enabled=false}). Reads, deletes and everything else go straight to
+ * the wrapped store, including the {@code ContentStore} default methods (direct access URLs, storage
+ * properties, archive requests and storage classes), so wrapping a cloud store keeps them working.
+ * <p>
+ * With {@code prefilterEnabled} (and tee or store scanning) the bytes written also run through a
+ * {@link KicomAvPatternMatcher} with the patterns of {@code prefilterPatternsFile} (if none, EICAR at the start of the content):
+ * a match is taken as the verdict as soon as the write ends, and the k2d scan in progress is
+ * cancelled.
+ * <p>
+ * Metrics: {@code tee.scans}, {@code tee.verdicts}, {@code tee.skipped}, {@code tee.failed},
+ * {@code tee.stalled}, {@code tee.blocklisted}, {@code store.scans}, {@code store.infected}, {@code store.errors},
+ * {@code prefilter.hits}.
+ *
+ * @author cparedesr
+ */
+
+public class KicomAvScanningContentStore implements ContentStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvScanningContentStore.class);
+
+    private ContentStore store;
+    private KicomAvRestClient kicomAvClient;
+    private KicomAvMetrics metrics = new KicomAvMetrics();
+
+    private boolean teeEnabled = false;
+    private boolean scanEnabled = false;
+    private boolean failOpen = false;
+    private int maxConcurrentScans = 16;
+    private long verdictWaitMs = 30_000;
+    private long writeTimeoutMs = 10_000;
+    private boolean prefilterEnabled = false;
+    private Path prefilterPatternsFile;
+
+    private ExecutorService scanners;
+    private KicomAvPatternMatcher prefilter;
+
+    public void init() {
+        PropertyCheck.mandatory(this, "store", store);
+        PropertyCheck.mandatory(this, "kicomAvClient", kicomAvClient);
+
+        if (teeEnabled && !scanEnabled && !kicomAvClient.isUrlCacheEnabled()) {
+            // sin caché por URL el behaviour no vería el veredicto
+            LOG.warn("[KicomAV] av.kicomav.tee.enabled requiere av.kicomav.urlCache.enabled=true o av.kicomav.store.scanEnabled=true; se desactiva");
+            teeEnabled = false;
+        }
+        if (teeEnabled) {
+            AtomicInteger seq = new AtomicInteger();
+            // sin cola: si no hay hilo libre esa escritura no se copia a k2d (se escaneará al cerrar o en el behaviour)
+            scanners = new ThreadPoolExecutor(0, maxConcurrentScans, 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<>(), r -> {
+                        Thread t = new Thread(r, "kicomav-tee-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+        }
+        if (prefilterEnabled) {
+            try {
+                prefilter = prefilterPatternsFile == null ? KicomAvPatternMatcher.defaults()
+                        : KicomAvPatternMatcher.load(prefilterPatternsFile);
+            } catch (IOException e) {
+                throw new IllegalStateException("[KicomAV] no se pudo leer " + prefilterPatternsFile, e);
+            }
+            LOG.info("[KicomAV] prefiltro local con {} patrones ({})", prefilter.size(),
+                    prefilterPatternsFile == null ? "EICAR" : prefilterPatternsFile);
+        }
+        LOG.info("[KicomAV] ContentStore decorado: teeEnabled={} scanEnabled={} failOpen={} maxConcurrentScans={}",
+                teeEnabled, scanEnabled, failOpen, maxConcurrentScans);
+    }
+
+    public void destroy() {
+        if (scanners != null) scanners.shutdownNow();
+    }
+
+    @Override
+    public ContentWriter getWriter(ContentContext context) {
+        ContentWriter writer = store.getWriter(context);
+        if (!teeEnabled && !scanEnabled) {
+            return writer;
+        }
+        return new KicomAvScanningContentWriter(writer, context.getExistingContentReader(), this);
+    }
+
+    /**
+     * Borra del store un binario rechazado; un fallo al borrar sólo se registra (el contenido
+     * huérfano lo acabará limpiando el content store cleaner).
+     */
+    void deleteContent(String contentUrl) {
+        try {
+            store.delete(contentUrl);
+        } catch (RuntimeException e) {
+            LOG.warn("[KicomAV] No se pudo borrar el contenido rechazado: url={} cause={}", contentUrl, e.toString());
+        }
+    }
+
+    @Override
+    public boolean isContentUrlSupported(String contentUrl) {
+        return store.isContentUrlSupported(contentUrl);
+    }
+
+    @Override
+    public boolean isWriteSupported() {
+        return store.isWriteSupported();
+    }
+
+    @Override
+    public long getSpaceFree() {
+        return store.getSpaceFree();
+    }
+
+    @Override
+    public long getSpaceTotal() {
+        return store.getSpaceTotal();
+    }
+
+    @Override
+    public String getRootLocation() {
+        return store.getRootLocation();
+    }
+
+    @Override
+    public boolean exists(String contentUrl) {
+        return store.exists(contentUrl);
+    }
+
+    @Override
+    public ContentReader getReader(String contentUrl) {
+        return store.getReader(contentUrl);
+    }
+
+    @Override
+    public boolean delete(String contentUrl) {
+        return store.delete(contentUrl);
+    }
+
+    @Override
+    public boolean isContentDirectUrlEnabled() {
+        return store.isContentDirectUrlEnabled();
+    }
+
+    @Override
+    public boolean isContentDirectUrlEnabled(String contentUrl) {
+        return store.isContentDirectUrlEnabled(contentUrl);
+    }
+
+    @Override
+    public DirectAccessUrl requestContentDirectUrl(String contentUrl, boolean attachment, String fileName, Long validFor) {
+        return store.requestContentDirectUrl(contentUrl, attachment, fileName, validFor);
+    }
+
+    @Override
+    public DirectAccessUrl requestContentDirectUrl(String contentUrl, boolean attachment, String fileName, String mimetype,
+                                                   Long validFor) {
+        return store.requestContentDirectUrl(contentUrl, attachment, fileName, mimetype, validFor);
+    }
+
+    @Override
+    public Map<String, String> getStorageProperties(String contentUrl) {
+        return store.getStorageProperties(contentUrl);
+    }
+
+    @Override
+    public boolean requestSendContentToArchive(String contentUrl, Map<String, Serializable> archiveParams) {
+        return store.requestSendContentToArchive(contentUrl, archiveParams);
+    }
+
+    @Override
+    public boolean requestRestoreContentFromArchive(String contentUrl, Map<String, Serializable> restoreParams) {
+        return store.requestRestoreContentFromArchive(contentUrl, restoreParams);
+    }
+
+    @Override
+    public boolean isStorageClassesSupported(StorageClassSet storageClassSet) {
+        return store.isStorageClassesSupported(storageClassSet);
+    }
+
+    @Override
+    public Set<String> getSupportedStorageClasses() {
+        return store.getSupportedStorageClasses();
+    }
+
+    @Override
+    public void updateStorageClasses(String contentUrl, StorageClassSet storageClassSet, Map<String, Object> parameters) {
+        store.updateStorageClasses(contentUrl, storageClassSet, parameters);
+    }
+
+    @Override
+    public StorageClassSet findStorageClasses(String contentUrl) {
+        return store.findStorageClasses(contentUrl);
+    }
+
+    @Override
+    public Map<StorageClassSet, Set<StorageClassSet>> getStorageClassesTransitions() {
+        return store.getStorageClassesTransitions();
+    }
+
+    @Override
+    public Map<StorageClassSet, Set<StorageClassSet>> findStorageClassesTransitions(String contentUrl) {
+        return store.findStorageClassesTransitions(contentUrl);
+    }
+
+    KicomAvRestClient getKicomAvClient() {
+        return kicomAvClient;
+    }
+
+    KicomAvMetrics getMetrics() {
+        return metrics;
+    }
+
+    ExecutorService getScanners() {
+        return scanners;
+    }
+
+    long getVerdictWaitMs() {
+        return verdictWaitMs;
+    }
+
+    long getWriteTimeoutMs() {
+        return writeTimeoutMs;
+    }
+
+    boolean isTeeEnabled() {
+        return teeEnabled;
+    }
+
+    boolean isScanEnabled() {
+        return scanEnabled;
+    }
+
+    boolean isFailOpen() {
+        return failOpen;
+    }
+
+    /**
+     * @return el prefiltro compilado, o null si está desactivado.
+     */
+    KicomAvPatternMatcher getPrefilter() {
+        return prefilter;
+    }
+
+    // Setters Spring
+    public void setStore(ContentStore store) {
+        this.store = store;
+    }
+
+    public void setKicomAvClient(KicomAvRestClient kicomAvClient) {
+        this.kicomAvClient = kicomAvClient;
+    }
+
+    public void setMetrics(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setTeeEnabled(boolean teeEnabled) {
+        this.teeEnabled = teeEnabled;
+    }
+
+    public void setScanEnabled(boolean scanEnabled) {
+        this.scanEnabled = scanEnabled;
+    }
+
+    public void setFailOpen(boolean failOpen) {
+        this.failOpen = failOpen;
+    }
+
+    public void setMaxConcurrentScans(int maxConcurrentScans) {
+        this.maxConcurrentScans = maxConcurrentScans;
+    }
+
+    public void setVerdictWaitMs(long verdictWaitMs) {
+        this.verdictWaitMs = verdictWaitMs;
+    }
+
+    public void setWriteTimeoutMs(long writeTimeoutMs) {
+        this.writeTimeoutMs = writeTimeoutMs;
+    }
+
+    public void setPrefilterEnabled(boolean prefilterEnabled) {
+        this.prefilterEnabled = prefilterEnabled;
+    }
+
+    /**
+     * Fichero de patrones del prefiltro (vacío = sólo EICAR).
+     */
+    public void setPrefilterPatternsFile(String prefilterPatternsFile) {
+        this.prefilterPatternsFile = prefilterPatternsFile == null || prefilterPatternsFile.isBlank() ? null
+                : Path.of(prefilterPatternsFile.trim()).toAbsolutePath().normalize();
+    }
+}
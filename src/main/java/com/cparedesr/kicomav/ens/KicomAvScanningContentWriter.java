@@ -0,0 +1,323 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.repo.content.AbstractContentWriter;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+
+/**
+ * Content writer handed out by {@link KicomAvScanningContentStore}.
+ * <p>
+ * With tee enabled, every chunk written to the delegate's channel is also copied into a pipe read
+ * by a scan running on the store's scanners; when the channel is closed the writer waits up to
+ * {@code verdictWaitMs} for the verdict and records it under the content URL
+ * ({@link KicomAvRestClient#putVerdict}), where the behaviour finds it without reading the content
+ * back. If the scan cannot start, fails or is too slow, nothing is recorded; a slow k2d slows the
+ * write down through the bounded pipe ({@link KicomAvTeePipe}), but a chunk that finds no room in it
+ * within {@code writeTimeoutMs} abandons the scan ({@code tee.stalled}) and the write goes on
+ * without it. With the hash blocklist enabled the teed bytes are also
+ * hashed: content that is known malware gets its verdict from the blocklist as soon as the write
+ * ends, without waiting for k2d, and content k2d finds infected is added to the blocklist. With
+ * the store's pre-filter, the written bytes are also matched against its patterns; a match is the
+ * verdict (recorded like a tee verdict) and the k2d scan in progress is cancelled.
+ * <p>
+ * With store scanning enabled the verdict is also enforced on close: content without a tee verdict
+ * is scanned from the store, and infected content (or, fail-closed, content that could not be
+ * scanned) is deleted from the store and the write fails with {@link KicomAvException}.
+ *
+ * @author cparedesr
+ */
+
+class KicomAvScanningContentWriter extends AbstractContentWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvScanningContentWriter.class);
+
+    private static final int PIPE_SIZE = 256 * 1024;
+
+    private final ContentWriter delegate;
+    private final KicomAvScanningContentStore owner;
+    private final KicomAvRestClient kicomAvClient;
+    private final KicomAvMetrics metrics;
+
+    KicomAvScanningContentWriter(ContentWriter delegate, ContentReader existingContentReader,
+                                 KicomAvScanningContentStore owner) {
+        super(delegate.getContentUrl(), existingContentReader);
+        this.delegate = delegate;
+        this.owner = owner;
+        this.kicomAvClient = owner.getKicomAvClient();
+        this.metrics = owner.getMetrics();
+    }
+
+    @Override
+    protected ContentReader createReader() throws ContentIOException {
+        return delegate.getReader();
+    }
+
+    @Override
+    public long getSize() {
+        return delegate.getSize();
+    }
+
+    @Override
+    protected WritableByteChannel getDirectWritableChannel() throws ContentIOException {
+        WritableByteChannel target = delegate.getWritableChannel();
+        KicomAvPatternMatcher prefilter = owner.getPrefilter();
+        KicomAvPatternMatcher.Stream match = prefilter == null ? null : prefilter.stream();
+        if (!owner.isTeeEnabled()) {
+            return owner.isScanEnabled() ? new ScanningChannel(target, null, null, null, match) : target;
+        }
+
+        String url = getContentUrl();
+        KicomAvTeePipe out = null;
+        Future<KicomAvScanResult> scan = null;
+        if (kicomAvClient.isKnownDown()) {
+            metrics.increment("tee.skipped");
+        } else {
+            KicomAvTeePipe pipe = new KicomAvTeePipe(PIPE_SIZE);
+            try {
+                scan = owner.getScanners().submit(() -> {
+                    try (InputStream data = pipe.input()) {
+                        return kicomAvClient.scan(data, fileName(url));
+                    }
+                });
+                out = pipe;
+                metrics.increment("tee.scans");
+            } catch (RejectedExecutionException e) {
+                // sin hilo libre: se escribe sin más y se escaneará al cerrar o en el behaviour
+                out = null;
+                metrics.increment("tee.skipped");
+                LOG.debug("[KicomAV] escritura sin escaneo simultáneo: url={} cause={}", url, e.toString());
+            }
+        }
+        return out == null && !owner.isScanEnabled() && match == null ? target
+                : new ScanningChannel(target, out, scan, out != null && kicomAvClient.isBlocklistEnabled() ? sha256() : null,
+                        match);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 no disponible", e);
+        }
+    }
+
+    static String fileName(String contentUrl) {
+        int slash = contentUrl == null ? -1 : contentUrl.lastIndexOf('/');
+        return slash < 0 ? contentUrl : contentUrl.substring(slash + 1);
+    }
+
+    /**
+     * Canal que escribe en el store, copia lo escrito al escaneo en curso (si lo hay) y, al cerrar,
+     * recoge el veredicto y, si el store escanea, lo aplica.
+     */
+    private final class ScanningChannel implements WritableByteChannel {
+
+        private final WritableByteChannel target;
+        private final KicomAvTeePipe pipe;
+        private final Future<KicomAvScanResult> scan;
+        private MessageDigest digest;
+        private KicomAvPatternMatcher.Stream prefilter;
+        private KicomAvScanResult prefiltered;
+        private byte[] chunk;
+        private boolean teeing;
+        private boolean finished;
+
+        ScanningChannel(WritableByteChannel target, KicomAvTeePipe pipe, Future<KicomAvScanResult> scan,
+                        MessageDigest digest, KicomAvPatternMatcher.Stream prefilter) {
+            this.target = target;
+            this.pipe = pipe;
+            this.scan = scan;
+            this.digest = digest;
+            this.prefilter = prefilter;
+            this.teeing = pipe != null;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int start = src.position();
+            int written = target.write(src);
+            if (written > 0 && prefilter != null) {
+                boolean found = src.hasArray()
+                        ? prefilter.update(src.array(), src.arrayOffset() + start, written)
+                        : prefilter.update(src.duplicate().position(start).limit(start + written));
+                if (found) {
+                    prefiltered();
+                }
+            }
+            if (written > 0 && teeing) {
+                if (digest != null) {
+                    ByteBuffer hashed = src.duplicate();
+                    digest.update(hashed.position(start).limit(start + written));
+                }
+                // k2d no puede retener la subida más de writeTimeoutMs por bloque
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(owner.getWriteTimeoutMs());
+                try {
+                    boolean sent = true;
+                    if (src.hasArray()) {
+                        sent = pipe.write(src.array(), src.arrayOffset() + start, written, deadline);
+                    } else {
+                        ByteBuffer copy = src.duplicate();
+                        copy.position(start).limit(start + written);
+                        if (chunk == null) chunk = new byte[64 * 1024];
+                        while (sent && copy.hasRemaining()) {
+                            int n = Math.min(chunk.length, copy.remaining());
+                            copy.get(chunk, 0, n);
+                            sent = pipe.write(chunk, 0, n, deadline);
+                        }
+                    }
+                    if (!sent) {
+                        metrics.increment("tee.stalled");
+                        abandon("k2d no lee el contenido desde hace " + owner.getWriteTimeoutMs() + " ms");
+                    }
+                } catch (IOException e) {
+                    // el escaneo terminó antes de tiempo (error de k2d): se sigue escribiendo sin él
+                    abandon(e.toString());
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (finished) {
+                target.close();
+                return;
+            }
+            finished = true;
+            KicomAvScanResult result;
+            try {
+                target.close();
+            } finally {
+                result = prefiltered != null ? remember(prefiltered) : teeVerdict();
+            }
+            if (owner.isScanEnabled()) {
+                enforce(result);
+            }
+        }
+
+        /**
+         * @return el veredicto del escaneo simultáneo (ya recordado por URL), o null si no lo hay.
+         */
+        private KicomAvScanResult teeVerdict() {
+            if (!teeing) return null;
+            teeing = false;
+            String url = getContentUrl();
+            byte[] sha256 = digest == null ? null : digest.digest();
+            pipe.close();
+            try {
+                KicomAvScanResult result = sha256 == null ? null : kicomAvClient.blocklisted(sha256);
+                if (result != null) {
+                    // malware conocido: no se espera a k2d
+                    scan.cancel(true);
+                    metrics.increment("tee.blocklisted");
+                } else {
+                    result = scan.get(owner.getVerdictWaitMs(), TimeUnit.MILLISECONDS);
+                    if (sha256 != null) kicomAvClient.rememberInfected(sha256, result);
+                }
+                return remember(result);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                scan.cancel(true);
+            } catch (TimeoutException e) {
+                scan.cancel(true);
+                metrics.increment("tee.failed");
+                LOG.debug("[KicomAV] sin veredicto tras {} ms, se escaneará después: url={}", owner.getVerdictWaitMs(), url);
+            } catch (ExecutionException e) {
+                metrics.increment("tee.failed");
+                LOG.debug("[KicomAV] escaneo simultáneo fallido, se escaneará después: url={} cause={}", url, e.toString());
+            }
+            return null;
+        }
+
+        /**
+         * Recuerda por URL el veredicto obtenido al escribir, para que el behaviour no relea el contenido.
+         */
+        private KicomAvScanResult remember(KicomAvScanResult result) {
+            String url = getContentUrl();
+            String key = kicomAvClient.contentUrlKey(url);
+            if (key != null) {
+                kicomAvClient.putVerdict(key, result);
+                metrics.increment("tee.verdicts");
+            }
+            LOG.debug("[KicomAV] veredicto al terminar la escritura: url={} infected={}", url, result.isInfected());
+            return result;
+        }
+
+        /**
+         * Un patrón del prefiltro ha aparecido: ese es el veredicto y el escaneo de k2d ya no hace falta.
+         */
+        private void prefiltered() {
+            prefiltered = KicomAvScanResult.infected(prefilter.matched());
+            prefilter = null;
+            metrics.increment("prefilter.hits");
+            LOG.debug("[KicomAV] prefiltro: {} en url={}", prefiltered.getSignature(), getContentUrl());
+            if (teeing) {
+                teeing = false;
+                scan.cancel(true);
+                pipe.abort();
+            }
+        }
+
+        /**
+         * Escaneo en el store: infectado (o, sin failOpen, imposible de escanear) se borra y la
+         * escritura falla.
+         */
+        private void enforce(KicomAvScanResult teeResult) {
+            String url = getContentUrl();
+            String name = fileName(url);
+            metrics.increment("store.scans");
+            KicomAvScanResult result = teeResult;
+            try {
+                if (result == null) {
+                    if (kicomAvClient.isKnownDown()) {
+                        throw new KicomAvException("KicomAV no disponible (healthcheck)");
+                    }
+                    result = KicomAvContentScanBehaviour.scanContent(kicomAvClient, delegate.getReader(), name);
+                }
+            } catch (Exception e) {
+                metrics.increment("store.errors");
+                if (owner.isFailOpen()) {
+                    LOG.warn("[KicomAV] AV falló pero failOpen=true, se guarda el contenido. url={} cause={}", url, e.toString());
+                    return;
+                }
+                owner.deleteContent(url);
+                LOG.info("[KicomAV] Error escaneando en el store. Contenido rechazado. url={} cause={}", url, e.toString(), e);
+                throw e instanceof KicomAvException
+                        ? (KicomAvException) e
+                        : new KicomAvException("Error al escanear con KicomAV: " + e.getMessage(), e);
+            }
+
+            if (result.isInfected()) {
+                metrics.increment("store.infected");
+                owner.deleteContent(url);
+                LOG.info("[KicomAV] INFECCIÓN detectada al escribir: signature='{}' url={}", result.getSignature(), url);
+                throw new KicomAvException("Fichero infectado: " + result.getSignature());
+            }
+            LOG.debug("[KicomAV] Contenido limpio: url={}", url);
+        }
+
+        private void abandon(String cause) {
+            teeing = false;
+            scan.cancel(true);
+            pipe.abort();
+            metrics.increment("tee.failed");
+            LOG.debug("[KicomAV] escaneo simultáneo interrumpido: url={} cause={}", getContentUrl(), cause);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.cparedesr.kicomav.ens;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key (a content hash or URL) into a single call, so that
+ * a bulk copy or a rule that duplicates a document does not send the same binary to k2d from
+ * several threads at once.
+ * <p>
+ * The first caller for a key starts the call; callers arriving while it runs wait for the same
+ * outcome, verdict or failure. Every caller gets a future of its own, so its deadline or
+ * cancellation does not affect the others; the shared call is only abandoned (cancelled, or timed
+ * out if the last caller timed out) when no caller is left waiting for it. Once the call completes
+ * the key is released, and the next caller starts a new one.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvSingleFlight<T> {
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final KicomAvMetrics metrics;
+
+    KicomAvSingleFlight(KicomAvMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param name prefijo de la métrica {@code <name>.coalesced}, que cuenta las llamadas ahorradas
+     * @param call se invoca sólo si no hay ya una llamada en curso para {@code key}
+     * @return un future propio del llamante con el resultado de la llamada compartida
+     */
+    CompletableFuture<T> join(String name, String key, Supplier<CompletableFuture<T>> call) {
+        while (true) {
+            Flight flight = flights.get(key);
+            boolean leader = false;
+            if (flight == null) {
+                Flight created = new Flight();
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null) {
+                    flight = created;
+                    leader = true;
+                }
+            }
+            CompletableFuture<T> waiter = flight.follow();
+            if (waiter == null) {
+                // abandonada por todos sus llamantes justo ahora: se empieza otra
+                flights.remove(key, flight);
+                continue;
+            }
+            if (leader) {
+                flight.start(key, call);
+            } else {
+                metrics.increment(name + ".coalesced");
+            }
+            return waiter;
+        }
+    }
+
+    int size() {
+        return flights.size();
+    }
+
+    private final class Flight {
+
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private CompletableFuture<T> running;
+        private int waiters;
+        private boolean abandoned;
+        private Throwable abandonCause;
+
+        synchronized CompletableFuture<T> follow() {
+            if (abandoned) return null;
+            waiters++;
+            CompletableFuture<T> waiter = new CompletableFuture<>();
+            result.whenComplete((r, t) -> {
+                if (t == null) waiter.complete(r);
+                else waiter.completeExceptionally(t);
+            });
+            // terminado antes que la llamada: cancelado o fuera de plazo
+            waiter.whenComplete((r, t) -> {
+                if (!result.isDone()) leave(t);
+            });
+            return waiter;
+        }
+
+        void start(String key, Supplier<CompletableFuture<T>> call) {
+            CompletableFuture<T> started;
+            try {
+                started = call.get();
+            } catch (RuntimeException | Error e) {
+                started = CompletableFuture.failedFuture(e);
+            }
+            synchronized (this) {
+                running = started;
+                if (abandoned) abandon();
+            }
+            started.whenComplete((r, t) -> {
+                if (t == null) {
+                    result.complete(r);
+                } else {
+                    result.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                }
+                flights.remove(key, this);
+            });
+        }
+
+        private synchronized void leave(Throwable cause) {
+            if (--waiters > 0 || abandoned) return;
+            abandoned = true;
+            abandonCause = cause;
+            if (running != null) abandon();
+        }
+
+        /**
+         * Sin nadie esperando: se libera la llamada en curso como lo habría hecho su único llamante.
+         */
+        private void abandon() {
+            if (abandonCause instanceof TimeoutException) {
+                running.completeExceptionally(abandonCause);
+            } else {
+                running.cancel(true);
+            }
+        }
+    }
+}
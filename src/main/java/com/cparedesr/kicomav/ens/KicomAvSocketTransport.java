@@ -0,0 +1,253 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link KicomAvTransport} for the native k2d socket protocol (clamd compatible), either on the
+ * TCP port 3311 ({@code tcp://host:3311}) or on the daemon's Unix domain socket
+ * ({@code unix:///var/run/kicomav/k2d.sock}) when k2d runs on the same host.
+ * <p>
+ * Commands are null-terminated ({@code zPING\0}, {@code zINSTREAM\0}) and content is streamed
+ * as length-prefixed chunks (4-byte big-endian size followed by the bytes, a zero size ends the
+ * stream), so there is no multipart framing to build on our side nor to parse on the daemon side.
+ * Local files are sent in larger chunks whose bytes go from the file to the socket with
+ * {@code FileChannel.transferTo}. When k2d can read the file itself (shared content store volume),
+ * {@code SCAN <path>} scans it in place without sending anything.
+ * <p>
+ * With {@code av.kicomav.socket.session=true} every pooled connection opens an {@code IDSESSION}
+ * and stays open for many commands; replies come back numbered ({@code "3: stream: OK"}) and are
+ * checked against the request sequence. The session command is not flushed on its own: it travels
+ * pipelined with the first real command. A session that got an {@code ERROR} reply is closed rather
+ * than returned to the pool (k2d may already have dropped it), except for a {@code SCAN} of a file
+ * the daemon cannot see, which is an ordinary answer. Without session mode each command uses its
+ * own connection, which k2d closes after replying.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvSocketTransport implements KicomAvTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvSocketTransport.class);
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int FILE_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_REPLY = 64 * 1024;
+
+    private final String endpoint;
+    private final boolean session;
+    private final KicomAvConnectionPool pool;
+    private volatile boolean scanPathSupported = true;
+
+    KicomAvSocketTransport(URI uri, KicomAvTransportConfig config) {
+        boolean unix = "unix".equalsIgnoreCase(uri.getScheme());
+        if (unix ? (uri.getPath() == null || uri.getPath().isEmpty()) : (uri.getHost() == null || uri.getPort() <= 0)) {
+            throw new IllegalArgumentException(
+                    "URL de socket KicomAV debe ser tcp://host:puerto o unix:///ruta/k2d.sock: " + uri);
+        }
+        this.endpoint = uri.toString();
+        this.session = config.socketSession;
+        this.pool = config.newPool(() -> {
+            KicomAvConnection con = unix
+                    ? KicomAvConnection.openUnix(Path.of(uri.getPath()))
+                    : KicomAvConnection.openTcp(uri.getHost(), uri.getPort(), false, config.connectTimeoutMs);
+            if (session) {
+                writeCommand(con.out(), "IDSESSION");
+            }
+            return con;
+        });
+    }
+
+    @Override
+    public void ping(int timeoutMs) throws IOException {
+        String reply = execute("PING", timeoutMs, null, true);
+        if (!reply.trim().equalsIgnoreCase("PONG")) {
+            throw new KicomAvException("KicomAV PING falló. endpoint=" + endpoint + " reply=" + reply);
+        }
+        LOG.debug("[KicomAV] ping ok: {}", reply);
+    }
+
+    @Override
+    public String version(int timeoutMs) throws IOException {
+        String reply = execute("VERSION", timeoutMs, null, true).trim();
+        if (reply.isEmpty() || reply.toUpperCase().startsWith("UNKNOWN COMMAND") || reply.toUpperCase().endsWith("ERROR")) {
+            throw new KicomAvException("KicomAV VERSION falló. endpoint=" + endpoint + " reply=" + reply);
+        }
+        return reply;
+    }
+
+    @Override
+    public KicomAvScanResult scan(InputStream data, String filename, int timeoutMs) throws IOException {
+        String reply = execute("INSTREAM", timeoutMs, (out, con) -> {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            long total = 0;
+            int read;
+            while ((read = data.readNBytes(buffer, 0, buffer.length)) > 0) {
+                writeInt(out, read);
+                out.write(buffer, 0, read);
+                total += read;
+            }
+            writeInt(out, 0);
+            LOG.debug("[KicomAV] enviado INSTREAM ({} bytes) filename={}", total, filename);
+        });
+
+        return verdict(reply);
+    }
+
+    @Override
+    public KicomAvScanResult scanFile(Path file, String filename, int timeoutMs) throws IOException {
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = fc.size();
+            String reply = execute("INSTREAM", timeoutMs, (out, con) -> {
+                long position = 0;
+                while (position < size) {
+                    int n = (int) Math.min(FILE_CHUNK_SIZE, size - position);
+                    writeInt(out, n);
+                    con.transferFrom(fc, position, n);
+                    position += n;
+                }
+                writeInt(out, 0);
+                LOG.debug("[KicomAV] enviado INSTREAM sin copia ({} bytes) filename={}", size, filename);
+            });
+
+            return verdict(reply);
+        }
+    }
+
+    @Override
+    public KicomAvScanResult scanPath(String path, String filename, int timeoutMs) throws IOException {
+        if (!scanPathSupported) {
+            throw new NoSuchFileException(path, null, "k2d no admite SCAN");
+        }
+        String reply = execute("SCAN " + path, timeoutMs, null);
+        LOG.debug("[KicomAV] respuesta SCAN: {} filename={}", reply, filename);
+
+        String upper = reply.trim().toUpperCase();
+        if (upper.startsWith("UNKNOWN COMMAND")) {
+            scanPathSupported = false;
+            LOG.warn("[KicomAV] {} no admite SCAN; se enviará siempre el contenido", endpoint);
+            throw new NoSuchFileException(path, null, reply);
+        }
+        if (upper.endsWith("ERROR")) {
+            if (isFileNotVisible(upper)) {
+                // "lstat() failed: No such file or directory", "Access denied"...: se envía el contenido
+                throw new NoSuchFileException(path, null, reply);
+            }
+            throw new KicomAvException("KicomAV SCAN falló. endpoint=" + endpoint + " reply=" + reply);
+        }
+        return KicomAvResponseParser.parse(path, reply);
+    }
+
+    /**
+     * @param upper respuesta {@code ...ERROR} de {@code SCAN} en mayúsculas
+     * @return true si k2d no encuentra o no puede leer el fichero; cualquier otro error es del daemon
+     */
+    private static boolean isFileNotVisible(String upper) {
+        return upper.contains("NO SUCH FILE") || upper.contains("ACCESS DENIED")
+                || upper.contains("PERMISSION DENIED") || upper.contains("CAN'T OPEN FILE");
+    }
+
+    private KicomAvScanResult verdict(String reply) {
+        LOG.debug("[KicomAV] respuesta INSTREAM: {}", reply);
+
+        if (reply.trim().toUpperCase().endsWith("ERROR")) {
+            throw new KicomAvException("KicomAV INSTREAM falló. endpoint=" + endpoint + " reply=" + reply);
+        }
+        return KicomAvResponseParser.parse(reply);
+    }
+
+    @Override
+    public void evictIdle() {
+        pool.evictIdle();
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return endpoint;
+    }
+
+    private String execute(String command, int timeoutMs, PayloadWriter payload) throws IOException {
+        return execute(command, timeoutMs, payload, false);
+    }
+
+    /**
+     * @param probe {@code PING} o {@code VERSION}: no espera a que los escaneos liberen una conexión
+     *              ({@link KicomAvConnectionPool#leaseForProbe()}).
+     */
+    private String execute(String command, int timeoutMs, PayloadWriter payload, boolean probe) throws IOException {
+        KicomAvConnection con = probe ? pool.leaseForProbe() : pool.lease();
+        boolean reusable = false;
+        try {
+            con.setReadTimeout(timeoutMs);
+            OutputStream out = con.out();
+            writeCommand(out, command);
+            if (payload != null) {
+                payload.writeTo(out, con);
+            }
+            out.flush();
+
+            String reply = readReply(con.in());
+            if (session) {
+                int expected = con.nextSequence();
+                int idx = reply.indexOf(": ");
+                if (idx <= 0 || !reply.substring(0, idx).equals(Integer.toString(expected))) {
+                    throw new IOException("Respuesta de sesión KicomAV fuera de secuencia (esperada "
+                            + expected + "): " + reply);
+                }
+                reply = reply.substring(idx + 2);
+                // tras un error de protocolo la sesión no se reutiliza
+                String upper = reply.trim().toUpperCase();
+                reusable = !(upper.endsWith("ERROR") || upper.startsWith("UNKNOWN COMMAND"))
+                        || (command.startsWith("SCAN ") && isFileNotVisible(upper));
+            }
+            return reply;
+        } finally {
+            pool.release(con, reusable);
+        }
+    }
+
+    private static void writeCommand(OutputStream out, String command) throws IOException {
+        out.write('z');
+        // UTF-8 por las rutas de SCAN; los comandos son ASCII
+        out.write(command.getBytes(StandardCharsets.UTF_8));
+        out.write(0);
+    }
+
+    private static void writeInt(OutputStream out, int v) throws IOException {
+        out.write((v >>> 24) & 0xFF);
+        out.write((v >>> 16) & 0xFF);
+        out.write((v >>> 8) & 0xFF);
+        out.write(v & 0xFF);
+    }
+
+    private static String readReply(InputStream in) throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) > 0) {
+            if (reply.size() >= MAX_REPLY) throw new IOException("Respuesta KicomAV demasiado larga");
+            reply.write(b);
+        }
+        if (b < 0 && reply.size() == 0) {
+            throw new EOFException("KicomAV cerró la conexión sin responder");
+        }
+        return reply.toString(StandardCharsets.UTF_8);
+    }
+
+    @FunctionalInterface
+    private interface PayloadWriter {
+        void writeTo(OutputStream out, KicomAvConnection con) throws IOException;
+    }
+}
@@ -0,0 +1,131 @@
+package com.cparedesr.kicomav.ens;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory pipe between the thread writing content and the tee scan reading it.
+ * <p>
+ * Unlike {@link java.io.PipedOutputStream}, a write waits for room only until a deadline: when k2d
+ * stops reading, the writer gets {@code false} back instead of being parked until the scan ends,
+ * and can {@link #abort()} the scan and carry on writing without it. Aborting makes the reader fail
+ * rather than see a clean end of content; closing the reader makes further writes fail.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvTeePipe {
+
+    private final byte[] buffer;
+    private final InputStream input = new Input();
+    private int start;
+    private int count;
+    private boolean closed;
+    private boolean aborted;
+
+    KicomAvTeePipe(int size) {
+        this.buffer = new byte[size];
+    }
+
+    /**
+     * @return el extremo de lectura, para el escaneo.
+     */
+    InputStream input() {
+        return input;
+    }
+
+    /**
+     * Copia {@code len} bytes esperando, como mucho hasta {@code deadlineNanos} ({@link System#nanoTime()}),
+     * a que el lector haga sitio.
+     *
+     * @return false si se alcanzó el plazo sin poder copiarlo todo
+     * @throws IOException si el lector cerró la tubería o se abortó
+     */
+    synchronized boolean write(byte[] b, int off, int len, long deadlineNanos) throws IOException {
+        while (len > 0) {
+            if (closed || aborted) {
+                throw new IOException("Tubería del escaneo simultáneo cerrada");
+            }
+            if (count == buffer.length) {
+                long wait = deadlineNanos - System.nanoTime();
+                if (wait <= 0) return false;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Escritura interrumpida esperando al escaneo simultáneo");
+                }
+                continue;
+            }
+            int end = (start + count) % buffer.length;
+            int n = Math.min(len, Math.min(buffer.length - count, buffer.length - end));
+            System.arraycopy(b, off, buffer, end, n);
+            count += n;
+            off += n;
+            len -= n;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Fin del contenido: el lector recibe -1 cuando termine lo pendiente.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Abandono del escaneo: el lector falla en lugar de ver un fin de contenido normal.
+     */
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (count == 0 && !aborted) {
+            if (closed) return -1;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Lectura interrumpida en el escaneo simultáneo");
+            }
+        }
+        if (aborted) {
+            throw new IOException("Escaneo simultáneo abandonado");
+        }
+        int n = Math.min(len, Math.min(count, buffer.length - start));
+        System.arraycopy(buffer, start, b, off, n);
+        start = (start + n) % buffer.length;
+        count -= n;
+        notifyAll();
+        return n;
+    }
+
+    private final class Input extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = KicomAvTeePipe.this.read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return KicomAvTeePipe.this.read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            // el escaneo terminó (o falló): el escritor deja de copiarle datos
+            abort();
+        }
+    }
+}
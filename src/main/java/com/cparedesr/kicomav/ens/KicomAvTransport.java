@@ -0,0 +1,73 @@
+package com.cparedesr.kicomav.ens;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Path;
+
+/**
+ * Wire protocol used by {@link KicomAvRestClient} to reach one k2d endpoint.
+ * <p>
+ * Implementations own their {@link KicomAvConnectionPool}; they throw {@link IOException} for
+ * transport failures (the client decides about health and retries) and {@link KicomAvException}
+ * when k2d answers with something that is not a verdict.
+ * The implementation is picked from the endpoint URL scheme:
+ * <ul>
+ *   <li>{@code http://}, {@code https://}: REST API ({@link KicomAvHttpTransport}).</li>
+ *   <li>{@code tcp://}: native socket protocol, usually port 3311 ({@link KicomAvSocketTransport}).</li>
+ *   <li>{@code unix://}: the same socket protocol over k2d's Unix domain socket.</li>
+ * </ul>
+ *
+ * @author cparedesr
+ */
+
+interface KicomAvTransport extends Closeable {
+
+    void ping(int timeoutMs) throws IOException;
+
+    /**
+     * Versión del motor y de las firmas de k2d ({@code VERSION} / {@code GET /version}); cambia
+     * cuando se actualizan las firmas.
+     */
+    String version(int timeoutMs) throws IOException;
+
+    KicomAvScanResult scan(InputStream data, String filename, int timeoutMs) throws IOException;
+
+    /**
+     * Escanea un fichero local enviándolo con {@code FileChannel.transferTo}, sin pasar los bytes
+     * por el heap. El fichero puede leerse varias veces (reintentos, coberturas).
+     */
+    KicomAvScanResult scanFile(Path file, String filename, int timeoutMs) throws IOException;
+
+    /**
+     * Pide a k2d que escanee en su sitio un fichero que ve en su propio sistema de ficheros
+     * ({@code path} es la ruta vista por el daemon), sin enviar el contenido.
+     *
+     * @throws java.nio.file.NoSuchFileException si k2d no puede leer esa ruta o no admite escanear por
+     *                                           ruta; el llamante debe enviar el contenido.
+     */
+    KicomAvScanResult scanPath(String path, String filename, int timeoutMs) throws IOException;
+
+    /**
+     * Cierra las conexiones ociosas caducadas; lo llama periódicamente el cliente.
+     */
+    void evictIdle();
+
+    @Override
+    void close();
+
+    static KicomAvTransport create(URI uri, KicomAvTransportConfig config) {
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme().toLowerCase();
+        switch (scheme) {
+            case "http":
+            case "https":
+                return new KicomAvHttpTransport(uri, config);
+            case "tcp":
+            case "unix":
+                return new KicomAvSocketTransport(uri, config);
+            default:
+                throw new IllegalArgumentException("Esquema de URL KicomAV no soportado (http, https, tcp, unix): " + uri);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.cparedesr.kicomav.ens;
+
+/**
+ * Connection settings handed by {@link KicomAvRestClient} to each {@link KicomAvTransport}.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvTransportConfig {
+
+    final int connectTimeoutMs;
+    final int maxConnections;
+    final long idleTimeoutMs;
+    final boolean socketSession;
+    final KicomAvMetrics metrics;
+    final String metricsPrefix;
+
+    KicomAvTransportConfig(int connectTimeoutMs, int maxConnections, long idleTimeoutMs, boolean socketSession,
+                           KicomAvMetrics metrics, String metricsPrefix) {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.maxConnections = maxConnections;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.socketSession = socketSession;
+        this.metrics = metrics;
+        this.metricsPrefix = metricsPrefix;
+    }
+
+    KicomAvConnectionPool newPool(KicomAvConnectionPool.ConnectionFactory factory) {
+        return new KicomAvConnectionPool(factory, maxConnections, idleTimeoutMs, connectTimeoutMs,
+                metrics, metricsPrefix);
+    }
+}
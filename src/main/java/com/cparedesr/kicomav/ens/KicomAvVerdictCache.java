@@ -0,0 +1,71 @@
+package com.cparedesr.kicomav.ens;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-memory cache of scan verdicts.
+ * <p>
+ * Entries are kept in access order and the least recently used one is evicted once
+ * {@code maxEntries} is exceeded; an entry older than {@code ttlMs} is treated as missing, so a
+ * verdict is never trusted forever even if the engine version reported by k2d does not change.
+ * Keys are built by the caller and must include the engine/signature version.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvVerdictCache {
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    private final LinkedHashMap<String, Entry> entries;
+
+    KicomAvVerdictCache(int maxEntries, long ttlMs) {
+        if (maxEntries <= 0 || ttlMs <= 0) {
+            throw new IllegalArgumentException("maxEntries y ttlMs deben ser > 0");
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMs * 1_000_000L;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > KicomAvVerdictCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return el veredicto guardado para {@code key}, o null si no lo hay o ha caducado.
+     */
+    synchronized KicomAvScanResult get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (System.nanoTime() - entry.storedAtNanos >= ttlNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.result;
+    }
+
+    synchronized void put(String key, KicomAvScanResult result) {
+        entries.put(key, new Entry(result, System.nanoTime()));
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        final KicomAvScanResult result;
+        final long storedAtNanos;
+
+        Entry(KicomAvScanResult result, long storedAtNanos) {
+            this.result = result;
+            this.storedAtNanos = storedAtNanos;
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package com.cparedesr.kicomav.ens;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Off-heap verdict index keyed by SHA-256, kept in a memory-mapped file so that tens of millions of
+ * verdicts cost neither heap nor GC time, and survive restarts.
+ * <p>
+ * The file is an open-addressing hash table (linear probing) of fixed 40-byte slots: a packed
+ * {@code long} (verdict in the top 2 bits, a 30-bit signature version tag, and the time of the
+ * verdict in seconds) followed by the 32-byte hash. The table has a power-of-two number of slots,
+ * at least {@code maxEntries * 4 / 3}, and is mapped in segments because a single mapping cannot
+ * exceed 2 GB. Only the pages that are touched become resident.
+ * <p>
+ * Lookups take no lock and allocate nothing: the packed field is read with acquire semantics and
+ * is written (with release semantics) only after the hash, so a reader never sees a half-written
+ * slot. Writers are serialised. Entries are never removed; a verdict for an older signature version
+ * is simply a miss, and is overwritten in place when the content is scanned again. A new hash takes
+ * the first stale slot (expired, or from another signature version) on its probe path, and only
+ * otherwise an empty one, so outdated entries are recycled instead of filling the table; once
+ * {@code maxEntries} slots are in use, a new hash whose path has no stale slot is not added. Signature
+ * names do not fit in a slot, so an infected entry only says that the content is infected.
+ *
+ * @author cparedesr
+ */
+
+final class KicomAvVerdictIndex implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KicomAvVerdictIndex.class);
+
+    static final int MISS = 0;
+    static final int CLEAN = 1;
+    static final int INFECTED = 2;
+    static final int KEY_BYTES = 32;
+
+    // "KAVIDX01"
+    private static final long MAGIC = 0x4b41564944583031L;
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 8 + KEY_BYTES;
+    private static final int MAX_SEGMENT_SHIFT = 24;
+    private static final int TAG_MASK = (1 << 30) - 1;
+
+    private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle KEY = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer[] segments;
+    private final long mask;
+    private final int segmentShift;
+    private final long segmentMask;
+    private final long maxEntries;
+    private volatile long count;
+    private volatile boolean closed;
+    private boolean fullLogged;
+
+    private KicomAvVerdictIndex(Path path, FileChannel channel, MappedByteBuffer header,
+                                MappedByteBuffer[] segments, long slots, int segmentShift, long maxEntries) {
+        this.path = path;
+        this.channel = channel;
+        this.header = header;
+        this.segments = segments;
+        this.mask = slots - 1;
+        this.segmentShift = segmentShift;
+        this.segmentMask = (1L << segmentShift) - 1;
+        this.maxEntries = maxEntries;
+        this.count = header.getLong(16);
+    }
+
+    /**
+     * Abre (o crea) el índice en {@code path}. Un fichero de otro tamaño o que no es un índice se
+     * descarta y se empieza de cero: sólo es una caché.
+     */
+    static KicomAvVerdictIndex open(Path path, long maxEntries) throws IOException {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries debe ser > 0");
+        }
+        long slots = Long.highestOneBit(Math.max(1024L, maxEntries + maxEntries / 3) - 1) << 1;
+        int segmentShift = Math.min(MAX_SEGMENT_SHIFT, Long.numberOfTrailingZeros(slots));
+        long segmentBytes = (1L << segmentShift) * SLOT_BYTES;
+
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            ByteBuffer existing = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(existing, 0);
+            boolean valid = existing.position() == 16 && existing.getLong(0) == MAGIC && existing.getLong(8) == slots;
+            if (!valid && channel.size() > 0) {
+                LOG.warn("[KicomAV] índice de veredictos {} no válido o de otro tamaño; se recrea", path);
+                channel.truncate(0);
+            }
+
+            // el fichero crece al mapearlo y queda disperso: sólo ocupa disco y memoria lo escrito
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) (slots >>> segmentShift)];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * segmentBytes, segmentBytes);
+            }
+            if (!valid) {
+                header.putLong(8, slots);
+                header.putLong(16, 0);
+                header.putLong(0, MAGIC);
+            }
+            KicomAvVerdictIndex index = new KicomAvVerdictIndex(path, channel, header, segments, slots,
+                    segmentShift, maxEntries);
+            LOG.info("[KicomAV] índice de veredictos {}: {} entradas de {} ({} slots)", path, index.count,
+                    maxEntries, slots);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param sha256 hash del contenido (32 bytes)
+     * @param versionTag {@link #versionTag(CharSequence, int, int)} de la versión de firmas actual
+     * @param minTimestampSec veredictos anteriores a este instante (segundos) cuentan como fallo
+     * @return {@link #CLEAN}, {@link #INFECTED} o {@link #MISS}
+     */
+    int get(byte[] sha256, int versionTag, long minTimestampSec) {
+        if (closed) return MISS;
+        long k0 = (long) KEY.get(sha256, 0);
+        long k1 = (long) KEY.get(sha256, 8);
+        long k2 = (long) KEY.get(sha256, 16);
+        long k3 = (long) KEY.get(sha256, 24);
+        long slot = k0 & mask;
+        for (long probes = 0; probes <= mask; probes++) {
+            ByteBuffer segment = segments[(int) (slot >>> segmentShift)];
+            int offset = (int) (slot & segmentMask) * SLOT_BYTES;
+            long packed = (long) SLOT.getAcquire(segment, offset);
+            if (packed == 0) {
+                return MISS;
+            }
+            if ((long) SLOT.get(segment, offset + 8) == k0 && (long) SLOT.get(segment, offset + 16) == k1
+                    && (long) SLOT.get(segment, offset + 24) == k2 && (long) SLOT.get(segment, offset + 32) == k3) {
+                if (((int) (packed >>> 32) & TAG_MASK) != versionTag || (packed & 0xFFFFFFFFL) < minTimestampSec) {
+                    return MISS;
+                }
+                return (int) (packed >>> 62);
+            }
+            slot = (slot + 1) & mask;
+        }
+        return MISS;
+    }
+
+    /**
+     * Guarda (o sustituye) el veredicto de {@code sha256}. Un hash nuevo ocupa el primer slot caducado
+     * (anterior a {@code minTimestampSec}) o de otra versión de su secuencia de sondeo y, si no lo hay,
+     * uno vacío.
+     *
+     * @return false si el hash es nuevo, el índice ya tiene {@code maxEntries} entradas y no hay slot
+     * caducado que reutilizar.
+     */
+    synchronized boolean put(byte[] sha256, boolean infected, int versionTag, long timestampSec,
+                             long minTimestampSec) {
+        if (closed) return false;
+        long packed = (long) (infected ? INFECTED : CLEAN) << 62
+                | (long) (versionTag & TAG_MASK) << 32
+                | (timestampSec & 0xFFFFFFFFL);
+        long k0 = (long) KEY.get(sha256, 0);
+        long k1 = (long) KEY.get(sha256, 8);
+        long k2 = (long) KEY.get(sha256, 16);
+        long k3 = (long) KEY.get(sha256, 24);
+        long slot = k0 & mask;
+        long stale = -1;
+        for (long probes = 0; probes <= mask; probes++) {
+            ByteBuffer segment = segments[(int) (slot >>> segmentShift)];
+            int offset = (int) (slot & segmentMask) * SLOT_BYTES;
+            long current = (long) SLOT.get(segment, offset);
+            if (current == 0) {
+                // el hash no está: se reutiliza un slot caducado antes que gastar uno vacío
+                if (stale >= 0) return replace(stale, packed, k0, k1, k2, k3);
+                if (count >= maxEntries) return full();
+                write(segment, offset, packed, k0, k1, k2, k3);
+                count++;
+                header.putLong(16, count);
+                return true;
+            }
+            if ((long) SLOT.get(segment, offset + 8) == k0 && (long) SLOT.get(segment, offset + 16) == k1
+                    && (long) SLOT.get(segment, offset + 24) == k2 && (long) SLOT.get(segment, offset + 32) == k3) {
+                SLOT.setRelease(segment, offset, packed);
+                return true;
+            }
+            if (stale < 0 && (((int) (current >>> 32) & TAG_MASK) != versionTag
+                    || (current & 0xFFFFFFFFL) < minTimestampSec)) {
+                stale = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return stale >= 0 ? replace(stale, packed, k0, k1, k2, k3) : full();
+    }
+
+    /**
+     * Sustituye la entrada caducada de {@code slot} por otro hash. Mientras se escribe el hash el slot
+     * lleva un valor no nulo que no es veredicto: la cadena de sondeo no se corta y un lector
+     * concurrente ve un fallo, nunca el veredicto viejo con el hash nuevo.
+     */
+    private boolean replace(long slot, long packed, long k0, long k1, long k2, long k3) {
+        ByteBuffer segment = segments[(int) (slot >>> segmentShift)];
+        int offset = (int) (slot & segmentMask) * SLOT_BYTES;
+        SLOT.setRelease(segment, offset, 1L);
+        write(segment, offset, packed, k0, k1, k2, k3);
+        return true;
+    }
+
+    private static void write(ByteBuffer segment, int offset, long packed, long k0, long k1, long k2, long k3) {
+        SLOT.set(segment, offset + 8, k0);
+        SLOT.set(segment, offset + 16, k1);
+        SLOT.set(segment, offset + 24, k2);
+        SLOT.set(segment, offset + 32, k3);
+        // el hash queda visible antes que el veredicto
+        SLOT.setRelease(segment, offset, packed);
+    }
+
+    private boolean full() {
+        if (!fullLogged) {
+            fullLogged = true;
+            LOG.warn("[KicomAV] índice de veredictos {} lleno ({} entradas): los hashes nuevos sólo ocupan slots "
+                    + "caducados o de otras firmas; conviene aumentar av.kicomav.cache.index.maxEntries", path, maxEntries);
+        }
+        return false;
+    }
+
+    long size() {
+        return count;
+    }
+
+    /**
+     * Etiqueta de 30 bits (FNV-1a) de la versión de firmas {@code version[from, to)}, sin crear objetos.
+     */
+    static int versionTag(CharSequence version, int from, int to) {
+        int h = 0x811c9dc5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ version.charAt(i)) * 0x01000193;
+        }
+        return h & TAG_MASK;
+    }
+
+    /**
+     * Vuelca a disco lo escrito. Las proyecciones siguen en memoria hasta que el GC las recoge, así
+     * que una lectura en curso no falla, sólo deja de encontrar veredictos.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            header.force();
+        } finally {
+            channel.close();
+        }
+        LOG.debug("[KicomAV] índice de veredictos {} cerrado con {} entradas", path, count);
+    }
+}
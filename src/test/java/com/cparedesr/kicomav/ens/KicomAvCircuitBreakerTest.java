@@ -0,0 +1,99 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for the {@link KicomAvCircuitBreaker} state machine.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code failures_shouldTripOpenOnlyAfterMinimumCalls}: the breaker stays closed until enough calls
+ *       are recorded, then opens when the failure rate reaches the threshold and rejects calls.</li>
+ *   <li>{@code halfOpen_shouldLimitProbesAndCloseOnSuccess}: after the open period only the configured
+ *       number of probes get a permit, and their success closes the breaker.</li>
+ *   <li>{@code halfOpen_failure_shouldReopen}: a failed probe opens the breaker again.</li>
+ *   <li>{@code ignoredOutcome_shouldReturnProbePermit}: a cancelled probe gives its permit back.</li>
+ * </ul>
+ */
+
+class KicomAvCircuitBreakerTest {
+
+    @Test
+    void failures_shouldTripOpenOnlyAfterMinimumCalls() {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        KicomAvCircuitBreaker breaker = new KicomAvCircuitBreaker("k2d", 10, 4, 50, 60_000, 1, metrics);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat(breaker.tryAcquire()).isTrue();
+            breaker.onFailure();
+        }
+        assertThat(breaker.getState()).isEqualTo(KicomAvCircuitBreaker.State.CLOSED);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(KicomAvCircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(breaker.isCallPermitted()).isFalse();
+        assertThat(metrics.getGauge("breaker.k2d.state")).isEqualTo(1);
+        assertThat(metrics.getCount("breaker.k2d.toOpen")).isEqualTo(1);
+    }
+
+    @Test
+    void halfOpen_shouldLimitProbesAndCloseOnSuccess() throws Exception {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        KicomAvCircuitBreaker breaker = tripped(metrics, 2);
+        Thread.sleep(60);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(breaker.getState()).isEqualTo(KicomAvCircuitBreaker.State.HALF_OPEN);
+
+        breaker.onSuccess();
+        breaker.onSuccess();
+
+        assertThat(breaker.getState()).isEqualTo(KicomAvCircuitBreaker.State.CLOSED);
+        assertThat(metrics.getCount("breaker.k2d.toHalfOpen")).isEqualTo(1);
+        assertThat(metrics.getCount("breaker.k2d.toClosed")).isEqualTo(1);
+    }
+
+    @Test
+    void halfOpen_failure_shouldReopen() throws Exception {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        KicomAvCircuitBreaker breaker = tripped(metrics, 2);
+        Thread.sleep(60);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(KicomAvCircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(metrics.getCount("breaker.k2d.toOpen")).isEqualTo(2);
+    }
+
+    @Test
+    void ignoredOutcome_shouldReturnProbePermit() throws Exception {
+        KicomAvCircuitBreaker breaker = tripped(new KicomAvMetrics(), 1);
+        Thread.sleep(60);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isFalse();
+
+        breaker.onIgnored();
+
+        assertThat(breaker.tryAcquire()).isTrue();
+    }
+
+    private static KicomAvCircuitBreaker tripped(KicomAvMetrics metrics, int probes) {
+        KicomAvCircuitBreaker breaker = new KicomAvCircuitBreaker("k2d", 4, 2, 50, 50, probes, metrics);
+        breaker.tryAcquire();
+        breaker.onFailure();
+        breaker.tryAcquire();
+        breaker.onFailure();
+        assertThat(breaker.getState()).isEqualTo(KicomAvCircuitBreaker.State.OPEN);
+        return breaker;
+    }
+}
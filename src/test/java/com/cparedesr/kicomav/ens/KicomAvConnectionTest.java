@@ -0,0 +1,87 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KicomAvConnection} over TLS.
+ * <p>
+ * An in-process TLS server presents a self-signed certificate issued for {@code localhost} only
+ * (test resource {@code tls/k2d-localhost.p12}), which the client trusts. The tests verify that:
+ * <ul>
+ *   <li>A connection to the name in the certificate completes the handshake.</li>
+ *   <li>A connection to a name the certificate does not cover is rejected even though the
+ *       certificate itself is trusted.</li>
+ * </ul>
+ */
+
+class KicomAvConnectionTest {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    private SSLContext context;
+    private SSLServerSocket serverSocket;
+
+    @BeforeEach
+    void startServer() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = getClass().getResourceAsStream("/tls/k2d-localhost.p12")) {
+            keyStore.load(in, PASSWORD);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+
+        serverSocket = (SSLServerSocket) context.getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try (SSLSocket socket = (SSLSocket) serverSocket.accept()) {
+                    socket.startHandshake();
+                } catch (IOException ignored) {
+                    // el cliente rechazó el certificado o se cerró el servidor
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        serverSocket.close();
+    }
+
+    @Test
+    void tls_hostMatchingCertificate_shouldConnect() throws IOException {
+        try (KicomAvConnection connection = KicomAvConnection.openTcp("localhost", serverSocket.getLocalPort(),
+                context.getSocketFactory(), 2000)) {
+            assertThat(connection.getEndpoint()).isEqualTo("localhost:" + serverSocket.getLocalPort());
+        }
+    }
+
+    @Test
+    void tls_hostNotMatchingCertificate_shouldFail() {
+        // el certificado es de confianza pero no cubre 127.0.0.1
+        assertThatThrownBy(() -> KicomAvConnection.openTcp("127.0.0.1", serverSocket.getLocalPort(),
+                context.getSocketFactory(), 2000))
+                .isInstanceOf(SSLHandshakeException.class);
+    }
+}
@@ -1,12 +1,30 @@
 package com.cparedesr.kicomav.ens;
 
 import org.alfresco.model.ContentModel;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.repo.policy.PolicyComponent;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport.TxnReadState;
 import org.alfresco.service.cmr.repository.*;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.util.Pair;
+import org.alfresco.util.transaction.TransactionListener;
+import org.alfresco.util.transaction.TransactionListenerAdapter;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.MockedStatic;
 
 import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -21,9 +39,24 @@ import static org.mockito.Mockito.*;
  *   <li>No scan occurs if there is no content reader.</li>
  *   <li>No scan occurs if the content reader does not exist.</li>
  *   <li>Clean content does not throw exceptions and triggers a scan.</li>
- *   <li>Infected content throws {@link KicomAvException} to block upload.</li>
+ *   <li>Infected content throws {@link KicomAvException} to block upload, also with failOpen.</li>
  *   <li>Client failures throw {@link KicomAvException} and fail closed.</li>
  *   <li>Unexpected exceptions are wrapped and thrown as {@link KicomAvException}.</li>
+ *   <li>When the health check knows KicomAV is down, the upload fails closed without scanning.</li>
+ *   <li>Content backed by a local file is scanned by path, without opening the content stream.</li>
+ *   <li>Content is read by URL ({@code getRawReader}), so content of a node already pending or
+ *       quarantined is scanned instead of tripping the read denial.</li>
+ *   <li>A content URL with a remembered verdict is neither read nor scanned again; a new one is
+ *       scanned (through the client's single-flight) and its verdict remembered.</li>
+ *   <li>In async mode the node is marked pending and queued instead of scanned, unless the queue
+ *       is saturated; content reads of pending or quarantined nodes are denied.</li>
+ *   <li>A transaction batch is scanned in parallel, and an infected node fails the batch.</li>
+ *   <li>Content written during {@code beforeCommit}, after the batch was scanned, is scanned too.</li>
+ *   <li>Repeated events for the same node and content URL in a transaction scan once
+ *       ({@code scan.duplicateEvents}); a new URL is scanned again, and so is a pair whose scan
+ *       failed under fail-open.</li>
+ *   <li>{@code onContentPropertyUpdate} skips unchanged binaries and scans any {@code d:content}
+ *       property that changed.</li>
  * </ul>
  * <p>
  * Mocks are used for dependencies: {@code ContentService}, {@code NodeService},
@@ -71,7 +104,7 @@ class KicomAvContentScanBehaviourTest {
 
     @Test
     void whenNoContentReader_shouldReturnWithoutScanning() {
-        when(contentService.getReader(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(null);
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(null);
 
         behaviour.onContentUpdate(nodeRef, true);
 
@@ -80,7 +113,7 @@ class KicomAvContentScanBehaviourTest {
 
     @Test
     void whenReaderDoesNotExist_shouldReturnWithoutScanning() {
-        when(contentService.getReader(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(contentReader);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
         when(contentReader.exists()).thenReturn(false);
 
         behaviour.onContentUpdate(nodeRef, true);
@@ -90,7 +123,7 @@ class KicomAvContentScanBehaviourTest {
 
     @Test
     void whenClean_shouldNotThrow() {
-        when(contentService.getReader(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(contentReader);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
         when(contentReader.exists()).thenReturn(true);
         when(contentReader.getSize()).thenReturn(3L);
         when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1, 2, 3}));
@@ -102,7 +135,7 @@ class KicomAvContentScanBehaviourTest {
 
     @Test
     void whenInfected_shouldThrowToBlockUpload() {
-        when(contentService.getReader(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(contentReader);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
         when(contentReader.exists()).thenReturn(true);
         when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream("x".getBytes()));
 
@@ -116,9 +149,25 @@ class KicomAvContentScanBehaviourTest {
         verify(kicomAvClient, times(1)).scan(any(), eq("doc.txt"));
     }
 
+    @Test
+    void whenInfectedAndFailOpen_shouldStillBlockUpload() {
+        behaviour.setFailOpen(true);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream("x".getBytes()));
+
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("doc.txt");
+        when(kicomAvClient.scan(any(), eq("doc.txt")))
+                .thenReturn(KicomAvScanResult.infected("Eicar-Test-Signature"));
+        // failOpen sólo cubre fallos del AV, nunca un veredicto de infección
+        assertThatThrownBy(() -> behaviour.onContentUpdate(nodeRef, true))
+                .isInstanceOf(KicomAvException.class)
+                .hasMessageContaining("infectado");
+    }
+
     @Test
     void whenClientThrows_shouldFailClosedAndThrow() {
-        when(contentService.getReader(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(contentReader);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
         when(contentReader.exists()).thenReturn(true);
         when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream("x".getBytes()));
 
@@ -134,7 +183,7 @@ class KicomAvContentScanBehaviourTest {
 
     @Test
     void whenUnexpectedException_shouldWrapAndThrowFailClosed() {
-        when(contentService.getReader(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(contentReader);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
         when(contentReader.exists()).thenReturn(true);
         when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("doc.txt");
         when(contentReader.getContentInputStream()).thenThrow(new RuntimeException("storage error"));
@@ -144,4 +193,385 @@ class KicomAvContentScanBehaviourTest {
                 .hasMessageContaining("Error al escanear");
         verifyNoInteractions(kicomAvClient);
     }
-}
\ No newline at end of file
+
+    @Test
+    void whenKnownDown_shouldFailClosedWithoutScanning() {
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream("x".getBytes()));
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("doc.txt");
+        when(kicomAvClient.isKnownDown()).thenReturn(true);
+
+        assertThatThrownBy(() -> behaviour.onContentUpdate(nodeRef, true))
+                .isInstanceOf(KicomAvException.class)
+                .hasMessageContaining("no disponible");
+        verify(kicomAvClient, never()).scan(any(), any());
+    }
+
+    @Test
+    void whenKnownDownAndFailOpen_shouldAllowUpload() {
+        behaviour.setFailOpen(true);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream("x".getBytes()));
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("doc.txt");
+        when(kicomAvClient.isKnownDown()).thenReturn(true);
+
+        assertThatCode(() -> behaviour.onContentUpdate(nodeRef, true)).doesNotThrowAnyException();
+        verify(kicomAvClient, never()).scan(any(), any());
+    }
+
+    @Test
+    void whenFileBacked_shouldScanFileWithoutOpeningStream(@TempDir Path dir) throws Exception {
+        Path file = Files.write(dir.resolve("doc.bin"), new byte[]{1, 2, 3});
+        FileContentReader fileReader = mock(FileContentReader.class);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, fileReader);
+        when(fileReader.exists()).thenReturn(true);
+        when(fileReader.getFile()).thenReturn(file.toFile());
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("doc.bin");
+        when(kicomAvClient.scanFile(file, "doc.bin")).thenReturn(KicomAvScanResult.clean());
+
+        assertThatCode(() -> behaviour.onContentUpdate(nodeRef, true)).doesNotThrowAnyException();
+
+        verify(fileReader, never()).getContentInputStream();
+        verify(kicomAvClient, never()).scan(any(), any());
+    }
+
+    @Test
+    void whenContentUrlAlreadyScanned_shouldNotReadContent() {
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader, "store://2026/10/16/12/0/a.bin");
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentUrl()).thenReturn("store://2026/10/16/12/0/a.bin");
+        when(kicomAvClient.contentUrlKey("store://2026/10/16/12/0/a.bin")).thenReturn("v1|store://2026/10/16/12/0/a.bin");
+        when(kicomAvClient.getVerdict("v1|store://2026/10/16/12/0/a.bin")).thenReturn(KicomAvScanResult.clean());
+
+        assertThatCode(() -> behaviour.onContentUpdate(nodeRef, true)).doesNotThrowAnyException();
+
+        verify(contentReader, never()).getContentInputStream();
+        verify(kicomAvClient, never()).scan(any(), any());
+        verify(kicomAvClient, never()).putVerdict(any(), any());
+    }
+
+    @Test
+    void whenContentUrlNotScanned_shouldScanAndRememberVerdict() throws Exception {
+        KicomAvScanResult infected = KicomAvScanResult.infected("Eicar-Test-Signature");
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader, "store://2026/10/16/12/0/b.bin");
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentUrl()).thenReturn("store://2026/10/16/12/0/b.bin");
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("b.bin");
+        when(kicomAvClient.contentUrlKey("store://2026/10/16/12/0/b.bin")).thenReturn("v1|store://2026/10/16/12/0/b.bin");
+        when(kicomAvClient.scan(any(), eq("b.bin"))).thenReturn(infected);
+        when(kicomAvClient.scanOnce(eq("v1|store://2026/10/16/12/0/b.bin"), any()))
+                .thenAnswer(inv -> inv.<KicomAvRestClient.ContentScan>getArgument(1).scan());
+
+        assertThatThrownBy(() -> behaviour.onContentUpdate(nodeRef, true))
+                .isInstanceOf(KicomAvException.class)
+                .hasMessageContaining("Eicar-Test-Signature");
+
+        verify(kicomAvClient).putVerdict("v1|store://2026/10/16/12/0/b.bin", infected);
+    }
+
+    @Test
+    void whenAsync_shouldMarkPendingAndQueueWithoutScanning() {
+        KicomAvScanQueue scanQueue = mock(KicomAvScanQueue.class);
+        behaviour.setAsyncMode(true);
+        behaviour.setScanQueue(scanQueue);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+
+        behaviour.onContentUpdate(nodeRef, true);
+
+        verify(nodeService).addAspect(eq(nodeRef), eq(KicomAvModel.ASPECT_PENDING_SCAN), anyMap());
+        verify(scanQueue).enqueueAfterCommit(nodeRef);
+        verifyNoInteractions(kicomAvClient);
+    }
+
+    @Test
+    void whenAsyncQueueSaturated_shouldScanSynchronously() {
+        KicomAvScanQueue scanQueue = mock(KicomAvScanQueue.class);
+        behaviour.setAsyncMode(true);
+        behaviour.setScanQueue(scanQueue);
+        when(scanQueue.isSaturated()).thenReturn(true);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(kicomAvClient.scan(any(), any())).thenReturn(KicomAvScanResult.clean());
+
+        assertThatCode(() -> behaviour.onContentUpdate(nodeRef, true)).doesNotThrowAnyException();
+
+        verify(kicomAvClient).scan(any(), any());
+        verify(scanQueue, never()).enqueueAfterCommit(any());
+        verify(nodeService, never()).addAspect(any(), any(), any());
+    }
+
+    @Test
+    void whenNodeAlreadyPending_newContentShouldBeScannedWithoutReadPolicy() {
+        // una versión nueva de un nodo pendiente o en cuarentena: getReader(nodo) dispararía onContentRead
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(kicomAvClient.scan(any(), any())).thenReturn(KicomAvScanResult.clean());
+
+        assertThatCode(() -> behaviour.onContentUpdate(nodeRef, true)).doesNotThrowAnyException();
+
+        verify(contentService, never()).getReader(any(), any());
+        verify(kicomAvClient).scan(any(), any());
+    }
+
+    @Test
+    void onContentRead_shouldDenyPendingAndQuarantinedContent() {
+        when(nodeService.hasAspect(nodeRef, KicomAvModel.ASPECT_QUARANTINED)).thenReturn(false, true);
+        when(nodeService.hasAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN)).thenReturn(true);
+
+        assertThatThrownBy(() -> behaviour.onContentRead(nodeRef))
+                .isInstanceOf(KicomAvException.class)
+                .hasMessageContaining("pendiente");
+        assertThatThrownBy(() -> behaviour.onContentRead(nodeRef))
+                .isInstanceOf(KicomAvException.class)
+                .hasMessageContaining("cuarentena");
+    }
+
+    @Test
+    void scanAll_shouldScanBatchInParallel() throws Exception {
+        NodeRef other = new NodeRef("workspace://SpacesStore/00000000-0000-0000-0000-000000000001");
+        ContentReader otherReader = mock(ContentReader.class);
+        when(nodeService.exists(other)).thenReturn(true);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        givenContent(other, ContentModel.PROP_CONTENT, otherReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(otherReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(otherReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{2}));
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("a.txt");
+        when(nodeService.getProperty(other, ContentModel.PROP_NAME)).thenReturn("b.txt");
+
+        CountDownLatch bothScanning = new CountDownLatch(2);
+        when(kicomAvClient.scan(any(), any())).thenAnswer(inv -> {
+            bothScanning.countDown();
+            // sólo termina si el otro escaneo está en curso a la vez
+            assertThat(bothScanning.await(5, TimeUnit.SECONDS)).isTrue();
+            return KicomAvScanResult.clean();
+        });
+
+        behaviour.setBatchEnabled(true);
+        behaviour.setBatchParallelism(4);
+        initWithPolicyComponent();
+        try {
+            assertThatCode(() -> behaviour.scanAll(List.of(new Pair<>(nodeRef, ContentModel.PROP_CONTENT), new Pair<>(other, ContentModel.PROP_CONTENT)))).doesNotThrowAnyException();
+            verify(kicomAvClient, times(2)).scan(any(), any());
+        } finally {
+            behaviour.destroy();
+        }
+    }
+
+    @Test
+    void scanAll_whenOneInfected_shouldFailBatch() {
+        NodeRef other = new NodeRef("workspace://SpacesStore/00000000-0000-0000-0000-000000000001");
+        ContentReader otherReader = mock(ContentReader.class);
+        when(nodeService.exists(other)).thenReturn(true);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        givenContent(other, ContentModel.PROP_CONTENT, otherReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(otherReader.exists()).thenReturn(true);
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("a.txt");
+        when(nodeService.getProperty(other, ContentModel.PROP_NAME)).thenReturn("eicar.com");
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(otherReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{2}));
+        when(kicomAvClient.scan(any(), eq("a.txt"))).thenReturn(KicomAvScanResult.clean());
+        when(kicomAvClient.scan(any(), eq("eicar.com"))).thenReturn(KicomAvScanResult.infected("Eicar-Test-Signature"));
+
+        behaviour.setBatchEnabled(true);
+        initWithPolicyComponent();
+        try {
+            assertThatThrownBy(() -> behaviour.scanAll(List.of(new Pair<>(nodeRef, ContentModel.PROP_CONTENT), new Pair<>(other, ContentModel.PROP_CONTENT))))
+                    .isInstanceOf(KicomAvException.class)
+                    .hasMessageContaining("Eicar-Test-Signature");
+        } finally {
+            behaviour.destroy();
+        }
+    }
+
+    @Test
+    void batch_contentWrittenDuringBeforeCommit_shouldBeScannedToo() {
+        NodeRef other = new NodeRef("workspace://SpacesStore/00000000-0000-0000-0000-000000000001");
+        ContentReader otherReader = mock(ContentReader.class);
+        when(nodeService.exists(other)).thenReturn(true);
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        givenContent(other, ContentModel.PROP_CONTENT, otherReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(otherReader.exists()).thenReturn(true);
+        when(contentReader.getContentUrl()).thenReturn("store://2026/10/16/12/0/a.bin");
+        when(otherReader.getContentUrl()).thenReturn("store://2026/10/16/12/0/b.bin");
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(otherReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{2}));
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("a.txt");
+        when(nodeService.getProperty(other, ContentModel.PROP_NAME)).thenReturn("b.txt");
+        when(kicomAvClient.scan(any(), any())).thenReturn(KicomAvScanResult.clean());
+
+        behaviour.setBatchEnabled(true);
+        initWithPolicyComponent();
+        List<TransactionListener> listeners = new ArrayList<>();
+        try (MockedStatic<AlfrescoTransactionSupport> txn = readWriteTransaction(listeners)) {
+            behaviour.onContentUpdate(nodeRef, true);
+            // un listener de beforeCommit posterior al del lote (p. ej. una regla) escribe otro contenido
+            listeners.add(new TransactionListenerAdapter() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    behaviour.onContentUpdate(other, true);
+                }
+            });
+            verify(kicomAvClient, never()).scan(any(), any());
+
+            // como Alfresco, también se ejecutan los listeners registrados durante beforeCommit
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).beforeCommit(false);
+            }
+
+            verify(kicomAvClient).scan(any(), eq("a.txt"));
+            verify(kicomAvClient).scan(any(), eq("b.txt"));
+            assertThat(listeners).hasSize(3);
+        } finally {
+            behaviour.destroy();
+        }
+    }
+
+    @Test
+    void duplicateEvent_sameContentUrl_shouldScanOnce() {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        behaviour.setMetrics(metrics);
+        givenReadableContent(contentReader, "store://2026/10/16/12/0/a.bin");
+        when(kicomAvClient.scan(any(), eq("doc.txt"))).thenReturn(KicomAvScanResult.clean());
+
+        try (MockedStatic<AlfrescoTransactionSupport> txn = readWriteTransaction(new ArrayList<>())) {
+            behaviour.onContentUpdate(nodeRef, true);
+            // regla o extracción de metadatos: otro evento con el mismo binario
+            behaviour.onContentUpdate(nodeRef, false);
+        }
+
+        verify(kicomAvClient, times(1)).scan(any(), eq("doc.txt"));
+        assertThat(metrics.getCount("scan.duplicateEvents")).isEqualTo(1);
+    }
+
+    @Test
+    void newContentUrlInSameTransaction_shouldScanAgain() {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        behaviour.setMetrics(metrics);
+        ContentReader newReader = mock(ContentReader.class);
+        givenReadableContent(contentReader, "store://2026/10/16/12/0/a.bin");
+        when(newReader.exists()).thenReturn(true);
+        when(newReader.getContentUrl()).thenReturn("store://2026/10/16/12/0/b.bin");
+        when(newReader.getContentInputStream()).thenAnswer(inv -> new ByteArrayInputStream(new byte[]{2}));
+        when(contentService.getRawReader("store://2026/10/16/12/0/b.bin")).thenReturn(newReader);
+        when(kicomAvClient.scan(any(), eq("doc.txt"))).thenReturn(KicomAvScanResult.clean());
+
+        try (MockedStatic<AlfrescoTransactionSupport> txn = readWriteTransaction(new ArrayList<>())) {
+            behaviour.onContentUpdate(nodeRef, true);
+            // el mismo nodo recibe otro binario en la transacción
+            when(nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT)).thenReturn(
+                    new ContentData("store://2026/10/16/12/0/b.bin", "application/octet-stream", 1, "UTF-8"));
+            behaviour.onContentUpdate(nodeRef, false);
+        }
+
+        verify(kicomAvClient, times(2)).scan(any(), eq("doc.txt"));
+        assertThat(metrics.getCount("scan.duplicateEvents")).isZero();
+    }
+
+    @Test
+    void duplicateEvent_afterFailOpenError_shouldScanAgain() {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        behaviour.setMetrics(metrics);
+        behaviour.setFailOpen(true);
+        givenReadableContent(contentReader, "store://2026/10/16/12/0/a.bin");
+        when(kicomAvClient.scan(any(), eq("doc.txt")))
+                .thenThrow(new KicomAvException("k2d caído"))
+                .thenReturn(KicomAvScanResult.clean());
+
+        try (MockedStatic<AlfrescoTransactionSupport> txn = readWriteTransaction(new ArrayList<>())) {
+            behaviour.onContentUpdate(nodeRef, true);
+            // sin veredicto el par no cuenta como escaneado
+            behaviour.onContentUpdate(nodeRef, false);
+            behaviour.onContentUpdate(nodeRef, false);
+        }
+
+        verify(kicomAvClient, times(2)).scan(any(), eq("doc.txt"));
+        assertThat(metrics.getCount("scan.duplicateEvents")).isEqualTo(1);
+    }
+
+    /**
+     * Contenido legible de {@code nodeRef} ("doc.txt") con la URL dada.
+     */
+    private void givenReadableContent(ContentReader reader, String url) {
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, reader, url);
+        when(reader.exists()).thenReturn(true);
+        when(reader.getContentUrl()).thenReturn(url);
+        when(reader.getContentInputStream()).thenAnswer(inv -> new ByteArrayInputStream(new byte[]{1}));
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("doc.txt");
+    }
+
+    /**
+     * Transacción de lectura-escritura simulada: recursos en un mapa y listeners en {@code listeners},
+     * que el test ejecuta como lo haría Alfresco.
+     */
+    private static MockedStatic<AlfrescoTransactionSupport> readWriteTransaction(List<TransactionListener> listeners) {
+        Map<Object, Object> resources = new HashMap<>();
+        MockedStatic<AlfrescoTransactionSupport> txn = mockStatic(AlfrescoTransactionSupport.class);
+        txn.when(AlfrescoTransactionSupport::getTransactionReadState).thenReturn(TxnReadState.TXN_READ_WRITE);
+        txn.when(() -> AlfrescoTransactionSupport.getResource(any())).thenAnswer(inv -> resources.get(inv.getArgument(0)));
+        txn.when(() -> AlfrescoTransactionSupport.bindResource(any(), any()))
+                .thenAnswer(inv -> resources.put(inv.getArgument(0), inv.getArgument(1)));
+        txn.when(() -> AlfrescoTransactionSupport.unbindResource(any())).thenAnswer(inv -> resources.remove(inv.getArgument(0)));
+        txn.when(() -> AlfrescoTransactionSupport.bindListener(any(TransactionListener.class)))
+                .thenAnswer(inv -> listeners.add(inv.getArgument(0)));
+        return txn;
+    }
+
+    private void givenContent(NodeRef node, QName property, ContentReader reader) {
+        givenContent(node, property, reader, "store://2026/10/16/12/0/" + node.getId() + ".bin");
+    }
+
+    /**
+     * El behaviour lee el binario por su URL ({@code getRawReader}), no con {@code getReader(nodo, ...)}.
+     */
+    private void givenContent(NodeRef node, QName property, ContentReader reader, String url) {
+        when(nodeService.getProperty(node, property)).thenReturn(new ContentData(url, "application/octet-stream", 1, "UTF-8"));
+        when(contentService.getRawReader(url)).thenReturn(reader);
+    }
+
+    private void initWithPolicyComponent() {
+        behaviour.setPolicyComponent(mock(PolicyComponent.class));
+        behaviour.init();
+    }
+
+    @Test
+    void onContentPropertyUpdate_shouldScanOnlyWhenBinaryChanged() {
+        ContentData before = new ContentData("store://2026/10/16/12/0/a.bin", "text/plain", 10, "UTF-8");
+        ContentData sameBinary = new ContentData("store://2026/10/16/12/0/a.bin", "application/pdf", 10, "UTF-8");
+        ContentData newBinary = new ContentData("store://2026/10/16/12/0/b.bin", "text/plain", 12, "UTF-8");
+        givenContent(nodeRef, ContentModel.PROP_CONTENT, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(kicomAvClient.scan(any(), any())).thenReturn(KicomAvScanResult.clean());
+
+        behaviour.onContentPropertyUpdate(nodeRef, ContentModel.PROP_CONTENT, before, sameBinary);
+        verifyNoInteractions(kicomAvClient);
+
+        behaviour.onContentPropertyUpdate(nodeRef, ContentModel.PROP_CONTENT, sameBinary, newBinary);
+        verify(kicomAvClient).scan(any(), any());
+    }
+
+    @Test
+    void onContentPropertyUpdate_whenOtherContentPropertyChanges_shouldScanIt() {
+        QName rendition = QName.createQName("http://www.example.com/model/1.0", "preview");
+        ContentData before = new ContentData("store://2026/10/16/12/0/a.bin", "text/plain", 10, "UTF-8");
+        ContentData after = new ContentData("store://2026/10/16/12/0/b.bin", "text/plain", 10, "UTF-8");
+        givenContent(nodeRef, rendition, contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenReturn(new ByteArrayInputStream(new byte[]{1}));
+        when(kicomAvClient.scan(any(), any())).thenReturn(KicomAvScanResult.infected("Eicar-Test-Signature"));
+
+        assertThatThrownBy(() -> behaviour.onContentPropertyUpdate(nodeRef, rendition, before, after))
+                .isInstanceOf(KicomAvException.class)
+                .hasMessageContaining("Eicar-Test-Signature");
+    }
+}
@@ -0,0 +1,79 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KicomAvHashBlocklist}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code feed_shouldLoadValidHashesAndReloadWhenChanged}: the feed file is parsed (comments,
+ *       separators, upper-case hashes, invalid lines) and reloaded only when it changes.</li>
+ *   <li>{@code learn_shouldStopAtMaxEntries}: hashes of infected verdicts are learned until the list
+ *       is full.</li>
+ * </ul>
+ */
+
+class KicomAvHashBlocklistTest {
+
+    private static final String A = "a".repeat(64);
+    private static final String B = "b".repeat(64);
+    private static final String C = "c".repeat(64);
+
+    @Test
+    void feed_shouldLoadValidHashesAndReloadWhenChanged(@TempDir Path dir) throws Exception {
+        Path feed = Files.writeString(dir.resolve("malware.txt"),
+                "# muestras de phishing\n" + A.toUpperCase() + " Phishing.Invoice\n" + B + ",Macro.Dropper\nno-es-un-hash X\n\n");
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        KicomAvHashBlocklist blocklist = new KicomAvHashBlocklist();
+        blocklist.setMetrics(metrics);
+        blocklist.setEnabled(true);
+        blocklist.setFeedFile(feed.toString());
+        blocklist.setFeedReloadMs(0);
+        blocklist.init();
+        try {
+            assertThat(blocklist.signature(A)).isEqualTo("Phishing.Invoice");
+            assertThat(blocklist.signature(B)).isEqualTo("Macro.Dropper");
+            assertThat(blocklist.signature(C)).isNull();
+            assertThat(metrics.getGauge("blocklist.feedSize")).isEqualTo(2);
+
+            Files.writeString(feed, C + "\n");
+            Files.setLastModifiedTime(feed, FileTime.fromMillis(System.currentTimeMillis() + 10_000));
+            blocklist.reloadFeed();
+
+            assertThat(blocklist.signature(A)).isNull();
+            assertThat(blocklist.signature(C)).isEqualTo("INFECTED");
+            assertThat(metrics.getCount("blocklist.hits")).isEqualTo(3);
+        } finally {
+            blocklist.destroy();
+        }
+    }
+
+    @Test
+    void learn_shouldStopAtMaxEntries() {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        KicomAvHashBlocklist blocklist = new KicomAvHashBlocklist();
+        blocklist.setMetrics(metrics);
+        blocklist.setEnabled(true);
+        blocklist.setMaxEntries(2);
+        blocklist.init();
+
+        blocklist.learn(A, "Eicar-Test-Signature");
+        blocklist.learn(B, "Phishing.Invoice");
+        blocklist.learn(C, "Macro.Dropper");
+        // uno ya conocido se actualiza aunque la lista esté llena
+        blocklist.learn(A, "Eicar-Test-File");
+
+        assertThat(blocklist.signature(A)).isEqualTo("Eicar-Test-File");
+        assertThat(blocklist.signature(C)).isNull();
+        assertThat(metrics.getCount("blocklist.learned")).isEqualTo(2);
+        assertThat(metrics.getCount("blocklist.full")).isEqualTo(1);
+    }
+}
@@ -0,0 +1,85 @@
+package com.cparedesr.kicomav.ens;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Manual benchmark: single-core throughput of {@link KicomAvPatternMatcher} over content with no
+ * match (the common case, where every byte is examined).
+ * <p>
+ * Not a unit test (it is not picked up by Surefire). Compiles EICAR plus {@code patterns} random
+ * 16-byte patterns and streams a random buffer through the matcher in 64 KB chunks, from a heap
+ * array and from a direct buffer (as the content store channel hands them out), on the calling
+ * thread. Run it with
+ * {@code java -cp target/test-classes:target/classes:<deps> com.cparedesr.kicomav.ens.KicomAvPatternMatcherBenchmark [sizeMB] [iterations] [patterns]}.
+ *
+ * @author cparedesr
+ */
+
+public final class KicomAvPatternMatcherBenchmark {
+
+    private static final int CHUNK = 64 * 1024;
+
+    private KicomAvPatternMatcherBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int patterns = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>();
+        lines.add("Eicar-Test-Signature hex:" + java.util.HexFormat.of().formatHex(
+                ("X5O!P%@AP[4\\PZX54(P^)7CC)7}$" + "EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*").getBytes()));
+        for (int i = 0; i < patterns; i++) {
+            byte[] p = new byte[16];
+            random.nextBytes(p);
+            lines.add("Random." + i + " hex:" + java.util.HexFormat.of().formatHex(p));
+        }
+        KicomAvPatternMatcher matcher = KicomAvPatternMatcher.compile(lines);
+
+        byte[] data = new byte[sizeMb * 1024 * 1024];
+        random.nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+
+        System.out.printf("datos=%d MB iteraciones=%d patrones=%d%n", sizeMb, iterations, matcher.size());
+        for (int round = 0; round < 2; round++) {
+            // la primera ronda sirve de calentamiento del JIT
+            run("heap  ", sizeMb, iterations, () -> {
+                KicomAvPatternMatcher.Stream stream = matcher.stream();
+                boolean found = false;
+                for (int off = 0; off < data.length; off += CHUNK) {
+                    found |= stream.update(data, off, Math.min(CHUNK, data.length - off));
+                }
+                return found;
+            });
+            run("direct", sizeMb, iterations, () -> {
+                KicomAvPatternMatcher.Stream stream = matcher.stream();
+                boolean found = false;
+                for (int off = 0; off < data.length; off += CHUNK) {
+                    found |= stream.update(direct.duplicate().position(off).limit(Math.min(off + CHUNK, data.length)));
+                }
+                return found;
+            });
+        }
+    }
+
+    private static void run(String label, int sizeMb, int iterations, Pass pass) {
+        int matches = 0;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (pass.run()) matches++;
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        System.out.printf("%s  %.2f GB/s (coincidencias: %d)%n", label, sizeMb * iterations / 1024.0 / seconds, matches);
+    }
+
+    @FunctionalInterface
+    private interface Pass {
+        boolean run();
+    }
+}
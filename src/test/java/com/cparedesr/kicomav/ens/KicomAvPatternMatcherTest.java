@@ -0,0 +1,99 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KicomAvPatternMatcher}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code stream_shouldFindPatternsAcrossChunks}: a pattern split across writes (heap and
+ *       direct buffers) is found, including one that is only reachable through a failure link.</li>
+ *   <li>{@code anchoredPattern_shouldOnlyMatchAtStart}: magic bytes match at offset 0 only.</li>
+ *   <li>{@code defaults_shouldOnlyMatchEicarAtStart}: the built-in EICAR pattern is anchored, so a
+ *       document that merely quotes the test string is not flagged.</li>
+ *   <li>{@code compile_shouldRejectInvalidLines}: malformed pattern lines fail with their line number.</li>
+ * </ul>
+ */
+
+class KicomAvPatternMatcherTest {
+
+    private static final KicomAvPatternMatcher MATCHER = KicomAvPatternMatcher.compile(List.of(
+            "# patrones de prueba",
+            "Macro.AutoOpen text:AutoOpen",
+            "Dropper.Shell text:hell.exe",
+            "Blocked.PE ^hex:4d5a9000"));
+
+    @Test
+    void stream_shouldFindPatternsAcrossChunks() {
+        KicomAvPatternMatcher.Stream stream = MATCHER.stream();
+        assertThat(stream.update(bytes("Sub Auto"), 0, 8)).isFalse();
+        ByteBuffer direct = ByteBuffer.allocateDirect(16);
+        direct.put(bytes("Open()")).flip();
+        assertThat(stream.update(direct)).isTrue();
+        assertThat(direct.position()).isZero();
+        assertThat(stream.matched()).isEqualTo("Macro.AutoOpen");
+
+        // "shell.exe": tras fallar en "s" se sigue por el enlace de fallo hasta "hell.exe"
+        KicomAvPatternMatcher.Stream other = MATCHER.stream();
+        byte[] data = bytes("cmd /c powershell.exe -enc");
+        assertThat(other.update(data, 0, data.length)).isTrue();
+        assertThat(other.matched()).isEqualTo("Dropper.Shell");
+
+        KicomAvPatternMatcher.Stream clean = MATCHER.stream();
+        byte[] text = bytes("informe trimestral sin macros AutoOpe");
+        assertThat(clean.update(text, 0, text.length)).isFalse();
+        assertThat(clean.matched()).isNull();
+    }
+
+    @Test
+    void anchoredPattern_shouldOnlyMatchAtStart() {
+        KicomAvPatternMatcher.Stream pe = MATCHER.stream();
+        assertThat(pe.update(new byte[]{0x4d, 0x5a}, 0, 2)).isFalse();
+        assertThat(pe.update(new byte[]{(byte) 0x90, 0x00, 0x03}, 0, 3)).isTrue();
+        assertThat(pe.matched()).isEqualTo("Blocked.PE");
+
+        KicomAvPatternMatcher.Stream later = MATCHER.stream();
+        byte[] data = {0x00, 0x4d, 0x5a, (byte) 0x90, 0x00};
+        assertThat(later.update(data, 0, data.length)).isFalse();
+    }
+
+    @Test
+    void defaults_shouldOnlyMatchEicarAtStart() {
+        // partido en dos para que el propio test no se detecte como EICAR
+        byte[] eicar = bytes("X5O!P%@AP[4\\PZX54(P^)7CC)7}$" + "EICAR-STANDARD-ANTIVIRUS-TEST-FILE!$H+H*");
+        KicomAvPatternMatcher defaults = KicomAvPatternMatcher.defaults();
+
+        KicomAvPatternMatcher.Stream file = defaults.stream();
+        assertThat(file.update(eicar, 0, 10)).isFalse();
+        assertThat(file.update(eicar, 10, eicar.length - 10)).isTrue();
+        assertThat(file.matched()).isEqualTo("Eicar-Test-Signature");
+
+        KicomAvPatternMatcher.Stream quoted = defaults.stream();
+        byte[] intro = bytes("Para probar el antivirus use la cadena: ");
+        assertThat(quoted.update(intro, 0, intro.length)).isFalse();
+        assertThat(quoted.update(eicar, 0, eicar.length)).isFalse();
+        assertThat(quoted.matched()).isNull();
+    }
+
+    @Test
+    void compile_shouldRejectInvalidLines() {
+        assertThatThrownBy(() -> KicomAvPatternMatcher.compile(List.of("Sin.Valor")))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("línea 1");
+        assertThatThrownBy(() -> KicomAvPatternMatcher.compile(List.of("# x", "Mal.Hex hex:4g")))
+                .isInstanceOf(IllegalArgumentException.class).hasMessageContaining("línea 2");
+        assertThatThrownBy(() -> KicomAvPatternMatcher.compile(List.of("Sin.Tipo abc")))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(KicomAvPatternMatcher.defaults().size()).isEqualTo(1);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
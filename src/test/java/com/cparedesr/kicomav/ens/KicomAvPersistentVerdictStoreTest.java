@@ -0,0 +1,197 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link KicomAvPersistentVerdictStore}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code put_shouldWriteInBatchesWithoutBlocking}: queued verdicts are written together in one
+ *       transaction on flush, not when they are put.</li>
+ *   <li>{@code get_shouldDecodeVerdictAndIgnoreExpired}: stored verdicts are read back, and entries
+ *       older than the TTL are ignored.</li>
+ *   <li>{@code bloom_shouldSkipDatabaseForUnknownKeysAndSurviveRestart}: without a saved filter the
+ *       store queries the database for {@code ttlMs} while learning the keys it finds or puts, never
+ *       scanning the stored keys; then the filter answers unknown keys without a query, and it is
+ *       saved on shutdown and loaded on the next start.</li>
+ *   <li>{@code purge_shouldRemoveExpiredAndOtherVersionEntriesInBatches}: expired, unreadable and
+ *       other-signature-version entries of both tables are removed in bounded batches, and current
+ *       ones are kept.</li>
+ * </ul>
+ * {@code AttributeService} is mocked and transactions run the callback inline.
+ */
+
+@ExtendWith(org.mockito.junit.jupiter.MockitoExtension.class)
+class KicomAvPersistentVerdictStoreTest {
+
+    @org.mockito.Mock private AttributeService attributeService;
+    @org.mockito.Mock private TransactionService transactionService;
+    @org.mockito.Mock private RetryingTransactionHelper txnHelper;
+
+    private KicomAvPersistentVerdictStore store;
+
+    @BeforeEach
+    void setup() {
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+        when(txnHelper.doInTransaction(any(), anyBoolean(), anyBoolean())).thenAnswer(inv ->
+                inv.<RetryingTransactionHelper.RetryingTransactionCallback<?>>getArgument(0).execute());
+
+        store = new KicomAvPersistentVerdictStore();
+        store.setAttributeService(attributeService);
+        store.setTransactionService(transactionService);
+        store.setEnabled(true);
+        store.setTtlMs(60_000);
+        // el flush periódico no interviene: se llama a mano
+        store.setFlushIntervalMs(60_000);
+        store.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.destroy();
+    }
+
+    @Test
+    void put_shouldWriteInBatchesWithoutBlocking() {
+        store.put("h", "v1:aa", KicomAvScanResult.clean());
+        store.put("u", "v1|store://a.bin", KicomAvScanResult.infected("Eicar-Test-Signature"));
+        verifyNoInteractions(attributeService);
+
+        store.flush();
+
+        verify(txnHelper).doInTransaction(any(), eq(false), eq(true));
+        verify(attributeService).setAttribute(endsWith("|C"), eq("kicomav.verdicts"), eq("h"), eq("v1:aa"));
+        verify(attributeService).setAttribute(endsWith("|I|Eicar-Test-Signature"),
+                eq("kicomav.verdicts"), eq("u"), eq("v1|store://a.bin"));
+    }
+
+    @Test
+    void get_shouldDecodeVerdictAndIgnoreExpired() {
+        long now = System.currentTimeMillis();
+        when(attributeService.getAttribute("kicomav.verdicts", "h", "v1:aa"))
+                .thenReturn(KicomAvPersistentVerdictStore.encode(KicomAvScanResult.infected("Eicar"), now));
+        when(attributeService.getAttribute("kicomav.verdicts", "h", "v1:old"))
+                .thenReturn(KicomAvPersistentVerdictStore.encode(KicomAvScanResult.clean(), now - 120_000));
+
+        assertThat(store.get("h", "v1:aa").getSignature()).isEqualTo("Eicar");
+        assertThat(store.get("h", "v1:old")).isNull();
+        assertThat(store.get("h", "v1:none")).isNull();
+    }
+
+    @Test
+    void bloom_shouldSkipDatabaseForUnknownKeysAndSurviveRestart(@TempDir Path dir) throws Exception {
+        when(attributeService.getAttribute("kicomav.verdicts", "h", "v1:aa")).thenAnswer(inv ->
+                KicomAvPersistentVerdictStore.encode(KicomAvScanResult.clean(), System.currentTimeMillis()));
+        when(attributeService.getAttribute("kicomav.verdicts", "h", "v1:new")).thenAnswer(inv ->
+                KicomAvPersistentVerdictStore.encode(KicomAvScanResult.clean(), System.currentTimeMillis()));
+        when(attributeService.getAttribute("kicomav.verdicts", "h", "v1:zz")).thenReturn(null);
+        KicomAvMetrics metrics = new KicomAvMetrics();
+
+        KicomAvPersistentVerdictStore first = bloomStore(dir, metrics);
+        // sin filtro guardado: durante ttlMs se consulta la BD y se aprende lo encontrado
+        assertThat(first.isBloomReady()).isFalse();
+        assertThat(first.get("h", "v1:zz")).isNull();
+        assertThat(first.get("h", "v1:aa")).isNotNull();
+        first.put("h", "v1:new", KicomAvScanResult.clean());
+        awaitBloomReady(first);
+        assertThat(first.get("h", "v1:aa")).isNotNull();
+        assertThat(first.get("h", "v1:zz")).isNull();
+        first.destroy();
+        assertThat(Files.exists(dir.resolve("verdicts.bloom"))).isTrue();
+
+        // el segundo arranque carga el filtro guardado y lo aplica desde el principio
+        KicomAvPersistentVerdictStore second = bloomStore(dir, metrics);
+        assertThat(second.isBloomReady()).isTrue();
+        assertThat(second.get("h", "v1:new")).isNotNull();
+        assertThat(second.get("h", "v1:zz")).isNull();
+        second.destroy();
+
+        verify(attributeService, never()).getAttributes(any(), any(Serializable[].class));
+        verify(attributeService, times(1)).getAttribute("kicomav.verdicts", "h", "v1:zz");
+        assertThat(metrics.getCount("persistent.bloomNegatives")).isEqualTo(2);
+        assertThat(metrics.getGauge("persistent.bloomFalsePositivePpm")).isZero();
+        assertThat(metrics.getGauge("persistent.bloomExpectedFppPpm")).isBetween(0L, 1_000L);
+    }
+
+    @Test
+    void purge_shouldRemoveExpiredAndOtherVersionEntriesInBatches() {
+        long now = System.currentTimeMillis();
+        String fresh = KicomAvPersistentVerdictStore.encode(KicomAvScanResult.clean(), now);
+        Map<List<Serializable>, Serializable> entries = new LinkedHashMap<>();
+        entries.put(List.of("kicomav.verdicts", "h", "v2:aa"), fresh);
+        entries.put(List.of("kicomav.verdicts", "h", "v2:bb"),
+                KicomAvPersistentVerdictStore.encode(KicomAvScanResult.clean(), now - 120_000));
+        entries.put(List.of("kicomav.verdicts", "h", "v1:cc"), fresh);
+        entries.put(List.of("kicomav.verdicts", "h", "v2:dd"), "basura");
+        entries.put(List.of("kicomav.verdicts", "u", "v1|store://x.bin"), fresh);
+        entries.put(List.of("kicomav.verdicts", "u", "v2|store://y.bin"), fresh);
+        doAnswer(inv -> {
+            AttributeService.AttributeQueryCallback callback = inv.getArgument(0);
+            long id = 0;
+            for (Map.Entry<List<Serializable>, Serializable> e : new ArrayList<>(entries.entrySet())) {
+                if (!callback.handleAttribute(++id, e.getValue(), e.getKey().toArray(new Serializable[0]))) break;
+            }
+            return null;
+        }).when(attributeService).getAttributes(any(), eq("kicomav.verdicts"));
+        doAnswer(inv -> entries.remove(List.of(inv.getArguments())))
+                .when(attributeService).removeAttribute(any(Serializable[].class));
+
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        store.setMetrics(metrics);
+        store.setPurgeBatchSize(2);
+        store.setVersionSource(() -> "v2");
+
+        assertThat(store.purge()).isEqualTo(4);
+
+        assertThat(entries.keySet()).containsExactly(
+                List.of("kicomav.verdicts", "h", "v2:aa"),
+                List.of("kicomav.verdicts", "u", "v2|store://y.bin"));
+        // dos lotes llenos y una última búsqueda vacía
+        verify(attributeService, times(3)).getAttributes(any(), eq("kicomav.verdicts"));
+        verify(txnHelper, times(2)).doInTransaction(any(), eq(false), eq(true));
+        assertThat(metrics.getCount("persistent.purged")).isEqualTo(4);
+    }
+
+    private KicomAvPersistentVerdictStore bloomStore(Path dir, KicomAvMetrics metrics) {
+        KicomAvPersistentVerdictStore s = new KicomAvPersistentVerdictStore();
+        s.setAttributeService(attributeService);
+        s.setTransactionService(transactionService);
+        s.setMetrics(metrics);
+        s.setEnabled(true);
+        // ttl corto: el filtro sin guardar se aplica enseguida
+        s.setTtlMs(300);
+        s.setFlushIntervalMs(60_000);
+        s.setBloomEnabled(true);
+        s.setBloomExpectedEntries(1000);
+        s.setBloomPath(dir.resolve("verdicts.bloom").toString());
+        s.init();
+        return s;
+    }
+
+    private static void awaitBloomReady(KicomAvPersistentVerdictStore s) throws InterruptedException {
+        for (int i = 0; i < 500 && !s.isBloomReady(); i++) {
+            Thread.sleep(10);
+        }
+        assertThat(s.isBloomReady()).isTrue();
+    }
+}
@@ -3,11 +3,27 @@ package com.cparedesr.kicomav.ens;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
+import org.alfresco.repo.cache.SimpleCache;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.assertj.core.api.Assertions.*;
 
@@ -23,6 +39,31 @@ import static org.assertj.core.api.Assertions.*;
  *   <li>Scan request with infected file returns an infected result with signature.</li>
  *   <li>Scan request with JSON response returns correct infection status and signature.</li>
  *   <li>Scan request with HTTP 400 error throws {@link KicomAvException}.</li>
+ *   <li>Local files are uploaded with a Content-Length and arrive intact.</li>
+ *   <li>In scan-by-reference mode only the mapped path is sent to {@code /scan/path}; files k2d
+ *       cannot see, or outside the content store root, are uploaded instead.</li>
+ *   <li>With the cluster cache, a verdict obtained on one node is a cluster hit on another.</li>
+ *   <li>With the off-heap verdict index, a verdict survives a restart of the client and a new
+ *       signature version makes it a miss.</li>
+ *   <li>With the hash blocklist, known malware is rejected without an upload even after a
+ *       signature update.</li>
+ *   <li>With the verdict cache, repeated content is answered without contacting k2d and a new
+ *       signature version empties the cache.</li>
+ *   <li>Concurrent scans of the same content are coalesced into one upload whose verdict every
+ *       caller gets; a caller's own deadline does not cancel it for the others.</li>
+ *   <li>Content URL keys carry the signature version, so a signature update invalidates them.</li>
+ *   <li>Consecutive requests reuse the same keep-alive connection from the pool.</li>
+ *   <li>Connections closed by the server are discarded and replaced transparently.</li>
+ *   <li>With the background health check enabled, scans do not ping and fail fast when k2d is down.</li>
+ *   <li>Health probes do not wait for a pool exhausted by scans, so a busy endpoint stays up.</li>
+ *   <li>Asynchronous scans run concurrently, honour deadlines and can be cancelled; beyond the
+ *       queue capacity they are rejected at once.</li>
+ *   <li>With several endpoints, scans go to the least loaded one and failing endpoints are ejected
+ *       and readmitted.</li>
+ *   <li>Repeated failures trip the circuit breaker, which then rejects scans without network I/O;
+ *       an exhausted connection pool does not count as a failure.</li>
+ *   <li>A body shorter than its Content-Length fails the request and the connection is discarded.</li>
+ *   <li>With hedging, a slow endpoint is bypassed by a second request and the first answer wins.</li>
  * </ul>
  * <p>
  * Helper methods are provided to respond with text and drain input streams.
@@ -139,6 +180,929 @@ class KicomAvRestClientTest {
                 .hasMessageContaining("/scan/file");
     }
 
+    @Test
+    void scanFile_shouldSendContentLengthAndIntactContent(@TempDir Path dir) throws Exception {
+        byte[] content = new byte[300_000];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i % 251);
+        Path file = Files.write(dir.resolve("plan.pdf"), content);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        List<String> contentLengths = new ArrayList<>();
+
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            contentLengths.add(ex.getRequestHeaders().getFirst("Content-Length"));
+            ex.getRequestBody().transferTo(received);
+            respondText(ex, 200, "stream: OK");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            assertThat(client.scanFile(file, "plan.pdf").isInfected()).isFalse();
+
+            byte[] body = received.toByteArray();
+            assertThat(contentLengths).containsExactly(Integer.toString(body.length));
+            String text = new String(body, StandardCharsets.ISO_8859_1);
+            int start = text.indexOf("\r\n\r\n") + 4;
+            assertThat(Arrays.copyOfRange(body, start, start + content.length)).isEqualTo(content);
+            assertThat(text).endsWith("--\r\n");
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void scanByReference_shouldSendPathAndFallBackWhenNotVisible(@TempDir Path dir) throws Exception {
+        Path localRoot = Files.createDirectories(dir.resolve("contentstore"));
+        Path visible = Files.write(Files.createDirectories(localRoot.resolve("2026/10/16")).resolve("a.bin"),
+                new byte[]{1, 2, 3});
+        Path notVisible = Files.write(localRoot.resolve("2026/10/16/b.bin"), new byte[]{4, 5, 6});
+        Path outside = Files.write(dir.resolve("c.bin"), new byte[]{7, 8, 9});
+        List<String> paths = new CopyOnWriteArrayList<>();
+        AtomicInteger uploads = new AtomicInteger();
+
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/path", ex -> {
+            assertThat(ex.getRequestHeaders().getFirst("Content-Type")).isEqualTo("application/json");
+            String json = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            String path = json.replaceAll("^\\{\"path\":\"(.*)\"}$", "$1");
+            paths.add(path);
+            if (path.endsWith("/a.bin")) respondText(ex, 200, path + ": Eicar-Test-Signature FOUND");
+            else respondText(ex, 404, "{\"detail\": \"file not found\"}");
+        });
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            drain(ex.getRequestBody());
+            respondText(ex, 200, "stream: OK");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setByReferenceEnabled(true);
+        client.setByReferenceLocalRoot(localRoot.toString());
+        client.setByReferenceRemoteRoot("/mnt/contentstore/");
+        try {
+            KicomAvScanResult infected = client.scanFile(visible, "a.bin");
+            assertThat(infected.isInfected()).isTrue();
+            assertThat(infected.getSignature()).isEqualTo("Eicar-Test-Signature");
+            assertThat(uploads.get()).isZero();
+
+            assertThat(client.scanFile(notVisible, "b.bin").isInfected()).isFalse();
+            assertThat(client.scanFile(outside, "c.bin").isInfected()).isFalse();
+
+            assertThat(paths).containsExactly("/mnt/contentstore/2026/10/16/a.bin", "/mnt/contentstore/2026/10/16/b.bin");
+            assertThat(uploads.get()).isEqualTo(2);
+            assertThat(client.getMetrics().getCount("scan.byReference")).isEqualTo(1);
+            assertThat(client.getMetrics().getCount("scan.byReference.fallbacks")).isEqualTo(1);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void clusterCache_shouldShareVerdictsBetweenNodes() throws Exception {
+        AtomicInteger uploads = new AtomicInteger();
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/version", ex -> respondText(ex, 200, "KicomAV 0.40/27001"));
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            ex.getRequestBody().readAllBytes();
+            respondText(ex, 200, "stream: OK");
+        });
+        server.start();
+
+        // caché compartida en memoria en lugar de Hazelcast
+        Map<String, KicomAvScanResult> shared = new ConcurrentHashMap<>();
+        SimpleCache<String, KicomAvScanResult> clusterCache = new SimpleCache<>() {
+            public boolean contains(String key) { return shared.containsKey(key); }
+            public Collection<String> getKeys() { return shared.keySet(); }
+            public KicomAvScanResult get(String key) { return shared.get(key); }
+            public void put(String key, KicomAvScanResult value) { shared.put(key, value); }
+            public void remove(String key) { shared.remove(key); }
+            public void clear() { shared.clear(); }
+        };
+
+        byte[] attachment = "informe trimestral".getBytes(StandardCharsets.UTF_8);
+        KicomAvRestClient nodeA = new KicomAvRestClient(baseUrl, 2000, 5000);
+        KicomAvRestClient nodeB = new KicomAvRestClient(baseUrl, 2000, 5000);
+        for (KicomAvRestClient node : List.of(nodeA, nodeB)) {
+            node.setCacheEnabled(true);
+            node.setUrlCacheEnabled(true);
+            node.setClusterCacheEnabled(true);
+            node.setClusterCache(clusterCache);
+        }
+        try {
+            nodeA.scan(new ByteArrayInputStream(attachment), "a.pdf");
+            nodeA.putVerdict(nodeA.contentUrlKey("store://2026/10/16/a.bin"), KicomAvScanResult.clean());
+
+            assertThat(nodeB.scan(new ByteArrayInputStream(attachment), "b.pdf").isInfected()).isFalse();
+            assertThat(nodeB.getVerdict(nodeB.contentUrlKey("store://2026/10/16/a.bin"))).isNotNull();
+            // la segunda vez ya está en la caché local de B
+            nodeB.scan(new ByteArrayInputStream(attachment), "c.pdf");
+
+            assertThat(uploads.get()).isEqualTo(1);
+            assertThat(nodeB.getMetrics().getCount("cache.clusterHits")).isEqualTo(1);
+            assertThat(nodeB.getMetrics().getCount("cache.hits")).isEqualTo(1);
+            assertThat(nodeB.getMetrics().getCount("urlCache.clusterHits")).isEqualTo(1);
+            assertThat(nodeA.getMetrics().getCount("cache.misses")).isEqualTo(1);
+        } finally {
+            nodeA.destroy();
+            nodeB.destroy();
+        }
+    }
+
+    @Test
+    void cacheIndex_shouldKeepVerdictsAcrossRestarts(@TempDir Path dir) throws Exception {
+        AtomicInteger uploads = new AtomicInteger();
+        AtomicReference<String> version = new AtomicReference<>("KicomAV 0.40/27001");
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/version", ex -> respondText(ex, 200, version.get()));
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            ex.getRequestBody().readAllBytes();
+            respondText(ex, 200, "stream: OK");
+        });
+        server.start();
+
+        byte[] attachment = "informe trimestral".getBytes(StandardCharsets.UTF_8);
+        for (int restart = 0; restart < 3; restart++) {
+            if (restart == 2) version.set("KicomAV 0.40/27002");
+            KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+            client.setCacheEnabled(true);
+            client.setCacheIndexEnabled(true);
+            client.setCacheIndexPath(dir.resolve("verdicts.idx").toString());
+            client.setCacheIndexMaxEntries(1000);
+            try {
+                assertThat(client.scan(new ByteArrayInputStream(attachment), "a.pdf").isInfected()).isFalse();
+                if (restart == 1) {
+                    assertThat(client.getMetrics().getCount("cache.indexHits")).isEqualTo(1);
+                }
+            } finally {
+                client.destroy();
+            }
+        }
+
+        // el primero escanea, el segundo lo encuentra en el índice y con firmas nuevas se vuelve a escanear
+        assertThat(uploads.get()).isEqualTo(2);
+    }
+
+    @Test
+    void blocklist_shouldRejectKnownMalwareAfterSignatureUpdate() throws Exception {
+        AtomicInteger uploads = new AtomicInteger();
+        AtomicReference<String> version = new AtomicReference<>("KicomAV 0.40/27001");
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/version", ex -> respondText(ex, 200, version.get()));
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            respondText(ex, 200, body.contains("factura") ? "stream: Phishing.Invoice FOUND" : "stream: OK");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        KicomAvHashBlocklist blocklist = new KicomAvHashBlocklist();
+        blocklist.setEnabled(true);
+        blocklist.setMetrics(client.getMetrics());
+        blocklist.init();
+        client.setCacheEnabled(true);
+        client.setCacheVersionRefreshMs(50);
+        client.setBlocklist(blocklist);
+        byte[] attachment = "factura pendiente".getBytes(StandardCharsets.UTF_8);
+        try {
+            assertThat(client.scan(new ByteArrayInputStream(attachment), "a.html").getSignature())
+                    .isEqualTo("Phishing.Invoice");
+
+            // firmas nuevas vacían la caché de veredictos, pero el hash sigue en la lista
+            version.set("KicomAV 0.40/27002");
+            long deadline = System.currentTimeMillis() + 3000;
+            while (client.getMetrics().getCount("cache.versionChanges") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(60);
+                client.scan(new ByteArrayInputStream("otro".getBytes(StandardCharsets.UTF_8)), "b.txt");
+            }
+            assertThat(client.getMetrics().getCount("cache.versionChanges")).isEqualTo(1);
+            int before = uploads.get();
+            assertThat(client.scan(new ByteArrayInputStream(attachment), "c.html").getSignature())
+                    .isEqualTo("Phishing.Invoice");
+
+            assertThat(uploads.get()).isEqualTo(before);
+            assertThat(client.getMetrics().getCount("blocklist.hits")).isEqualTo(1);
+        } finally {
+            client.destroy();
+            blocklist.destroy();
+        }
+    }
+
+    @Test
+    void verdictCache_shouldSkipNetworkForRepeatedContent(@TempDir Path dir) throws Exception {
+        AtomicInteger uploads = new AtomicInteger();
+        AtomicReference<String> version = new AtomicReference<>("KicomAV 0.40/27001");
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/version", ex -> respondText(ex, 200, version.get()));
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            String body = new String(ex.getRequestBody().readAllBytes(), StandardCharsets.ISO_8859_1);
+            respondText(ex, 200, body.contains("EICAR") ? "stream: Eicar-Test-Signature FOUND" : "stream: OK");
+        });
+        server.start();
+
+        byte[] attachment = "informe trimestral".getBytes(StandardCharsets.UTF_8);
+        Path copy = Files.write(dir.resolve("copia.pdf"), attachment);
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setCacheEnabled(true);
+        client.setCacheVersionRefreshMs(50);
+        try {
+            assertThat(client.scan(new ByteArrayInputStream(attachment), "a.pdf").isInfected()).isFalse();
+            assertThat(client.scan(new ByteArrayInputStream(attachment), "b.pdf").isInfected()).isFalse();
+            assertThat(client.scanFile(copy, "copia.pdf").isInfected()).isFalse();
+            byte[] eicar = "xx EICAR xx".getBytes(StandardCharsets.US_ASCII);
+            client.scan(new ByteArrayInputStream(eicar), "x.com");
+            assertThat(client.scan(new ByteArrayInputStream(eicar), "y.com").getSignature())
+                    .isEqualTo("Eicar-Test-Signature");
+
+            assertThat(uploads.get()).isEqualTo(2);
+            assertThat(client.getMetrics().getCount("cache.hits")).isEqualTo(3);
+            assertThat(client.getMetrics().getCount("cache.misses")).isEqualTo(2);
+
+            // firmas nuevas: la caché se vacía y el contenido se vuelve a escanear
+            version.set("KicomAV 0.40/27002");
+            long deadline = System.currentTimeMillis() + 3000;
+            while (client.getMetrics().getCount("cache.versionChanges") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(60);
+                client.scan(new ByteArrayInputStream(attachment), "a.pdf");
+            }
+            assertThat(client.getMetrics().getCount("cache.versionChanges")).isEqualTo(1);
+            client.scan(new ByteArrayInputStream(attachment), "a.pdf");
+            assertThat(uploads.get()).isGreaterThanOrEqualTo(3);
+            assertThat(client.getMetrics().getGauge("cache.size")).isPositive();
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void singleFlight_concurrentScansOfSameContent_shouldUploadOnce() throws Exception {
+        AtomicInteger uploads = new AtomicInteger();
+        CountDownLatch uploading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/version", ex -> respondText(ex, 200, "KicomAV 0.40/27001"));
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            drain(ex.getRequestBody());
+            uploading.countDown();
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: Eicar-Test-Signature FOUND");
+        });
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        byte[] attachment = "adjunto reenviado".getBytes(StandardCharsets.UTF_8);
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setCacheEnabled(true);
+        try {
+            CompletableFuture<KicomAvScanResult> first = client.scanAsync(new ByteArrayInputStream(attachment), "a.pdf", 0);
+            awaitQuietly(uploading);
+            CompletableFuture<KicomAvScanResult> second = client.scanAsync(new ByteArrayInputStream(attachment), "b.pdf", 0);
+            CompletableFuture<KicomAvScanResult> impatient = client.scanAsync(new ByteArrayInputStream(attachment), "c.pdf", 100);
+
+            // el plazo de un llamante no afecta al escaneo compartido
+            assertThatThrownBy(impatient::join).hasCauseInstanceOf(TimeoutException.class);
+            assertThat(first).isNotDone();
+            release.countDown();
+
+            assertThat(first.get(5, TimeUnit.SECONDS).getSignature()).isEqualTo("Eicar-Test-Signature");
+            assertThat(second.get(5, TimeUnit.SECONDS).getSignature()).isEqualTo("Eicar-Test-Signature");
+            assertThat(uploads.get()).isEqualTo(1);
+            assertThat(client.getMetrics().getCount("cache.coalesced")).isEqualTo(2);
+            awaitGauge(client, "singleFlight.inFlight", 0);
+        } finally {
+            release.countDown();
+            client.destroy();
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void contentUrlKey_shouldFollowSignatureVersion() throws Exception {
+        AtomicReference<String> version = new AtomicReference<>("KicomAV 0.40/27001");
+        server.createContext("/version", ex -> respondText(ex, 200, version.get()));
+        server.start();
+        String url = "store://2026/10/16/12/0/a.bin";
+
+        KicomAvRestClient disabled = new KicomAvRestClient(baseUrl, 2000, 5000);
+        assertThat(disabled.contentUrlKey(url)).isNull();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setUrlCacheEnabled(true);
+        client.setCacheVersionRefreshMs(50);
+        try {
+            String key = client.contentUrlKey(url);
+            assertThat(key).contains("27001").endsWith(url);
+            assertThat(client.getVerdict(key)).isNull();
+            client.putVerdict(key, KicomAvScanResult.clean());
+            assertThat(client.getVerdict(client.contentUrlKey(url))).isNotNull();
+
+            version.set("KicomAV 0.40/27002");
+            long deadline = System.currentTimeMillis() + 3000;
+            while (client.contentUrlKey(url).contains("27001") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(30);
+            }
+            assertThat(client.getVerdict(client.contentUrlKey(url))).isNull();
+            assertThat(client.getMetrics().getGauge("urlCache.size")).isZero();
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void consecutiveScans_shouldReuseKeepAliveConnection() {
+        Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+        server.createContext("/ping", ex -> {
+            clientPorts.add(ex.getRemoteAddress().getPort());
+            respondText(ex, 200, "pong");
+        });
+        server.createContext("/scan/file", ex -> {
+            clientPorts.add(ex.getRemoteAddress().getPort());
+            drain(ex.getRequestBody());
+            respondText(ex, 200, "stream: OK");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            for (int i = 0; i < 5; i++) {
+                client.scan(new ByteArrayInputStream(("doc" + i).getBytes(StandardCharsets.UTF_8)), "doc.txt");
+            }
+
+            assertThat(clientPorts).hasSize(1);
+            assertThat(client.getMetrics().getCount("pool.created")).isEqualTo(1);
+            assertThat(client.getMetrics().getCount("pool.reused")).isEqualTo(9);
+            assertThat(client.getMetrics().getGauge("pool.leased")).isZero();
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void serverClosingConnection_shouldOpenNewOne() {
+        server.createContext("/ping", ex -> {
+            ex.getResponseHeaders().add("Connection", "close");
+            respondText(ex, 200, "pong");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 2000);
+        try {
+            client.ping();
+            client.ping();
+
+            assertThat(client.getMetrics().getCount("pool.created")).isEqualTo(2);
+            assertThat(client.getMetrics().getCount("pool.discarded")).isEqualTo(2);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void truncatedBody_shouldThrowAndDiscardConnection() throws Exception {
+        // servidor "a mano": anuncia 10 bytes, envía 4 y corta
+        try (ServerSocket raw = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> {
+                while (!raw.isClosed()) {
+                    try (Socket socket = raw.accept()) {
+                        socket.getOutputStream().write(
+                                "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\npong".getBytes(StandardCharsets.US_ASCII));
+                        socket.shutdownOutput();
+                        drain(socket.getInputStream());
+                    } catch (IOException ignored) {
+                        // servidor cerrado
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            KicomAvRestClient client = new KicomAvRestClient("http://127.0.0.1:" + raw.getLocalPort(), 2000, 2000);
+            try {
+                assertThatThrownBy(client::ping).isInstanceOf(KicomAvException.class);
+                assertThat(client.getMetrics().getCount("pool.discarded")).isPositive();
+                assertThat(client.getMetrics().getGauge("pool.idle")).isZero();
+            } finally {
+                client.destroy();
+            }
+        }
+    }
+
+    @Test
+    void healthMonitor_up_shouldNotPingBeforeEachScan() {
+        AtomicInteger pings = new AtomicInteger();
+        server.createContext("/ping", ex -> {
+            pings.incrementAndGet();
+            respondText(ex, 200, "pong");
+        });
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            respondText(ex, 200, "stream: OK");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setHealthCheckIntervalMs(60_000);
+        client.init();
+        try {
+            for (int i = 0; i < 3; i++) {
+                assertThat(client.scan(new ByteArrayInputStream(new byte[]{1}), "a.bin").isInfected()).isFalse();
+            }
+            assertThat(client.isKnownDown()).isFalse();
+            assertThat(pings.get()).isLessThanOrEqualTo(1);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void healthMonitor_poolBusyWithScans_shouldNotMarkEndpointDown() throws Exception {
+        CountDownLatch uploading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            uploading.countDown();
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 200, 5000);
+        client.setMaxConnections(1);
+        client.setHealthCheckIntervalMs(50);
+        try {
+            CompletableFuture<KicomAvScanResult> scan = client.scanAsync(new ByteArrayInputStream(new byte[]{1}), "a.bin", 0);
+            awaitQuietly(uploading);
+            client.init();
+
+            // las sondas no esperan al pool lleno: usan una conexión aparte
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client.getMetrics().getCount("health.probes") < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertThat(client.getMetrics().getCount("health.probes")).isGreaterThanOrEqualTo(3);
+            assertThat(client.getMetrics().getCount("health.probeFailures")).isZero();
+            assertThat(client.getMetrics().getCount("pool.probeConnections")).isPositive();
+            assertThat(client.isKnownDown()).isFalse();
+
+            release.countDown();
+            assertThat(scan.get(5, TimeUnit.SECONDS).isInfected()).isFalse();
+            assertThat(client.getMetrics().getGauge("pool.leased")).isZero();
+        } finally {
+            release.countDown();
+            client.destroy();
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void healthMonitor_down_shouldFailFastWithoutUpload() throws Exception {
+        AtomicInteger uploads = new AtomicInteger();
+        server.createContext("/ping", ex -> respondText(ex, 503, "down"));
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            drain(ex.getRequestBody());
+            respondText(ex, 200, "stream: OK");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setHealthCheckIntervalMs(60_000);
+        client.init();
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!client.isKnownDown() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertThat(client.isKnownDown()).isTrue();
+
+            assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{1}), "a.bin"))
+                    .isInstanceOf(KicomAvException.class)
+                    .hasMessageContaining("no disponible");
+            assertThat(uploads.get()).isZero();
+            assertThat(client.getMetrics().getCount("health.fastFailures")).isEqualTo(1);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void scanAsync_concurrentScans_shouldAllComplete() {
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverThreads);
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setMaxConnections(4);
+        try {
+            List<CompletableFuture<KicomAvScanResult>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(client.scanAsync(new ByteArrayInputStream(new byte[]{(byte) i}), "f" + i));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+
+            assertThat(futures).allSatisfy(f -> assertThat(f.join().isInfected()).isFalse());
+            assertThat(client.getMetrics().getCount("pool.created")).isLessThanOrEqualTo(4);
+        } finally {
+            client.destroy();
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void scanAsync_queueFull_shouldRejectAtOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 30000);
+        client.setMaxConnections(1);
+        client.setQueueCapacity(1);
+        try {
+            // contenidos distintos: ninguno se une a otro escaneo en curso
+            CompletableFuture<KicomAvScanResult> running = client.scanAsync(new ByteArrayInputStream(new byte[]{1}), "a.bin");
+            awaitGauge(client, "scan.active", 1);
+            CompletableFuture<KicomAvScanResult> queued = client.scanAsync(new ByteArrayInputStream(new byte[]{2}), "b.bin");
+            assertThat(client.getMetrics().getGauge("scan.queued")).isEqualTo(1);
+
+            assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{3}), "c.bin"))
+                    .isInstanceOf(KicomAvException.class)
+                    .hasMessageContaining("llena");
+            assertThat(client.getMetrics().getCount("scan.rejected")).isEqualTo(1);
+
+            release.countDown();
+            assertThat(running.get(5, TimeUnit.SECONDS).isInfected()).isFalse();
+            assertThat(queued.get(5, TimeUnit.SECONDS).isInfected()).isFalse();
+        } finally {
+            release.countDown();
+            client.destroy();
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void scan_deadlineExceeded_shouldThrowAndDiscardConnection() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 30000);
+        client.setScanTimeoutMs(200);
+        try {
+            assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{1}), "slow.bin"))
+                    .isInstanceOf(KicomAvException.class)
+                    .hasMessageContaining("plazo")
+                    .hasCauseInstanceOf(TimeoutException.class);
+
+            awaitDiscarded(client);
+            assertThat(client.getMetrics().getCount("scan.timeouts")).isEqualTo(1);
+        } finally {
+            release.countDown();
+            client.destroy();
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void scanAsync_cancel_shouldAbortInFlightRequest() throws Exception {
+        CountDownLatch received = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            received.countDown();
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 30000);
+        try {
+            CompletableFuture<KicomAvScanResult> future =
+                    client.scanAsync(new ByteArrayInputStream(new byte[]{1}), "slow.bin");
+            assertThat(received.await(5, TimeUnit.SECONDS)).isTrue();
+
+            assertThat(future.cancel(true)).isTrue();
+            assertThat(future).isCancelled();
+            awaitDiscarded(client);
+        } finally {
+            release.countDown();
+            client.destroy();
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void multipleEndpoints_shouldSpreadScans() throws Exception {
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        startScanServer(server, first);
+        HttpServer other = startScanServer(HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0), second);
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl + ", " + urlOf(other), 2000, 5000);
+        try {
+            for (int i = 0; i < 10; i++) {
+                client.scan(new ByteArrayInputStream(new byte[]{(byte) i}), "f" + i);
+            }
+
+            assertThat(first.get()).isPositive();
+            assertThat(second.get()).isPositive();
+            assertThat(first.get() + second.get()).isEqualTo(10);
+            assertThat(client.getMetrics().getCount("pool.k2d-1.created")).isEqualTo(1);
+        } finally {
+            client.destroy();
+            other.stop(0);
+        }
+    }
+
+    @Test
+    void leastOutstanding_shouldAvoidBusyEndpoint() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger slowReceived = new AtomicInteger();
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            slowReceived.incrementAndGet();
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        AtomicInteger fast = new AtomicInteger();
+        HttpServer other = startScanServer(HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0), fast);
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl + "," + urlOf(other), 2000, 30000);
+        try {
+            for (int i = 0; i < 10; i++) {
+                int before = slowReceived.get();
+                CompletableFuture<KicomAvScanResult> f =
+                        client.scanAsync(new ByteArrayInputStream(new byte[]{1}), "f" + i);
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!f.isDone() && slowReceived.get() == before && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(5);
+                }
+            }
+
+            // en cuanto el lento tiene una petición en curso, todas las demás van al otro
+            assertThat(slowReceived.get()).isEqualTo(1);
+            assertThat(fast.get()).isEqualTo(9);
+        } finally {
+            release.countDown();
+            client.destroy();
+            other.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void unreachableEndpoint_shouldBeEjected() throws Exception {
+        AtomicInteger scans = new AtomicInteger();
+        startScanServer(server, scans);
+        HttpServer dead = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        String deadUrl = urlOf(dead);
+        dead.stop(0);
+
+        KicomAvRestClient client = new KicomAvRestClient(deadUrl + "," + baseUrl, 500, 5000);
+        try {
+            for (int i = 0; i < 6; i++) {
+                assertThat(client.scan(new ByteArrayInputStream(new byte[]{1}), "a.bin").isInfected()).isFalse();
+            }
+
+            assertThat(scans.get()).isEqualTo(6);
+            assertThat(client.getMetrics().getCount("lb.ejections")).isEqualTo(1);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void healthMonitor_perEndpoint_shouldEjectAndReadmit() throws Exception {
+        AtomicInteger healthyScans = new AtomicInteger();
+        startScanServer(server, healthyScans);
+        AtomicInteger flakyScans = new AtomicInteger();
+        AtomicInteger flakyPingStatus = new AtomicInteger(503);
+        HttpServer flaky = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        flaky.createContext("/ping", ex -> respondText(ex, flakyPingStatus.get(), "pong"));
+        flaky.createContext("/scan/file", ex -> {
+            flakyScans.incrementAndGet();
+            drain(ex.getRequestBody());
+            respondText(ex, 200, "stream: OK");
+        });
+        flaky.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl + "," + urlOf(flaky), 2000, 5000);
+        client.setHealthCheckIntervalMs(50);
+        client.init();
+        try {
+            awaitGauge(client, "health.k2d-2.up", 0);
+            for (int i = 0; i < 4; i++) {
+                client.scan(new ByteArrayInputStream(new byte[]{1}), "a.bin");
+            }
+            assertThat(flakyScans.get()).isZero();
+            assertThat(client.isKnownDown()).isFalse();
+
+            flakyPingStatus.set(200);
+            awaitGauge(client, "health.k2d-2.up", 1);
+            for (int i = 0; i < 4; i++) {
+                client.scan(new ByteArrayInputStream(new byte[]{1}), "a.bin");
+            }
+            assertThat(flakyScans.get()).isPositive();
+        } finally {
+            client.destroy();
+            flaky.stop(0);
+        }
+    }
+
+    @Test
+    void circuitBreaker_open_shouldRejectWithoutContactingK2d() {
+        AtomicInteger uploads = new AtomicInteger();
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            uploads.incrementAndGet();
+            drain(ex.getRequestBody());
+            respondText(ex, 503, "overloaded");
+        });
+        server.start();
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setBreakerWindowSize(4);
+        client.setBreakerMinimumCalls(4);
+        client.setBreakerOpenMs(60_000);
+        try {
+            for (int i = 0; i < 4; i++) {
+                assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{1}), "a.bin"))
+                        .isInstanceOf(KicomAvException.class)
+                        .hasMessageContaining("HTTP=503");
+            }
+
+            assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{1}), "a.bin"))
+                    .isInstanceOf(KicomAvException.class)
+                    .hasMessageContaining("circuito abierto");
+            assertThat(uploads.get()).isEqualTo(4);
+            assertThat(client.isKnownDown()).isTrue();
+            assertThat(client.getMetrics().getCount("breaker.rejected")).isEqualTo(1);
+            assertThat(client.getMetrics().getGauge("breaker.k2d.state")).isEqualTo(1);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void poolExhausted_shouldNotTripCircuitBreaker() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        // segundo endpoint caído: sus hilos de escaneo acaban esperando conexión del primero
+        HttpServer down = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        down.createContext("/ping", ex -> respondText(ex, 503, "down"));
+        down.start();
+
+        // connectTimeoutMs es también la espera máxima por una conexión del pool
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl + "," + urlOf(down), 200, 30000);
+        client.setMaxConnections(1);
+        client.setHealthCheckIntervalMs(50);
+        client.setBreakerWindowSize(2);
+        client.setBreakerMinimumCalls(2);
+        client.setBreakerOpenMs(60_000);
+        client.init();
+        try {
+            awaitGauge(client, "health.k2d-2.up", 0);
+            CompletableFuture<KicomAvScanResult> busy = client.scanAsync(new ByteArrayInputStream(new byte[]{1}), "a.bin");
+            awaitGauge(client, "pool.k2d-1.leased", 1);
+            for (int i = 0; i < 3; i++) {
+                // contenido distinto: no se une al escaneo en curso
+                assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{2}), "b.bin"))
+                        .isInstanceOf(KicomAvPoolExhaustedException.class);
+            }
+
+            assertThat(client.getMetrics().getGauge("breaker.k2d-1.state")).isZero();
+            assertThat(client.isKnownDown()).isFalse();
+            release.countDown();
+            assertThat(busy.get(5, TimeUnit.SECONDS).isInfected()).isFalse();
+        } finally {
+            release.countDown();
+            client.destroy();
+            down.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    @Test
+    void hedging_slowEndpoint_shouldBeBypassed() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        server.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        server.createContext("/scan/file", ex -> {
+            drain(ex.getRequestBody());
+            awaitQuietly(release);
+            respondText(ex, 200, "stream: OK");
+        });
+        ExecutorService serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+        AtomicInteger fast = new AtomicInteger();
+        HttpServer other = startScanServer(HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0), fast);
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl + "," + urlOf(other), 2000, 30000);
+        client.setHedgeEnabled(true);
+        client.setHedgeMinDelayMs(50);
+        client.setHedgeBudgetPercent(100);
+        client.setScanTimeoutMs(5000);
+        try {
+            // el primario cae en el endpoint lento en alguno de los primeros escaneos
+            for (int i = 0; i < 4; i++) {
+                assertThat(client.scan(new ByteArrayInputStream(new byte[]{1, 2, 3}), "a.txt").isInfected())
+                        .isFalse();
+            }
+
+            assertThat(client.getMetrics().getCount("hedge.wins")).isPositive();
+            assertThat(fast.get()).isEqualTo(4);
+        } finally {
+            release.countDown();
+            client.destroy();
+            other.stop(0);
+            serverThreads.shutdownNow();
+        }
+    }
+
+    private static HttpServer startScanServer(HttpServer httpServer, AtomicInteger scans) {
+        httpServer.createContext("/ping", ex -> respondText(ex, 200, "pong"));
+        httpServer.createContext("/scan/file", ex -> {
+            scans.incrementAndGet();
+            drain(ex.getRequestBody());
+            respondText(ex, 200, "stream: OK");
+        });
+        httpServer.start();
+        return httpServer;
+    }
+
+    private static String urlOf(HttpServer httpServer) {
+        return "http://127.0.0.1:" + httpServer.getAddress().getPort();
+    }
+
+    private static void awaitGauge(KicomAvRestClient client, String gauge, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getMetrics().getGauge(gauge) != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(client.getMetrics().getGauge(gauge)).isEqualTo(expected);
+    }
+
+    private static void awaitDiscarded(KicomAvRestClient client) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getMetrics().getCount("pool.discarded") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(client.getMetrics().getCount("pool.discarded")).isEqualTo(1);
+        assertThat(client.getMetrics().getGauge("pool.leased")).isZero();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private static void respondText(HttpExchange ex, int status, String body) throws IOException {
         byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
         ex.getResponseHeaders().add("Content-Type", "text/plain; charset=utf-8");
@@ -0,0 +1,184 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.cmr.repository.*;
+import org.alfresco.service.cmr.search.ResultSet;
+import org.alfresco.service.cmr.search.SearchService;
+import org.alfresco.service.transaction.TransactionService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link KicomAvScanQueue}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code cleanNode_shouldClearPendingAspect}: a clean node is released.</li>
+ *   <li>{@code infectedNode_shouldBeQuarantined}: an infected node is moved to {@code kav:quarantined}.</li>
+ *   <li>{@code failingScan_shouldRetryAndStayBlocked}: a failing scan is retried and, fail-closed,
+ *       the node stays pending with {@code kav:scanError}.</li>
+ *   <li>{@code sweep_shouldRequeueStalePendingNodes}: the sweep queues again the pending nodes
+ *       older than {@code sweepMinAgeMs} (lost on a restart), but not a node already queued.</li>
+ *   <li>{@code disabled_shouldStartNoWorkersNorSweep}: with async mode off the queue never searches
+ *       for pending nodes and reports itself saturated, so callers scan synchronously.</li>
+ * </ul>
+ * Transactions are mocked to run the callback inline; nodes are handed to the workers with
+ * {@code submit}, as the after-commit listener does.
+ */
+
+@ExtendWith(org.mockito.junit.jupiter.MockitoExtension.class)
+class KicomAvScanQueueTest {
+
+    private static final String URL = "store://2026/10/16/12/0/a.bin";
+
+    @org.mockito.Mock private NodeService nodeService;
+    @org.mockito.Mock private ContentService contentService;
+    @org.mockito.Mock private TransactionService transactionService;
+    @org.mockito.Mock private RetryingTransactionHelper txnHelper;
+    @org.mockito.Mock private ContentReader contentReader;
+    @org.mockito.Mock private KicomAvRestClient kicomAvClient;
+    @org.mockito.Mock private SearchService searchService;
+    @org.mockito.Mock private ResultSet resultSet;
+
+    private final KicomAvMetrics metrics = new KicomAvMetrics();
+
+    private KicomAvScanQueue queue;
+    private final NodeRef nodeRef =
+            new NodeRef("workspace://SpacesStore/00000000-0000-0000-0000-000000000000");
+
+    @BeforeEach
+    void setup() {
+        queue = new KicomAvScanQueue();
+        queue.setNodeService(nodeService);
+        queue.setContentService(contentService);
+        queue.setTransactionService(transactionService);
+        queue.setKicomAvClient(kicomAvClient);
+        queue.setSearchService(searchService);
+        queue.setMetrics(metrics);
+        queue.setEnabled(true);
+        // el barrido se invoca a mano en su test
+        queue.setSweepIntervalMs(0);
+        queue.setWorkers(1);
+        queue.setMaxAttempts(2);
+        queue.setRetryDelayMs(10);
+        queue.init();
+    }
+
+    @AfterEach
+    void tearDown() {
+        queue.destroy();
+    }
+
+    /**
+     * Transacciones en línea y {@code nodeRef} pendiente con contenido legible.
+     */
+    private void givenPendingNode() {
+        when(transactionService.getRetryingTransactionHelper()).thenReturn(txnHelper);
+        when(txnHelper.doInTransaction(any(), anyBoolean(), anyBoolean())).thenAnswer(inv ->
+                inv.<RetryingTransactionHelper.RetryingTransactionCallback<?>>getArgument(0).execute());
+
+        when(nodeService.exists(nodeRef)).thenReturn(true);
+        when(nodeService.hasAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN)).thenReturn(true);
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_CONTENT))
+                .thenReturn(new ContentData(URL, "application/octet-stream", 1, "UTF-8"));
+        when(nodeService.getProperty(nodeRef, ContentModel.PROP_NAME)).thenReturn("a.bin");
+        when(contentService.getRawReader(URL)).thenReturn(contentReader);
+        when(contentReader.exists()).thenReturn(true);
+        when(contentReader.getContentInputStream()).thenAnswer(inv -> new ByteArrayInputStream(new byte[]{1}));
+    }
+
+    @Test
+    void cleanNode_shouldClearPendingAspect() {
+        givenPendingNode();
+        when(kicomAvClient.scan(any(), eq("a.bin"))).thenReturn(KicomAvScanResult.clean());
+
+        queue.submit(nodeRef, 1);
+
+        verify(nodeService, timeout(5000)).removeAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN);
+        verify(nodeService, never()).addAspect(any(), any(), any());
+    }
+
+    @Test
+    void infectedNode_shouldBeQuarantined() {
+        givenPendingNode();
+        when(kicomAvClient.scan(any(), eq("a.bin"))).thenReturn(KicomAvScanResult.infected("Eicar-Test-Signature"));
+
+        queue.submit(nodeRef, 1);
+
+        verify(nodeService, timeout(5000)).addAspect(eq(nodeRef), eq(KicomAvModel.ASPECT_QUARANTINED),
+                argThat(props -> "Eicar-Test-Signature".equals(props.get(KicomAvModel.PROP_SIGNATURE))));
+        verify(nodeService).removeAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN);
+    }
+
+    @Test
+    void failingScan_shouldRetryAndStayBlocked() {
+        givenPendingNode();
+        when(kicomAvClient.scan(any(), eq("a.bin"))).thenThrow(new KicomAvException("k2d caído"));
+
+        queue.submit(nodeRef, 1);
+
+        verify(nodeService, timeout(5000)).setProperty(eq(nodeRef), eq(KicomAvModel.PROP_SCAN_ERROR), any());
+        verify(kicomAvClient, times(2)).scan(any(), eq("a.bin"));
+        verify(nodeService, never()).removeAspect(any(), any());
+    }
+
+    @Test
+    void sweep_shouldRequeueStalePendingNodes() throws Exception {
+        givenPendingNode();
+        NodeRef busy = new NodeRef("workspace://SpacesStore/00000000-0000-0000-0000-000000000001");
+        CountDownLatch scanning = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(nodeService.exists(busy)).thenReturn(true);
+        when(nodeService.hasAspect(busy, KicomAvModel.ASPECT_PENDING_SCAN)).thenReturn(true);
+        when(nodeService.getProperty(busy, ContentModel.PROP_CONTENT)).thenReturn(null);
+        when(nodeService.getProperty(busy, ContentModel.PROP_NAME)).thenAnswer(inv -> {
+            scanning.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return "b.bin";
+        });
+        when(kicomAvClient.scan(any(), eq("a.bin"))).thenReturn(KicomAvScanResult.clean());
+        when(searchService.query(argThat(sp -> sp.getQuery().contains("ASPECT:\"kav:pendingScan\"")
+                && sp.getQuery().contains("kav:queuedAt:[MIN TO")))).thenReturn(resultSet);
+        when(resultSet.getNodeRefs()).thenReturn(List.of(nodeRef, busy));
+
+        // "busy" sigue en escaneo: el barrido no lo duplica
+        queue.submit(busy, 1);
+        assertThat(scanning.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(queue.sweep()).isEqualTo(1);
+        release.countDown();
+
+        verify(nodeService, timeout(5000)).removeAspect(nodeRef, KicomAvModel.ASPECT_PENDING_SCAN);
+        verify(nodeService, timeout(5000)).removeAspect(busy, KicomAvModel.ASPECT_PENDING_SCAN);
+        verify(resultSet).close();
+        assertThat(metrics.getCount("async.recovered")).isEqualTo(1);
+    }
+
+    @Test
+    void disabled_shouldStartNoWorkersNorSweep() throws Exception {
+        KicomAvScanQueue disabled = new KicomAvScanQueue();
+        disabled.setSearchService(searchService);
+        disabled.setSweepIntervalMs(10);
+        disabled.init();
+        try {
+            Thread.sleep(100);
+            assertThat(disabled.isSaturated()).isTrue();
+            verifyNoInteractions(searchService);
+        } finally {
+            disabled.destroy();
+        }
+    }
+}
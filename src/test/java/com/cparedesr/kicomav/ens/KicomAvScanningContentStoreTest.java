@@ -0,0 +1,250 @@
+package com.cparedesr.kicomav.ens;
+
+import org.alfresco.repo.content.ContentContext;
+import org.alfresco.repo.content.ContentStore;
+import org.alfresco.repo.content.filestore.FileContentReader;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.DirectAccessUrl;
+import org.alfresco.service.cmr.repository.StorageClassSet;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Unit tests for {@link KicomAvScanningContentStore}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code tee_shouldScanWhileWritingAndRecordVerdict}: the bytes written to the wrapped store
+ *       reach k2d unchanged and the verdict is recorded under the new content URL.</li>
+ *   <li>{@code tee_whenScanFails_shouldStillWriteContent}: a scan that fails mid-write does not
+ *       affect the write and records no verdict.</li>
+ *   <li>{@code tee_whenK2dStopsReading_shouldAbandonScanAndFinishWrite}: a scan that stops reading
+ *       holds the write back for at most {@code writeTimeoutMs}; then it is abandoned, the whole
+ *       content is written and no verdict is recorded.</li>
+ *   <li>{@code tee_whenHashBlocklisted_shouldRejectWithoutWaitingForK2d}: content whose hash is
+ *       known malware is rejected as soon as the write ends, with the blocklisted signature.</li>
+ *   <li>{@code prefilter_whenPatternFound_shouldRejectWithoutWaitingForK2d}: a pre-filter pattern in
+ *       the written bytes rejects the content at the end of the write and cancels the k2d scan.</li>
+ *   <li>{@code storeScan_whenInfected_shouldDeleteAndReject}: with store scanning, infected content
+ *       is deleted from the wrapped store and the write fails.</li>
+ *   <li>{@code storeScan_withoutTee_shouldScanWrittenFile}: without tee the written file is scanned
+ *       on close and clean content is kept.</li>
+ *   <li>{@code passThrough_shouldDelegateDirectUrlsAndStorageClasses}: the {@code ContentStore}
+ *       default methods reach the wrapped store instead of the interface defaults.</li>
+ * </ul>
+ * The wrapped store writes to a temporary file and {@code KicomAvRestClient} is mocked.
+ */
+
+@ExtendWith(org.mockito.junit.jupiter.MockitoExtension.class)
+class KicomAvScanningContentStoreTest {
+
+    private static final String URL = "store://2026/10/16/12/0/big.bin";
+
+    @org.mockito.Mock private ContentStore fileStore;
+    @org.mockito.Mock private ContentWriter fileWriter;
+    @org.mockito.Mock private KicomAvRestClient kicomAvClient;
+
+    @TempDir Path dir;
+
+    private KicomAvScanningContentStore store;
+    private Path file;
+    private ContentWriter writer;
+    private final byte[] data = new byte[3 * 1024 * 1024];
+
+    @BeforeEach
+    void setup() throws Exception {
+        new Random(42).nextBytes(data);
+        file = dir.resolve("big.bin");
+        store = new KicomAvScanningContentStore();
+        store.setStore(fileStore);
+        store.setKicomAvClient(kicomAvClient);
+    }
+
+    private void open(boolean tee, boolean scan) {
+        ContentContext context = new ContentContext(null, null);
+        when(fileStore.getWriter(context)).thenReturn(fileWriter);
+        when(fileWriter.getContentUrl()).thenReturn(URL);
+        when(fileWriter.getWritableChannel()).thenAnswer(inv ->
+                Files.newByteChannel(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE));
+        if (tee && !scan) {
+            when(kicomAvClient.isUrlCacheEnabled()).thenReturn(true);
+        }
+        store.setTeeEnabled(tee);
+        store.setScanEnabled(scan);
+        store.init();
+        writer = store.getWriter(context);
+    }
+
+    @AfterEach
+    void tearDown() {
+        store.destroy();
+    }
+
+    @Test
+    void tee_shouldScanWhileWritingAndRecordVerdict() throws Exception {
+        AtomicReference<byte[]> scanned = new AtomicReference<>();
+        KicomAvScanResult infected = KicomAvScanResult.infected("Eicar-Test-Signature");
+        when(kicomAvClient.scan(any(), eq("big.bin"))).thenAnswer(inv -> {
+            scanned.set(inv.<InputStream>getArgument(0).readAllBytes());
+            return infected;
+        });
+        when(kicomAvClient.contentUrlKey(URL)).thenReturn("v1|" + URL);
+        open(true, false);
+
+        writer.putContent(new ByteArrayInputStream(data));
+
+        assertThat(Files.readAllBytes(file)).isEqualTo(data);
+        assertThat(scanned.get()).isEqualTo(data);
+        verify(kicomAvClient).putVerdict("v1|" + URL, infected);
+    }
+
+    @Test
+    void tee_whenScanFails_shouldStillWriteContent() throws Exception {
+        when(kicomAvClient.scan(any(), eq("big.bin"))).thenThrow(new KicomAvException("k2d caído"));
+        open(true, false);
+
+        writer.putContent(new ByteArrayInputStream(data));
+
+        assertThat(Files.readAllBytes(file)).isEqualTo(data);
+        verify(kicomAvClient, never()).putVerdict(any(), any());
+    }
+
+    @Test
+    void tee_whenK2dStopsReading_shouldAbandonScanAndFinishWrite() throws Exception {
+        KicomAvMetrics metrics = new KicomAvMetrics();
+        CountDownLatch abandoned = new CountDownLatch(1);
+        when(kicomAvClient.scan(any(), eq("big.bin"))).thenAnswer(inv -> {
+            // k2d atascado: lee un poco y deja de leer
+            inv.<InputStream>getArgument(0).readNBytes(1024);
+            try {
+                Thread.sleep(60_000);
+            } finally {
+                abandoned.countDown();
+            }
+            return KicomAvScanResult.clean();
+        });
+        store.setMetrics(metrics);
+        store.setWriteTimeoutMs(200);
+        open(true, false);
+
+        long start = System.nanoTime();
+        writer.putContent(new ByteArrayInputStream(data));
+
+        assertThat(System.nanoTime() - start).isLessThan(10_000_000_000L);
+        assertThat(Files.readAllBytes(file)).isEqualTo(data);
+        assertThat(abandoned.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(metrics.getCount("tee.stalled")).isEqualTo(1);
+        verify(kicomAvClient, never()).putVerdict(any(), any());
+    }
+
+    @Test
+    void tee_whenHashBlocklisted_shouldRejectWithoutWaitingForK2d() throws Exception {
+        byte[] sha256 = java.security.MessageDigest.getInstance("SHA-256").digest(data);
+        when(kicomAvClient.isBlocklistEnabled()).thenReturn(true);
+        when(kicomAvClient.blocklisted(sha256)).thenReturn(KicomAvScanResult.infected("Phishing.Invoice"));
+        when(kicomAvClient.scan(any(), eq("big.bin"))).thenAnswer(inv -> {
+            inv.<InputStream>getArgument(0).readAllBytes();
+            // k2d lento: el veredicto de la lista llega antes
+            Thread.sleep(60_000);
+            return KicomAvScanResult.clean();
+        });
+        open(true, true);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> writer.putContent(new ByteArrayInputStream(data)))
+                .hasStackTraceContaining("Fichero infectado: Phishing.Invoice");
+
+        assertThat(System.nanoTime() - start).isLessThan(10_000_000_000L);
+        verify(fileStore).delete(URL);
+    }
+
+    @Test
+    void prefilter_whenPatternFound_shouldRejectWithoutWaitingForK2d() throws Exception {
+        byte[] macro = "Sub AutoOpen()".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        System.arraycopy(macro, 0, data, 2 * 1024 * 1024, macro.length);
+        Path patterns = Files.writeString(dir.resolve("patterns.txt"), "Macro.AutoOpen text:AutoOpen\n");
+        when(kicomAvClient.scan(any(), eq("big.bin"))).thenAnswer(inv -> {
+            inv.<InputStream>getArgument(0).readAllBytes();
+            Thread.sleep(60_000);
+            return KicomAvScanResult.clean();
+        });
+        store.setPrefilterEnabled(true);
+        store.setPrefilterPatternsFile(patterns.toString());
+        open(true, true);
+
+        long start = System.nanoTime();
+        assertThatThrownBy(() -> writer.putContent(new ByteArrayInputStream(data)))
+                .hasStackTraceContaining("Fichero infectado: Macro.AutoOpen");
+
+        assertThat(System.nanoTime() - start).isLessThan(10_000_000_000L);
+        verify(fileStore).delete(URL);
+    }
+
+    @Test
+    void storeScan_whenInfected_shouldDeleteAndReject() {
+        when(kicomAvClient.scan(any(), eq("big.bin"))).thenAnswer(inv -> {
+            inv.<InputStream>getArgument(0).readAllBytes();
+            return KicomAvScanResult.infected("Eicar-Test-Signature");
+        });
+        open(true, true);
+
+        assertThatThrownBy(() -> writer.putContent(new ByteArrayInputStream(data)))
+                // según la versión de Alfresco llega tal cual o envuelta en ContentIOException
+                .hasStackTraceContaining("Fichero infectado: Eicar-Test-Signature");
+
+        verify(fileStore).delete(URL);
+    }
+
+    @Test
+    void storeScan_withoutTee_shouldScanWrittenFile() {
+        when(fileWriter.getReader()).thenReturn(new FileContentReader(file.toFile(), URL));
+        when(kicomAvClient.scanFile(file, "big.bin")).thenReturn(KicomAvScanResult.clean());
+        open(false, true);
+
+        writer.putContent(new ByteArrayInputStream(data));
+
+        verify(kicomAvClient).scanFile(file, "big.bin");
+        verify(fileStore, never()).delete(any());
+    }
+
+    @Test
+    void passThrough_shouldDelegateDirectUrlsAndStorageClasses() {
+        DirectAccessUrl directUrl = new DirectAccessUrl();
+        StorageClassSet archive = new StorageClassSet("archive");
+        when(fileStore.isContentDirectUrlEnabled(URL)).thenReturn(true);
+        when(fileStore.requestContentDirectUrl(URL, true, "big.bin", "application/pdf", 60L)).thenReturn(directUrl);
+        when(fileStore.getStorageProperties(URL)).thenReturn(Map.of("x-amz-storage-class", "GLACIER"));
+        when(fileStore.isStorageClassesSupported(archive)).thenReturn(true);
+        when(fileStore.getSupportedStorageClasses()).thenReturn(Set.of("default", "archive"));
+        when(fileStore.findStorageClasses(URL)).thenReturn(archive);
+        store.init();
+
+        assertThat(store.isContentDirectUrlEnabled(URL)).isTrue();
+        assertThat(store.requestContentDirectUrl(URL, true, "big.bin", "application/pdf", 60L)).isSameAs(directUrl);
+        assertThat(store.getStorageProperties(URL)).containsEntry("x-amz-storage-class", "GLACIER");
+        assertThat(store.isStorageClassesSupported(archive)).isTrue();
+        assertThat(store.getSupportedStorageClasses()).contains("archive");
+        assertThat(store.findStorageClasses(URL)).isSameAs(archive);
+        store.updateStorageClasses(URL, archive, Map.of());
+        verify(fileStore).updateStorageClasses(URL, archive, Map.of());
+    }
+}
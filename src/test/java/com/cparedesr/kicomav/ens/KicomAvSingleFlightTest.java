@@ -0,0 +1,103 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KicomAvSingleFlight}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code concurrentCallers_shouldShareOneCall}: callers of a key in flight share its result,
+ *       and the key is released once it completes.</li>
+ *   <li>{@code failure_shouldReachEveryWaiter}: a failed call fails every waiter with its cause.</li>
+ *   <li>{@code lastWaiterLeaving_shouldAbandonCall}: a cancelled or timed-out waiter does not affect
+ *       the others, and the call is abandoned only when nobody waits for it.</li>
+ * </ul>
+ */
+
+class KicomAvSingleFlightTest {
+
+    private final KicomAvMetrics metrics = new KicomAvMetrics();
+    private final KicomAvSingleFlight<String> flights = new KicomAvSingleFlight<>(metrics);
+
+    @Test
+    void concurrentCallers_shouldShareOneCall() {
+        AtomicInteger calls = new AtomicInteger();
+        CompletableFuture<String> running = new CompletableFuture<>();
+
+        CompletableFuture<String> a = flights.join("cache", "h/x", () -> {
+            calls.incrementAndGet();
+            return running;
+        });
+        CompletableFuture<String> b = flights.join("cache", "h/x", () -> {
+            calls.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        assertThat(a).isNotSameAs(b);
+        assertThat(flights.size()).isEqualTo(1);
+
+        running.complete("OK");
+
+        assertThat(a.join()).isEqualTo("OK");
+        assertThat(b.join()).isEqualTo("OK");
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(metrics.getCount("cache.coalesced")).isEqualTo(1);
+        assertThat(flights.size()).isZero();
+
+        // terminada la llamada, la siguiente empieza otra
+        flights.join("cache", "h/x", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture("OK");
+        }).join();
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    void failure_shouldReachEveryWaiter() {
+        CompletableFuture<String> running = new CompletableFuture<>();
+        CompletableFuture<String> a = flights.join("urlCache", "u/x", () -> running);
+        CompletableFuture<String> b = flights.join("urlCache", "u/x", CompletableFuture::new);
+
+        KicomAvException failure = new KicomAvException("k2d caído");
+        running.completeExceptionally(failure);
+
+        assertThatThrownBy(a::join).isInstanceOf(CompletionException.class).hasCause(failure);
+        assertThatThrownBy(b::join).isInstanceOf(CompletionException.class).hasCause(failure);
+        assertThat(flights.size()).isZero();
+    }
+
+    @Test
+    void lastWaiterLeaving_shouldAbandonCall() {
+        CompletableFuture<String> running = new CompletableFuture<>();
+        CompletableFuture<String> a = flights.join("cache", "h/x", () -> running);
+        CompletableFuture<String> b = flights.join("cache", "h/x", CompletableFuture::new);
+        CompletableFuture<String> c = flights.join("cache", "h/x", CompletableFuture::new);
+
+        a.cancel(true);
+        b.orTimeout(10, TimeUnit.MILLISECONDS);
+        assertThatThrownBy(b::join).hasCauseInstanceOf(TimeoutException.class);
+        assertThat(running).isNotDone();
+        assertThat(c).isNotDone();
+
+        // el último en irse vence su plazo: la llamada en curso termina igual
+        c.orTimeout(10, TimeUnit.MILLISECONDS);
+        assertThatThrownBy(c::join).hasCauseInstanceOf(TimeoutException.class);
+        assertThatThrownBy(running::join).hasCauseInstanceOf(TimeoutException.class);
+        assertThat(flights.size()).isZero();
+
+        CompletableFuture<String> next = new CompletableFuture<>();
+        CompletableFuture<String> d = flights.join("cache", "h/x", () -> next);
+        d.cancel(true);
+        assertThat(next.isCancelled()).isTrue();
+        assertThatThrownBy(d::join).isInstanceOf(CancellationException.class);
+    }
+}
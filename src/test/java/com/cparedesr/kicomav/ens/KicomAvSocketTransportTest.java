@@ -0,0 +1,407 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KicomAvSocketTransport}, driven through {@link KicomAvRestClient}
+ * with a {@code tcp://} or {@code unix://} base URL.
+ * <p>
+ * A tiny in-process stand-in for the k2d socket port understands {@code IDSESSION}, {@code PING},
+ * {@code INSTREAM}, {@code SCAN} (reading the file from its own "mount") and {@code END}. The tests
+ * verify that:
+ * <ul>
+ *   <li>PING and INSTREAM verdicts (clean / infected) are parsed correctly.</li>
+ *   <li>Content is framed as length-prefixed chunks and arrives intact, also for local files.</li>
+ *   <li>In session mode every command reuses one persistent connection.</li>
+ *   <li>Without session mode every command opens its own connection.</li>
+ *   <li>An {@code ERROR} reply is reported as {@link KicomAvException}, and its session connection
+ *       is not reused.</li>
+ *   <li>In scan-by-reference mode files visible to the daemon are scanned in place with {@code SCAN}
+ *       and the others fall back to {@code INSTREAM}; any other {@code SCAN} error is reported as
+ *       {@link KicomAvException} instead of falling back.</li>
+ *   <li>The same protocol works over a Unix domain socket, with session reuse and read timeouts.</li>
+ * </ul>
+ */
+
+class KicomAvSocketTransportTest {
+
+    private ServerSocket serverSocket;
+    private Thread acceptor;
+    private String baseUrl;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicReference<byte[]> lastStream = new AtomicReference<>();
+    private final AtomicReference<String> lastScanPath = new AtomicReference<>();
+    private volatile String forcedReply;
+    private volatile String forcedScanReply;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        baseUrl = "tcp://127.0.0.1:" + serverSocket.getLocalPort();
+        acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread worker = new Thread(() -> {
+                        try (socket) {
+                            serve(socket.getInputStream(), socket.getOutputStream());
+                        } catch (IOException ignored) {
+                            // el cliente cerró la conexión
+                        }
+                    });
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        serverSocket.close();
+        acceptor.join(2000);
+    }
+
+    @Test
+    void ping_shouldPass() {
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 2000);
+        try {
+            assertThatCode(client::ping).doesNotThrowAnyException();
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void scan_clean_shouldReturnCleanAndDeliverContent() {
+        byte[] content = new byte[200_000];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) i;
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            KicomAvScanResult result = client.scan(new ByteArrayInputStream(content), "plan.pdf");
+
+            assertThat(result.isInfected()).isFalse();
+            assertThat(lastStream.get()).isEqualTo(content);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void scanFile_shouldDeliverFileContent(@TempDir Path dir) throws IOException {
+        byte[] content = new byte[5 * 1024 * 1024 + 17];
+        for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 31);
+        Path file = Files.write(dir.resolve("video.mp4"), content);
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            assertThat(client.scanFile(file, "video.mp4").isInfected()).isFalse();
+            assertThat(lastStream.get()).isEqualTo(content);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void scan_infected_shouldReturnSignature() {
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            KicomAvScanResult result = client.scan(
+                    new ByteArrayInputStream("xx EICAR xx".getBytes(StandardCharsets.US_ASCII)), "eicar.com");
+
+            assertThat(result.isInfected()).isTrue();
+            assertThat(result.getSignature()).isEqualTo("Eicar-Test-Signature");
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void session_shouldReuseOneConnection() {
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            for (int i = 0; i < 5; i++) {
+                client.scan(new ByteArrayInputStream(new byte[]{(byte) i}), "f" + i);
+            }
+
+            assertThat(connections.get()).isEqualTo(1);
+            assertThat(client.getMetrics().getCount("pool.reused")).isEqualTo(9);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void withoutSession_shouldUseOneConnectionPerCommand() {
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setSocketSession(false);
+        try {
+            client.scan(new ByteArrayInputStream(new byte[]{1}), "a");
+            client.scan(new ByteArrayInputStream(new byte[]{2}), "b");
+
+            // ping + INSTREAM por cada escaneo
+            assertThat(connections.get()).isEqualTo(4);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void errorReply_shouldThrow() {
+        forcedReply = "INSTREAM size limit exceeded. ERROR";
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{1}), "big.bin"))
+                    .isInstanceOf(KicomAvException.class)
+                    .hasMessageContaining("INSTREAM");
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void errorReply_shouldNotReuseSessionConnection() {
+        forcedReply = "INSTREAM size limit exceeded. ERROR";
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        try {
+            assertThatThrownBy(() -> client.scan(new ByteArrayInputStream(new byte[]{1}), "big.bin"))
+                    .isInstanceOf(KicomAvException.class);
+
+            forcedReply = null;
+            assertThat(client.scan(new ByteArrayInputStream(new byte[]{2}), "ok.bin").isInfected()).isFalse();
+
+            // la sesión que recibió el error se cerró: el siguiente escaneo abre otra
+            assertThat(connections.get()).isEqualTo(2);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void scanByReference_daemonError_shouldThrowInsteadOfFallingBack(@TempDir Path dir) throws IOException {
+        Path localRoot = Files.createDirectories(dir.resolve("alf_data/contentstore"));
+        Path file = Files.write(localRoot.resolve("a.bin"), new byte[]{1, 2, 3});
+        forcedScanReply = "Can't allocate memory ERROR";
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setByReferenceEnabled(true);
+        client.setByReferenceLocalRoot(localRoot.toString());
+        client.setByReferenceRemoteRoot(dir.resolve("k2d/contentstore").toString());
+        try {
+            assertThatThrownBy(() -> client.scanFile(file, "a.bin"))
+                    .isInstanceOf(KicomAvException.class)
+                    .hasMessageContaining("Can't allocate memory");
+            assertThat(lastStream.get()).isNull();
+            assertThat(client.getMetrics().getCount("scan.byReference.fallbacks")).isZero();
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void scanByReference_shouldScanInPlaceOrFallBackToInstream(@TempDir Path dir) throws IOException {
+        Path localRoot = Files.createDirectories(dir.resolve("alf_data/contentstore"));
+        Path remoteRoot = Files.createDirectories(dir.resolve("k2d/contentstore"));
+        Files.createDirectories(localRoot.resolve("2026/10/16"));
+        Files.createDirectories(remoteRoot.resolve("2026/10/16"));
+        byte[] eicar = "xx EICAR xx".getBytes(StandardCharsets.US_ASCII);
+        Path shared = Files.write(localRoot.resolve("2026/10/16/found.bin"), eicar);
+        Files.write(remoteRoot.resolve("2026/10/16/found.bin"), eicar);
+        byte[] content = new byte[70_000];
+        Path localOnly = Files.write(localRoot.resolve("2026/10/16/new.bin"), content);
+
+        KicomAvRestClient client = new KicomAvRestClient(baseUrl, 2000, 5000);
+        client.setByReferenceEnabled(true);
+        client.setByReferenceLocalRoot(localRoot.toString());
+        client.setByReferenceRemoteRoot(remoteRoot.toString());
+        try {
+            KicomAvScanResult result = client.scanFile(shared, "found.bin");
+
+            assertThat(result.getSignature()).isEqualTo("Eicar-Test-Signature");
+            assertThat(lastScanPath.get()).isEqualTo(remoteRoot.resolve("2026/10/16/found.bin").toString());
+            assertThat(lastStream.get()).isNull();
+
+            assertThat(client.scanFile(localOnly, "new.bin").isInfected()).isFalse();
+            assertThat(lastStream.get()).isEqualTo(content);
+            assertThat(client.getMetrics().getCount("scan.byReference.fallbacks")).isEqualTo(1);
+            assertThat(connections.get()).isEqualTo(1);
+        } finally {
+            client.destroy();
+        }
+    }
+
+    @Test
+    void unixSocket_shouldPingScanAndReuseSession(@TempDir Path dir) throws Exception {
+        Path sock = dir.resolve("k2d.sock");
+        try (ServerSocketChannel server = startUnixServer(sock, 0)) {
+            KicomAvRestClient client = new KicomAvRestClient("unix://" + sock, 2000, 5000);
+            try {
+                assertThatCode(client::ping).doesNotThrowAnyException();
+
+                byte[] content = new byte[150_000];
+                for (int i = 0; i < content.length; i++) content[i] = (byte) (i * 7);
+                assertThat(client.scan(new ByteArrayInputStream(content), "a.bin").isInfected()).isFalse();
+                assertThat(lastStream.get()).isEqualTo(content);
+
+                Path file = Files.write(dir.resolve("a.bin"), content);
+                lastStream.set(null);
+                assertThat(client.scanFile(file, "a.bin").isInfected()).isFalse();
+                assertThat(lastStream.get()).isEqualTo(content);
+
+                KicomAvScanResult infected = client.scan(
+                        new ByteArrayInputStream("EICAR".getBytes(StandardCharsets.US_ASCII)), "eicar.com");
+                assertThat(infected.getSignature()).isEqualTo("Eicar-Test-Signature");
+
+                assertThat(connections.get()).isEqualTo(1);
+            } finally {
+                client.destroy();
+            }
+        }
+    }
+
+    @Test
+    void unixSocket_slowDaemon_shouldTimeOut(@TempDir Path dir) throws Exception {
+        Path sock = dir.resolve("k2d.sock");
+        try (ServerSocketChannel server = startUnixServer(sock, 1500)) {
+            KicomAvRestClient client = new KicomAvRestClient("unix://" + sock, 2000, 300);
+            try {
+                assertThatThrownBy(client::ping)
+                        .isInstanceOf(KicomAvException.class);
+            } finally {
+                client.destroy();
+            }
+        }
+    }
+
+    @Test
+    void unixSocket_withoutPath_shouldBeRejected() {
+        assertThatThrownBy(() -> new KicomAvRestClient("unix://", 2000, 2000))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Arranca el mismo servidor falso sobre un Unix domain socket; {@code delayMs} retrasa cada
+     * respuesta para probar los timeouts de lectura.
+     */
+    private ServerSocketChannel startUnixServer(Path sock, long delayMs) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(sock));
+        Thread unixAcceptor = new Thread(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel ch = server.accept();
+                    connections.incrementAndGet();
+                    Thread worker = new Thread(() -> {
+                        try (ch) {
+                            if (delayMs > 0) Thread.sleep(delayMs);
+                            serve(Channels.newInputStream(ch), Channels.newOutputStream(ch));
+                        } catch (IOException | InterruptedException ignored) {
+                            // el cliente cerró la conexión
+                        }
+                    });
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        unixAcceptor.setDaemon(true);
+        unixAcceptor.start();
+        return server;
+    }
+
+    private void serve(InputStream rawIn, OutputStream out) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(rawIn));
+            boolean session = false;
+            int seq = 0;
+            String command;
+            while ((command = readCommand(in)) != null) {
+                String reply;
+                switch (command) {
+                    case "IDSESSION":
+                        session = true;
+                        continue;
+                    case "END":
+                        return;
+                    case "PING":
+                        reply = "PONG";
+                        break;
+                    case "INSTREAM":
+                        byte[] data = readChunks(in);
+                        lastStream.set(data);
+                        String text = new String(data, StandardCharsets.ISO_8859_1);
+                        reply = forcedReply != null ? forcedReply
+                                : text.contains("EICAR") ? "stream: Eicar-Test-Signature FOUND" : "stream: OK";
+                        break;
+                    default:
+                        if (command.startsWith("SCAN ")) {
+                            String path = command.substring(5);
+                            lastScanPath.set(path);
+                            Path file = Path.of(path);
+                            reply = forcedScanReply != null ? forcedScanReply
+                                    : !Files.isRegularFile(file) ? path + ": lstat() failed: No such file or directory. ERROR"
+                                    : new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1).contains("EICAR")
+                                    ? path + ": Eicar-Test-Signature FOUND" : path + ": OK";
+                            break;
+                        }
+                        reply = "UNKNOWN COMMAND";
+                }
+                String framed = session ? (++seq) + ": " + reply : reply;
+                out.write(framed.getBytes(StandardCharsets.UTF_8));
+                out.write(0);
+                out.flush();
+                if (!session) return;
+            }
+        } catch (IOException ignored) {
+            // el cliente cerró la conexión
+        }
+    }
+
+    private static String readCommand(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) return null;
+        assertThat((char) first).isEqualTo('z');
+        ByteArrayOutputStream cmd = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) cmd.write(b);
+        return cmd.toString(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readChunks(DataInputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int len;
+        while ((len = in.readInt()) > 0) {
+            data.write(in.readNBytes(len));
+        }
+        return data.toByteArray();
+    }
+}
@@ -0,0 +1,149 @@
+package com.cparedesr.kicomav.ens;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Manual benchmark: k2d socket protocol over loopback TCP vs. Unix domain socket.
+ * <p>
+ * Not a unit test (it is not picked up by Surefire). Both transports talk to the same in-process
+ * stand-in for k2d, which drains {@code INSTREAM} chunks and answers {@code OK}, so the numbers
+ * measure the client and the kernel path only, not the scan engine. Run it from the IDE or with
+ * {@code java -cp target/test-classes:target/classes:<deps> com.cparedesr.kicomav.ens.KicomAvUnixSocketBenchmark [iterations] [sizeBytes]}.
+ *
+ * @author cparedesr
+ */
+
+public final class KicomAvUnixSocketBenchmark {
+
+    private KicomAvUnixSocketBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+        byte[] payload = new byte[size];
+
+        Path dir = Files.createTempDirectory("kicomav-bench");
+        Path sock = dir.resolve("k2d.sock");
+
+        try (ServerSocketChannel tcp = ServerSocketChannel.open();
+             ServerSocketChannel unix = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            tcp.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            unix.bind(UnixDomainSocketAddress.of(sock));
+            startServer(tcp);
+            startServer(unix);
+
+            String tcpUrl = "tcp://127.0.0.1:" + ((InetSocketAddress) tcp.getLocalAddress()).getPort();
+            String unixUrl = "unix://" + sock;
+
+            System.out.printf("iteraciones=%d bytes=%d%n", iterations, size);
+            for (int round = 0; round < 2; round++) {
+                // la primera ronda sirve de calentamiento del JIT
+                run("tcp ", tcpUrl, iterations, payload);
+                run("unix", unixUrl, iterations, payload);
+            }
+        } finally {
+            Files.deleteIfExists(sock);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void run(String label, String url, int iterations, byte[] payload) {
+        KicomAvRestClient client = new KicomAvRestClient(url, 2000, 10_000);
+        client.setHealthCheckIntervalMs(0);
+        try {
+            client.ping();
+
+            long t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                client.ping();
+            }
+            long pingNanos = System.nanoTime() - t0;
+
+            t0 = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                client.scan(new ByteArrayInputStream(payload), "bench.bin");
+            }
+            long scanNanos = System.nanoTime() - t0;
+
+            double mb = (double) payload.length * iterations / (1024 * 1024);
+            System.out.printf("%s  ping %.1f us/op   INSTREAM %.1f us/op (%.0f MB/s)%n", label,
+                    pingNanos / 1e3 / iterations, scanNanos / 1e3 / iterations, mb / (scanNanos / 1e9));
+        } finally {
+            client.destroy();
+        }
+    }
+
+    private static void startServer(ServerSocketChannel server) {
+        Thread acceptor = new Thread(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel ch = server.accept();
+                    Thread worker = new Thread(() -> serve(ch));
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void serve(SocketChannel ch) {
+        try (ch;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch), 64 * 1024));
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch))) {
+            boolean session = false;
+            int seq = 0;
+            byte[] sink = new byte[64 * 1024];
+            String command;
+            while ((command = readCommand(in)) != null) {
+                String reply;
+                if (command.equals("IDSESSION")) {
+                    session = true;
+                    continue;
+                } else if (command.equals("END")) {
+                    return;
+                } else if (command.equals("PING")) {
+                    reply = "PONG";
+                } else {
+                    int len;
+                    while ((len = in.readInt()) > 0) {
+                        while (len > 0) {
+                            int n = in.read(sink, 0, Math.min(len, sink.length));
+                            if (n < 0) return;
+                            len -= n;
+                        }
+                    }
+                    reply = "stream: OK";
+                }
+                out.write(((session ? (++seq) + ": " : "") + reply).getBytes(StandardCharsets.US_ASCII));
+                out.write(0);
+                out.flush();
+                if (!session) return;
+            }
+        } catch (IOException ignored) {
+            // el cliente cerró la conexión
+        }
+    }
+
+    private static String readCommand(InputStream in) throws IOException {
+        if (in.read() < 0) return null;
+        ByteArrayOutputStream cmd = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) cmd.write(b);
+        return cmd.toString(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,47 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KicomAvVerdictCache}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code put_shouldReturnVerdictUntilEvicted}: stored verdicts are returned and the least recently
+ *       used entry is evicted when the cache is full.</li>
+ *   <li>{@code expiredEntry_shouldBeMissing}: entries older than the TTL are not returned.</li>
+ * </ul>
+ */
+
+class KicomAvVerdictCacheTest {
+
+    @Test
+    void put_shouldReturnVerdictUntilEvicted() {
+        KicomAvVerdictCache cache = new KicomAvVerdictCache(2, 60_000);
+        cache.put("v1:a", KicomAvScanResult.clean());
+        cache.put("v1:b", KicomAvScanResult.infected("Eicar"));
+
+        // a pasa a ser el más reciente, así que el expulsado es b
+        assertThat(cache.get("v1:a").isInfected()).isFalse();
+        cache.put("v1:c", KicomAvScanResult.clean());
+
+        assertThat(cache.get("v1:b")).isNull();
+        assertThat(cache.get("v1:a")).isNotNull();
+        assertThat(cache.get("v1:c")).isNotNull();
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    void expiredEntry_shouldBeMissing() throws Exception {
+        KicomAvVerdictCache cache = new KicomAvVerdictCache(10, 30);
+        cache.put("v1:a", KicomAvScanResult.infected("Eicar"));
+        assertThat(cache.get("v1:a").getSignature()).isEqualTo("Eicar");
+
+        Thread.sleep(60);
+
+        assertThat(cache.get("v1:a")).isNull();
+        assertThat(cache.size()).isZero();
+    }
+}
@@ -0,0 +1,117 @@
+package com.cparedesr.kicomav.ens;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manual benchmark: lookup throughput and resident memory of {@link KicomAvVerdictIndex}.
+ * <p>
+ * Not a unit test (it is not picked up by Surefire). Fills an index with random hashes, then runs
+ * lookups from several threads, half of them hits and half misses, and prints lookups per second
+ * together with the heap in use and the process resident set ({@code VmRSS}, Linux only) after
+ * filling and after the lookups. Run it with
+ * {@code java -cp target/test-classes:target/classes:<deps> com.cparedesr.kicomav.ens.KicomAvVerdictIndexBenchmark [millions] [threads] [seconds]}.
+ *
+ * @author cparedesr
+ */
+
+public final class KicomAvVerdictIndexBenchmark {
+
+    private KicomAvVerdictIndexBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int millions = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        long entries = millions * 1_000_000L;
+        int tag = KicomAvVerdictIndex.versionTag("KicomAV 0.40/27001", 0, 18);
+
+        Path file = Files.createTempFile("kicomav-index", ".idx");
+        try (KicomAvVerdictIndex index = KicomAvVerdictIndex.open(file, entries)) {
+            System.out.printf("entradas=%d hilos=%d segundos=%d%n", entries, threads, seconds);
+            memory("vacío     ");
+
+            byte[] hash = new byte[32];
+            long t0 = System.nanoTime();
+            for (long i = 0; i < entries; i++) {
+                fill(hash, i);
+                index.put(hash, i % 1000 == 0, tag, 1000, 0);
+            }
+            System.out.printf("carga     %.0f inserciones/s%n", entries / ((System.nanoTime() - t0) / 1e9));
+            memory("lleno     ");
+
+            for (int round = 0; round < 2; round++) {
+                // la primera ronda sirve de calentamiento del JIT
+                lookups(index, entries, threads, round == 0 ? Math.min(seconds, 3) : seconds, tag);
+            }
+            memory("consultas ");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void lookups(KicomAvVerdictIndex index, long entries, int threads, int seconds, int tag)
+            throws InterruptedException {
+        AtomicLong total = new AtomicLong();
+        AtomicLong hits = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            Thread worker = new Thread(() -> {
+                Random random = new Random(seed);
+                byte[] hash = new byte[32];
+                long n = 0;
+                long found = 0;
+                while ((n & 1023) != 0 || System.nanoTime() < deadline) {
+                    // los índices >= entries nunca se insertaron: fallos
+                    fill(hash, Math.floorMod(random.nextLong(), entries * 2));
+                    if (index.get(hash, tag, 0) != KicomAvVerdictIndex.MISS) found++;
+                    n++;
+                }
+                total.addAndGet(n);
+                hits.addAndGet(found);
+                done.countDown();
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+        done.await();
+        System.out.printf("consultas %.1f M/s (%.1f M/s por hilo), aciertos %.0f%%%n",
+                total.get() / 1e6 / seconds, total.get() / 1e6 / seconds / threads, 100.0 * hits.get() / total.get());
+    }
+
+    /**
+     * Hash pseudoaleatorio determinista de {@code i} (SplitMix64), más barato que un SHA-256 real.
+     */
+    private static void fill(byte[] hash, long i) {
+        long x = i;
+        for (int w = 0; w < 4; w++) {
+            x += 0x9E3779B97F4A7C15L;
+            long z = x;
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z ^= z >>> 31;
+            for (int b = 0; b < 8; b++) {
+                hash[w * 8 + b] = (byte) (z >>> (8 * b));
+            }
+        }
+    }
+
+    private static void memory(String label) throws Exception {
+        Runtime rt = Runtime.getRuntime();
+        long heapMb = (rt.totalMemory() - rt.freeMemory()) >> 20;
+        String rss = "?";
+        Path status = Path.of("/proc/self/status");
+        if (Files.isReadable(status)) {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) rss = line.substring(6).trim();
+            }
+        }
+        System.out.printf("%s heap %d MB, RSS %s%n", label, heapMb, rss);
+    }
+}
@@ -0,0 +1,132 @@
+package com.cparedesr.kicomav.ens;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KicomAvVerdictIndex}.
+ * <p>
+ * Tests cover:
+ * <ul>
+ *   <li>{@code put_shouldReturnVerdictForSameVersionOnly}: verdicts are returned for the signature
+ *       version and time window they were stored with, and are overwritten in place.</li>
+ *   <li>{@code collidingHashes_shouldAllBeFoundAfterReopen}: hashes that share their first bytes are
+ *       probed correctly, and the index keeps its content when the file is reopened.</li>
+ *   <li>{@code full_shouldRejectNewHashes}: once {@code maxEntries} hashes are stored new ones are
+ *       not added, but known ones can still be updated.</li>
+ *   <li>{@code full_shouldReuseStaleSlots}: a full index stores a new hash in a slot on its probe
+ *       path whose entry is from another signature version or expired, without breaking the chain.</li>
+ * </ul>
+ */
+
+class KicomAvVerdictIndexTest {
+
+    private static final int V1 = KicomAvVerdictIndex.versionTag("KicomAV 0.40/27001", 0, 18);
+    private static final int V2 = KicomAvVerdictIndex.versionTag("KicomAV 0.40/27002", 0, 18);
+
+    @Test
+    void put_shouldReturnVerdictForSameVersionOnly(@TempDir Path dir) throws Exception {
+        byte[] clean = sha256("informe");
+        byte[] eicar = sha256("EICAR");
+        try (KicomAvVerdictIndex index = KicomAvVerdictIndex.open(dir.resolve("verdicts.idx"), 1000)) {
+            assertThat(index.put(clean, false, V1, 1000, 0)).isTrue();
+            assertThat(index.put(eicar, true, V1, 1000, 0)).isTrue();
+
+            assertThat(index.get(clean, V1, 0)).isEqualTo(KicomAvVerdictIndex.CLEAN);
+            assertThat(index.get(eicar, V1, 0)).isEqualTo(KicomAvVerdictIndex.INFECTED);
+            assertThat(index.get(clean, V2, 0)).isEqualTo(KicomAvVerdictIndex.MISS);
+            assertThat(index.get(clean, V1, 1001)).isEqualTo(KicomAvVerdictIndex.MISS);
+            assertThat(index.get(sha256("otro"), V1, 0)).isEqualTo(KicomAvVerdictIndex.MISS);
+
+            // nuevas firmas: el mismo hash se sustituye, no ocupa otro slot
+            index.put(clean, true, V2, 2000, 0);
+            assertThat(index.get(clean, V2, 0)).isEqualTo(KicomAvVerdictIndex.INFECTED);
+            assertThat(index.get(clean, V1, 0)).isEqualTo(KicomAvVerdictIndex.MISS);
+            assertThat(index.size()).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void collidingHashes_shouldAllBeFoundAfterReopen(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("verdicts.idx");
+        byte[][] hashes = new byte[700][];
+        Random random = new Random(42);
+        try (KicomAvVerdictIndex index = KicomAvVerdictIndex.open(file, 700)) {
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = new byte[32];
+                random.nextBytes(hashes[i]);
+                // mismo slot inicial para la mitad: se encadenan por sondeo lineal
+                if (i % 2 == 0) hashes[i][0] = 7;
+                for (int b = 1; b < 8 && i % 2 == 0; b++) hashes[i][b] = 0;
+                assertThat(index.put(hashes[i], i % 3 == 0, V1, 1000, 0)).isTrue();
+            }
+        }
+
+        try (KicomAvVerdictIndex index = KicomAvVerdictIndex.open(file, 700)) {
+            assertThat(index.size()).isEqualTo(700);
+            for (int i = 0; i < hashes.length; i++) {
+                assertThat(index.get(hashes[i], V1, 0))
+                        .isEqualTo(i % 3 == 0 ? KicomAvVerdictIndex.INFECTED : KicomAvVerdictIndex.CLEAN);
+            }
+        }
+    }
+
+    @Test
+    void full_shouldRejectNewHashes(@TempDir Path dir) throws Exception {
+        try (KicomAvVerdictIndex index = KicomAvVerdictIndex.open(dir.resolve("verdicts.idx"), 2)) {
+            assertThat(index.put(sha256("a"), false, V1, 1000, 0)).isTrue();
+            assertThat(index.put(sha256("b"), false, V1, 1000, 0)).isTrue();
+
+            assertThat(index.put(sha256("c"), false, V1, 1000, 0)).isFalse();
+            assertThat(index.put(sha256("a"), true, V1, 1000, 0)).isTrue();
+            assertThat(index.get(sha256("a"), V1, 0)).isEqualTo(KicomAvVerdictIndex.INFECTED);
+            assertThat(index.get(sha256("c"), V1, 0)).isEqualTo(KicomAvVerdictIndex.MISS);
+        }
+    }
+
+    @Test
+    void full_shouldReuseStaleSlots(@TempDir Path dir) throws Exception {
+        byte[] a = colliding(1);
+        byte[] b = colliding(2);
+        byte[] c = colliding(3);
+        byte[] d = colliding(4);
+        try (KicomAvVerdictIndex index = KicomAvVerdictIndex.open(dir.resolve("verdicts.idx"), 2)) {
+            assertThat(index.put(a, false, V1, 1000, 0)).isTrue();
+            assertThat(index.put(b, false, V1, 1000, 0)).isTrue();
+            assertThat(index.put(c, false, V1, 2000, 0)).isFalse();
+
+            // "a" es de otras firmas: "c" ocupa su slot
+            assertThat(index.put(c, true, V2, 2000, 0)).isTrue();
+            assertThat(index.get(c, V2, 0)).isEqualTo(KicomAvVerdictIndex.INFECTED);
+            assertThat(index.get(a, V1, 0)).isEqualTo(KicomAvVerdictIndex.MISS);
+
+            // "c" ha caducado para este ttl: "d" ocupa su slot
+            assertThat(index.put(d, false, V2, 3000, 2500)).isTrue();
+            assertThat(index.get(d, V2, 0)).isEqualTo(KicomAvVerdictIndex.CLEAN);
+            assertThat(index.get(c, V2, 0)).isEqualTo(KicomAvVerdictIndex.MISS);
+            // "b", más adelante en la misma cadena, se sigue encontrando
+            assertThat(index.get(b, V1, 0)).isEqualTo(KicomAvVerdictIndex.CLEAN);
+            assertThat(index.size()).isEqualTo(2);
+        }
+    }
+
+    /**
+     * Hash distinto para cada {@code n} con el mismo slot inicial.
+     */
+    private static byte[] colliding(int n) {
+        byte[] hash = new byte[32];
+        hash[0] = 7;
+        hash[31] = (byte) n;
+        return hash;
+    }
+
+    private static byte[] sha256(String content) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(content.getBytes());
+    }
+}
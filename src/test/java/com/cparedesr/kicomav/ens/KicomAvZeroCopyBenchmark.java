@@ -0,0 +1,224 @@
+package com.cparedesr.kicomav.ens;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Manual benchmark: stream-copy upload ({@code scan(InputStream)}) vs. zero-copy upload
+ * ({@code scanFile(Path)}, {@code FileChannel.transferTo}) of a large local file.
+ * <p>
+ * Not a unit test (it is not picked up by Surefire). The k2d stand-in speaks the socket protocol
+ * ({@code tcp://}) or, with {@code http} as third argument, the REST API, and discards the bytes
+ * into a direct buffer. CPU time is the whole process ({@code getProcessCpuTime}), so it includes
+ * the stand-in's share, which is the same for both paths. Run it with
+ * {@code java -cp target/test-classes:target/classes:<deps> com.cparedesr.kicomav.ens.KicomAvZeroCopyBenchmark [sizeMB] [iterations] [tcp|http]}.
+ *
+ * @author cparedesr
+ */
+
+public final class KicomAvZeroCopyBenchmark {
+
+    private KicomAvZeroCopyBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        boolean http = args.length > 2 && args[2].equalsIgnoreCase("http");
+
+        Path file = Files.createTempFile("kicomav-bench", ".bin");
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            writeFile(file, sizeMb);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            startServer(server, http);
+
+            String url = (http ? "http" : "tcp") + "://127.0.0.1:" + port;
+            KicomAvRestClient client = new KicomAvRestClient(url, 2000, 120_000);
+            client.setSocketSession(!http);
+            try {
+                System.out.printf("fichero=%d MB iteraciones=%d protocolo=%s%n", sizeMb, iterations, http ? "http" : "tcp");
+                for (int round = 0; round < 2; round++) {
+                    // la primera ronda sirve de calentamiento del JIT
+                    run("stream   ", iterations, sizeMb, () -> {
+                        try (InputStream in = Files.newInputStream(file)) {
+                            client.scan(in, "bench.bin");
+                        }
+                    });
+                    run("zero-copy", iterations, sizeMb, () -> client.scanFile(file, "bench.bin"));
+                }
+            } finally {
+                client.destroy();
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void run(String label, int iterations, int sizeMb, Scan scan) throws Exception {
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpu0 = os.getProcessCpuTime();
+        long t0 = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            scan.run();
+        }
+        double seconds = (System.nanoTime() - t0) / 1e9;
+        double cpuSeconds = (os.getProcessCpuTime() - cpu0) / 1e9;
+        double gb = (double) sizeMb * iterations / 1024;
+        System.out.printf("%s  %.0f MB/s   CPU %.2f s/GB%n", label, sizeMb * iterations / seconds, cpuSeconds / gb);
+    }
+
+    private static void writeFile(Path file, int sizeMb) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        for (int i = 0; i < block.length; i++) block[i] = (byte) (i * 31);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) {
+                out.write(block);
+            }
+        }
+    }
+
+    private static void startServer(ServerSocketChannel server, boolean http) {
+        Thread acceptor = new Thread(() -> {
+            while (server.isOpen()) {
+                try {
+                    SocketChannel ch = server.accept();
+                    Thread worker = new Thread(() -> {
+                        try (ch) {
+                            if (http) serveHttp(ch);
+                            else serveSocket(ch);
+                        } catch (IOException ignored) {
+                            // el cliente cerró la conexión
+                        }
+                    });
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Protocolo socket en modo sesión: PING, INSTREAM y END.
+     */
+    private static void serveSocket(SocketChannel ch) throws IOException {
+        ByteBuffer sink = ByteBuffer.allocateDirect(1024 * 1024);
+        ByteBuffer small = ByteBuffer.allocate(4);
+        int seq = 0;
+        String command;
+        while ((command = readCommand(ch)) != null) {
+            String reply;
+            if (command.equals("IDSESSION")) {
+                continue;
+            } else if (command.equals("END")) {
+                return;
+            } else if (command.equals("PING")) {
+                reply = "PONG";
+            } else {
+                while (true) {
+                    small.clear();
+                    readFully(ch, small);
+                    int len = small.flip().getInt();
+                    if (len == 0) break;
+                    discard(ch, sink, len);
+                }
+                reply = "stream: OK";
+            }
+            ch.write(ByteBuffer.wrap(((++seq) + ": " + reply + "\0").getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    /**
+     * HTTP/1.1 keep-alive mínimo: cuerpo con Content-Length o chunked, siempre responde OK.
+     */
+    private static void serveHttp(SocketChannel ch) throws IOException {
+        InputStream in = new BufferedInputStream(Channels.newInputStream(ch), 64 * 1024);
+        String line;
+        while ((line = readLine(in)) != null) {
+            if (line.isEmpty()) continue;
+            long length = -1;
+            boolean chunked = false;
+            String header;
+            while ((header = readLine(in)) != null && !header.isEmpty()) {
+                String h = header.toLowerCase();
+                if (h.startsWith("content-length:")) length = Long.parseLong(h.substring(15).trim());
+                if (h.startsWith("transfer-encoding:") && h.contains("chunked")) chunked = true;
+            }
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readLine(in).trim(), 16)) > 0) {
+                    in.skipNBytes(size);
+                    readLine(in);
+                }
+                readLine(in);
+            } else if (length > 0) {
+                in.skipNBytes(length);
+            }
+            String body = line.startsWith("GET") ? "pong" : "stream: OK";
+            ch.write(ByteBuffer.wrap(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length() + "\r\n\r\n" + body)
+                    .getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    private static String readCommand(SocketChannel ch) throws IOException {
+        ByteArrayOutputStream cmd = new ByteArrayOutputStream();
+        ByteBuffer one = ByteBuffer.allocate(1);
+        boolean first = true;
+        while (true) {
+            one.clear();
+            if (ch.read(one) < 0) return null;
+            byte b = one.get(0);
+            if (b == 0) return cmd.toString(StandardCharsets.US_ASCII);
+            if (!first) cmd.write(b);
+            first = false;
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') sb.setLength(len - 1);
+                return sb.toString();
+            }
+            sb.append((char) b);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void readFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf) < 0) throw new EOFException();
+        }
+    }
+
+    private static void discard(SocketChannel ch, ByteBuffer sink, long len) throws IOException {
+        while (len > 0) {
+            sink.clear().limit((int) Math.min(sink.capacity(), len));
+            int n = ch.read(sink);
+            if (n < 0) throw new EOFException();
+            len -= n;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Scan {
+        void run() throws Exception;
+    }
+}